@@ -0,0 +1,173 @@
+package com.concurrencyfreaks.locks;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+
+
+/**
+ * This is a latency benchmark of ScalableRWLock with each RWLockPolicy,
+ * with StampedLock as reference.
+ *
+ * There are numReaders threads that do only reads, which check that all
+ * the entries of a shared array are the same, and NUM_WRITERS threads that
+ * do bursts of BURST_SIZE writes, which increment all the entries of the
+ * shared array, with a pause of WRITER_PAUSE_MILIS between bursts.
+ * Each thread measures the time each lock()/unlock() pair takes, including
+ * the critical section, for its first MAX_SAMPLES operations, and we show
+ * the 50th, 99th and 99.9th percentiles for the Readers and the Writers.
+ */
+public class BenchmarkRWLockLatency {
+
+    public enum TestCase {
+        WriterPreference,
+        ReaderPreference,
+        PhaseFair,
+        StampedLock,
+    }
+
+    private final static int NUM_WRITERS = 2;
+    private final static int BURST_SIZE = 100;
+    private final static int WRITER_PAUSE_MILIS = 1;
+    private final static int NUM_ENTRIES = 16;
+    private final static int MAX_SAMPLES = 256*1024;
+
+    private final int numMilis;
+    private ReadWriteLock rwlock;
+    private final long[] data = new long[NUM_ENTRIES];
+    private volatile boolean quit = false;
+
+
+    public BenchmarkRWLockLatency(int numReaders, int numMilis) {
+        this.numMilis = numMilis;
+        System.out.println("----- Latency tests numReaders=" +numReaders+"  numWriters="+NUM_WRITERS+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numReaders, type);
+        System.out.println();
+    }
+
+
+    static ReadWriteLock createLock(TestCase type) {
+        switch (type) {
+        case WriterPreference: return new ScalableRWLock(RWLockPolicy.WRITER_PREFERENCE);
+        case ReaderPreference: return new ScalableRWLock(RWLockPolicy.READER_PREFERENCE);
+        case PhaseFair:        return new ScalableRWLock(RWLockPolicy.PHASE_FAIR);
+        case StampedLock:      return new StampedLock().asReadWriteLock();
+        }
+        return null;
+    }
+
+
+    public void singleTest(int numReaders, TestCase type) {
+        rwlock = createLock(type);
+        quit = false;
+
+        // Create the threads and then start them all in one go
+        final WorkerThread[] workerThreads = new WorkerThread[numReaders+NUM_WRITERS];
+        for (int i = 0; i < workerThreads.length; i++) {
+            workerThreads[i] = new WorkerThread(i >= numReaders);
+        }
+        for (int i = 0; i < workerThreads.length; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        quit = true;
+
+        try {
+            for (int i = 0; i < workerThreads.length; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        printPercentiles(type.toString()+"-Readers", workerThreads, 0, numReaders);
+        printPercentiles(type.toString()+"-Writers", workerThreads, numReaders, workerThreads.length);
+    }
+
+
+    private void printPercentiles(String name, WorkerThread[] workerThreads, int from, int to) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = name + "                                  ".substring(name.length());
+        System.out.print("##### "+indentedName+" #####  ");
+        int numSamples = 0;
+        long numOps = 0;
+        for (int i = from; i < to; i++) {
+            numSamples += workerThreads[i].numSamples;
+            numOps += workerThreads[i].numOps;
+        }
+        if (numSamples == 0) {
+            System.out.println("no operations completed");
+            return;
+        }
+        final long[] latencies = new long[numSamples];
+        int idx = 0;
+        for (int i = from; i < to; i++) {
+            System.arraycopy(workerThreads[i].latencies, 0, latencies, idx, workerThreads[i].numSamples);
+            idx += workerThreads[i].numSamples;
+        }
+        Arrays.sort(latencies);
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis)+"  latency (ns): p50 = "+latencies[numSamples/2]+
+                "  p99 = "+latencies[(int)(numSamples*0.99)]+"  p999 = "+latencies[(int)(numSamples*0.999)]);
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does latency tests
+     */
+    class WorkerThread extends Thread {
+        final boolean isWriter;
+        final long[] latencies = new long[MAX_SAMPLES];
+        int numSamples = 0;
+        long numOps = 0;
+
+        public WorkerThread(boolean isWriter) {
+            this.isWriter = isWriter;
+        }
+
+        public void run() {
+            while (!quit) {
+                if (isWriter) {
+                    for (int iburst = 0; iburst < BURST_SIZE; iburst++) {
+                        final long startTime = System.nanoTime();
+                        rwlock.writeLock().lock();
+                        for (int i = 0; i < NUM_ENTRIES; i++) data[i]++;
+                        rwlock.writeLock().unlock();
+                        addSample(System.nanoTime() - startTime);
+                    }
+                    try {
+                        Thread.sleep(WRITER_PAUSE_MILIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else {
+                    final long startTime = System.nanoTime();
+                    rwlock.readLock().lock();
+                    final long first = data[0];
+                    for (int i = 1; i < NUM_ENTRIES; i++) {
+                        if (data[i] != first) System.out.println("ERROR: read an inconsistent state");
+                    }
+                    rwlock.readLock().unlock();
+                    addSample(System.nanoTime() - startTime);
+                }
+            }
+        }
+
+        private void addSample(long latency) {
+            if (numSamples < MAX_SAMPLES) latencies[numSamples++] = latency;
+            numOps++;
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> readersList = new LinkedList<Integer>(Arrays.asList(2, 4, 8, 16, 32));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        for (Integer numReaders : readersList) {
+            new BenchmarkRWLockLatency(numReaders, 10000);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.concurrencyfreaks.locks;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+
+
+/**
+ * This is a performance benchmark of NumaScalableRWLock against
+ * ScalableRWLock (with per-thread states and in striped mode) and StampedLock.
+ *
+ * Each thread picks at random whether to do a write, which increments all
+ * the entries of a shared array, or a read, which checks that all the
+ * entries are the same, with writePerMil writes per thousand operations.
+ */
+public class BenchmarkRWLocks {
+
+    public enum TestCase {
+        ScalableRWLock,
+        ScalableRWLockStriped,
+        NumaScalableRWLock,
+        NumaScalableRWLock2Nodes,
+        StampedLock,
+    }
+
+    private final static int NUM_STRIPES = 64;
+    private final static int NUM_ENTRIES = 16;
+
+    private final int numMilis;
+    private final int writePerMil;
+    private final WorkerThread[] workerThreads;
+    private ReadWriteLock rwlock;
+    private final long[] data = new long[NUM_ENTRIES];
+
+
+    public BenchmarkRWLocks(int numThreads, int numMilis, int writePerMil) {
+        this.numMilis = numMilis;
+        this.writePerMil = writePerMil;
+        workerThreads = new WorkerThread[numThreads];
+        System.out.println("----- Performance tests numThreads=" +numThreads+"  Writes="+(writePerMil/10.)+"% -----");
+        for (TestCase type : TestCase.values()) singleTest(numThreads, type);
+        System.out.println();
+    }
+
+
+    static ReadWriteLock createLock(TestCase type) {
+        switch (type) {
+        case ScalableRWLock:           return new ScalableRWLock();
+        case ScalableRWLockStriped:    return new ScalableRWLock(NUM_STRIPES);
+        case NumaScalableRWLock:       return new NumaScalableRWLock();
+        case NumaScalableRWLock2Nodes: return new NumaScalableRWLock(2, NumaScalableRWLock.DEFAULT_STRIPES_PER_NODE);
+        case StampedLock:              return new StampedLock().asReadWriteLock();
+        }
+        return null;
+    }
+
+
+    public void singleTest(int numThreads, TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        rwlock = createLock(type);
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numReads = 0;
+        long numWrites = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numReads += workerThreads[i].numReads;
+            numWrites += workerThreads[i].numWrites;
+        }
+        System.out.println("numOps/sec = "+((numReads+numWrites)*1000/numMilis)+"  writes/sec = "+(numWrites*1000/numMilis));
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        volatile boolean quit = false;
+        long numReads = 0;
+        long numWrites = 0;
+        long xrand;
+
+        public WorkerThread(int tid) {
+            xrand = 1234567 + tid;
+        }
+
+        public void run() {
+            while (!quit) {
+                // Marsaglia's xorshift
+                xrand ^= xrand << 21;
+                xrand ^= xrand >>> 35;
+                xrand ^= xrand << 4;
+                if ((xrand & Long.MAX_VALUE) % 1000 < writePerMil) {
+                    rwlock.writeLock().lock();
+                    for (int i = 0; i < NUM_ENTRIES; i++) data[i]++;
+                    rwlock.writeLock().unlock();
+                    numWrites++;
+                } else {
+                    rwlock.readLock().lock();
+                    final long first = data[0];
+                    for (int i = 1; i < NUM_ENTRIES; i++) {
+                        if (data[i] != first) System.out.println("ERROR: read an inconsistent state");
+                    }
+                    rwlock.readLock().unlock();
+                    numReads++;
+                }
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> threadList = new LinkedList<Integer>(Arrays.asList(1, 2, 4, 8, 16, 32));
+        LinkedList<Integer> writeList = new LinkedList<Integer>(Arrays.asList(1, 10, 100));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println("NumaScalableRWLock default number of nodes is " + NumaScalableRWLock.DEFAULT_NUM_NODES);
+        for (Integer writePerMil : writeList) {
+            for (Integer nThreads : threadList) {
+                new BenchmarkRWLocks(nThreads, 10000, writePerMil);
+                Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * ****************************************************************************
+ * Copyright (c) 2014, Pedro Ramalhete and Andreia Correia All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the author nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *****************************************************************************
+ */
+package com.concurrencyfreaks.locks;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * <h1> Lock Condition </h1>
+ *
+ * A Condition for a lock that is held in exclusive mode, like the write-lock
+ * of ScalableRWLock or a TidexMutex, which don't have an owner thread or a
+ * wait queue of their own.
+ *
+ * The waiters are kept in a FIFO queue, like the condition queue of
+ * AbstractQueuedSynchronizer, which is modified only by threads holding the
+ * lock. A thread calling await() adds itself to the queue, releases the lock
+ * with unlock(), and parks until it is signalled, interrupted, or its time
+ * runs out. It then re-acquires the lock with lock(), which doesn't give up
+ * on interrupts. signal() removes the first waiter from the queue and
+ * unparks it.
+ * A waiter that is interrupted or times out cancels itself with a CAS on its
+ * state, and a signal() that finds a cancelled waiter moves on to the next
+ * one, so that signals are never lost. The cancelled waiter removes itself
+ * from the queue after it re-acquires the lock.
+ * If a thread is interrupted after being signalled, await() returns
+ * normally with the interrupt status set, like in AbstractQueuedSynchronizer.
+ *
+ * All methods must be called while holding the lock, but unlike
+ * ReentrantLock there is no check for it, because the lock has no owner.
+ *
+ * await() progress: blocking
+ * signal()/signalAll() progress: wait-free bounded by the number of waiters
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+final class LockCondition implements Condition {
+
+    private static final int WAITING   = 0;
+    private static final int SIGNALLED = 1;
+    private static final int CANCELLED = 2;
+
+    static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile int state = WAITING;
+        Waiter next = null;
+
+        boolean casState(int cmp, int val) {
+            return UNSAFE.compareAndSwapInt(this, stateOffset, cmp, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long stateOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                stateOffset = UNSAFE.objectFieldOffset(Waiter.class.getDeclaredField("state"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    private final Lock lock;
+    // Queue of waiters, guarded by the lock
+    private Waiter head = null;
+    private Waiter tail = null;
+
+
+    /**
+     * @param lock The lock to release and re-acquire in await(), with
+     * unlock() and lock()
+     */
+    LockCondition(Lock lock) {
+        this.lock = lock;
+    }
+
+
+    public void await() throws InterruptedException {
+        awaitNanos(true, false, 0);
+    }
+
+
+    public void awaitUninterruptibly() {
+        try {
+            awaitNanos(false, false, 0);
+        } catch (InterruptedException e) {
+            // Can't happen when interruptible is false
+        }
+    }
+
+
+    public long awaitNanos(long nanosTimeout) throws InterruptedException {
+        return awaitNanos(true, true, nanosTimeout);
+    }
+
+
+    public boolean await(long time, TimeUnit unit) throws InterruptedException {
+        return awaitNanos(true, true, unit.toNanos(time)) > 0;
+    }
+
+
+    public boolean awaitUntil(Date deadline) throws InterruptedException {
+        return awaitNanos(true, true, TimeUnit.MILLISECONDS.toNanos(deadline.getTime() - System.currentTimeMillis())) > 0;
+    }
+
+
+    /**
+     * Wakes up the longest waiting thread
+     */
+    public void signal() {
+        Waiter w;
+        while ((w = head) != null) {
+            dequeue(w);
+            if (w.casState(WAITING, SIGNALLED)) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+            // This waiter was cancelled, try the next one
+        }
+    }
+
+
+    /**
+     * Wakes up all the waiting threads
+     */
+    public void signalAll() {
+        Waiter w;
+        while ((w = head) != null) {
+            dequeue(w);
+            if (w.casState(WAITING, SIGNALLED)) LockSupport.unpark(w.thread);
+        }
+    }
+
+
+    /**
+     * Returns the remaining time, or a value less than or equal to zero if
+     * the time ran out before a signal(). If timed is false, returns 1.
+     */
+    private long awaitNanos(boolean interruptible, boolean timed, long nanosTimeout) throws InterruptedException {
+        if (interruptible && Thread.interrupted()) throw new InterruptedException();
+        final Waiter w = new Waiter();
+        if (tail == null) {
+            head = w;
+        } else {
+            tail.next = w;
+        }
+        tail = w;
+        final long deadline = timed ? System.nanoTime() + nanosTimeout : 0;
+        lock.unlock();
+
+        boolean interrupted = false;
+        boolean cancelled = false;
+        while (w.state == WAITING) {
+            if (timed) {
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0) {
+                    if (w.casState(WAITING, CANCELLED)) cancelled = true;
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosTimeout);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                interrupted = true;
+                if (interruptible && w.casState(WAITING, CANCELLED)) {
+                    cancelled = true;
+                    break;
+                }
+            }
+        }
+
+        lock.lock();
+        if (cancelled) {
+            // The signallers didn't remove us from the queue
+            remove(w);
+            if (interrupted && interruptible) throw new InterruptedException();
+            return timed ? deadline - System.nanoTime() : 1;
+        }
+        // We were signalled, maybe after an interrupt, so keep the interrupt status
+        if (interrupted) Thread.currentThread().interrupt();
+        if (!timed) return 1;
+        // A signal that arrives after the deadline still counts as a signal
+        final long remaining = deadline - System.nanoTime();
+        return remaining > 0 ? remaining : 1;
+    }
+
+
+    private void dequeue(Waiter w) {
+        head = w.next;
+        if (head == null) tail = null;
+        w.next = null;
+    }
+
+
+    private void remove(Waiter w) {
+        Waiter prev = null;
+        for (Waiter node = head; node != null; prev = node, node = node.next) {
+            if (node != w) continue;
+            if (prev == null) {
+                head = node.next;
+            } else {
+                prev.next = node.next;
+            }
+            if (tail == node) tail = prev;
+            node.next = null;
+            return;
+        }
+    }
+}
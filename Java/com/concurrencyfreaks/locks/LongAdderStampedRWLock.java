@@ -25,12 +25,13 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  ******************************************************************************
  */ 
-package com.concurrencyfreaks.scalablerwlock;
+package com.concurrencyfreaks.locks;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.StampedLock;
 
@@ -74,8 +75,7 @@ import java.util.concurrent.locks.StampedLock;
  * <p>
  * Disadvantages: <ul>
  * <li> Not Reentrant
- * <li> Does not support {@code lockInterruptibly()}
- * <li> Does not support {@code newCondition()}
+ * <li> Does not support {@code lockInterruptibly()} or {@code newCondition()} on the read-lock
  * </ul>
  * <p>
  * For scenarios with few writes, the average case for {@code sharedLock()} is
@@ -104,6 +104,18 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
     
     /** Stamped lock that is used mostly as writer-lock */   
     private transient final StampedLock stampedLock;       
+
+    /**
+     * The Writer that is parked in lockInterruptibly() or tryLock(timeout)
+     * waiting for the Readers to leave, or null. See waitForReaders().
+     * Every Reader reads it when it leaves, so it is padded, like in
+     * ScalableRWLock.
+     */
+    @sun.misc.Contended
+    private transient volatile Thread waitingWriter = null;
+
+    // Number of scans of the Readers a Writer does before it parks
+    private static final int WRITER_SPINS = 64;
         
     /** The lock returned by method {@link LongAdderStampedRWLock#rwLock} */
     private final InnerReadLock readerLock;
@@ -165,12 +177,10 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
             return exclusiveTryLockNanos(unit.toNanos(timeout));
         }
         public void lockInterruptibly() throws InterruptedException {
-            // Not supported
-            throw new UnsupportedOperationException();                     
+            exclusiveLockInterruptibly();
         }        
         public Condition newCondition() {
-            // Not supported
-            throw new UnsupportedOperationException();           
+            return new LockCondition(this);
         }               
     }	
 	
@@ -209,6 +219,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
             } else {
                 // Rollback logical counter to avoid blocking a Writer
                 readersEgress.increment();
+                readerDeparted();
                 // If there is a Writer, we go for the StampedLock.readlock()
                 if (stampedLock.isWriteLocked()) {                    
                     stampedLock.asReadLock().lock();
@@ -240,6 +251,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
             } 
         } 
         readersEgress.increment();
+        readerDeparted();
         return;
     }
     
@@ -265,6 +277,79 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
             Thread.yield();
         }
     }
+
+
+    /**
+     * Acquires the write lock unless the current thread is interrupted.
+     *
+     * <p>Same as {@link #exclusiveLock()}, but while waiting for another
+     * Writer the current thread is parked by the stampedLock, while waiting
+     * for the Readers it spins for a while and then parks until the last of
+     * them leaves, and if the current thread is interrupted while waiting
+     * for the lock or for the Readers, it gives up and throws
+     * InterruptedException.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void exclusiveLockInterruptibly() throws InterruptedException {
+        // Try to acquire the stampedLock in write-mode 
+        stampedLock.writeLockInterruptibly();
+        waitForReaders(false, 0, 0);
+    }
+
+
+    /**
+     * Must be called each time a Reader leaves or rolls back its arrival,
+     * so that a Writer parked in waitForReaders() checks the Readers again.
+     * The Writer publishes itself in waitingWriter before it checks, and the
+     * Reader updates the counter before it reads waitingWriter, so at least
+     * one of them sees the other.
+     */
+    private void readerDeparted() {
+        final Thread writer = waitingWriter;
+        if (writer != null) LockSupport.unpark(writer);
+    }
+
+
+    /**
+     * Called after acquiring the stampedLock in exclusiveLockInterruptibly()
+     * and exclusiveTryLockNanos(). Checks the Readers WRITER_SPINS times and
+     * then publishes the current thread in waitingWriter and parks until a
+     * Reader leaves, the thread is interrupted, or (if timed is true)
+     * nanosTimeout elapses since lastTime, in which case it releases the
+     * stampedLock and returns false.
+     *
+     * @throws InterruptedException if the current thread is interrupted,
+     * after releasing the stampedLock
+     */
+    private boolean waitForReaders(boolean timed, long lastTime, long nanosTimeout) throws InterruptedException {
+        int spins = 0;
+        while (true) {
+            // Order is _very_ important here
+            final long egressSum = readersEgress.sum();
+            final long ingressSum = readersIngress.sum();
+            if (egressSum == ingressSum) break;
+            final boolean interrupted = Thread.interrupted();
+            if (interrupted || (timed && System.nanoTime() - lastTime >= nanosTimeout)) {
+                waitingWriter = null;
+                stampedLock.asWriteLock().unlock();
+                if (interrupted) throw new InterruptedException();
+                // Time has expired and there is still at least one Reader so give up
+                return false;
+            }
+            if (++spins < WRITER_SPINS) continue;
+            if (waitingWriter == null) {
+                // Check the Readers once more before parking
+                waitingWriter = Thread.currentThread();
+            } else if (timed) {
+                LockSupport.parkNanos(this, nanosTimeout - (System.nanoTime() - lastTime));
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        waitingWriter = null;
+        return true;
+    }
     
         
     /**
@@ -307,6 +392,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
         } else {
             // Lock can not be acquired right now. Rollback logical counter
             readersEgress.increment();
+            readerDeparted();
             return false;
         }         
     }
@@ -341,6 +427,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
         } else {
             // Rollback logical counter to avoid blocking a Writer
             readersEgress.increment();
+            readerDeparted();
             // If there is a Writer, we go for the StampedLock.readlock()
             if (stampedLock.isWriteLocked()) {      
                 if (stampedLock.asReadLock().tryLock(nanosTimeout, TimeUnit.NANOSECONDS)) {
@@ -399,7 +486,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
      * the value {@code true} if and only if no other thread is attempting a 
      * read lock, setting the write lock {@code reentrantWriterCount} 
      * to one. If another thread is attempting a read lock, this
-     * function <b>may yield until the read lock is released</b>.
+     * function <b>may park until the read lock is released</b>.
      * 
      * <p>If the write lock is held by another thread then the current
      * thread yields and lies dormant until one of two things happens:
@@ -423,6 +510,8 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
      * by the current thread, or the write lock was already held by the
      * current thread; and {@code false} if the waiting time
      * elapsed before the lock could be acquired.
+     * @throws InterruptedException if the current thread is interrupted
+     * while waiting for the lock or for the Readers
      */    
     public boolean exclusiveTryLockNanos(long nanosTimeout) throws InterruptedException {
         final long lastTime = System.nanoTime();
@@ -431,19 +520,7 @@ public class LongAdderStampedRWLock implements ReadWriteLock, java.io.Serializab
             return false;
         }
 
-        while (true) {
-            // Order is _very_ important here
-            final long egressSum = readersEgress.sum();
-            final long ingressSum = readersIngress.sum();
-            if (egressSum == ingressSum) return true;
-            if (System.nanoTime() - lastTime < nanosTimeout) {
-                Thread.yield();
-            } else { 
-                // Time has expired and there is still at least one Reader so give up
-                stampedLock.asWriteLock().unlock();
-                return false;
-            }  
-        }
+        return waitForReaders(true, lastTime, nanosTimeout);
     }
 
 
@@ -0,0 +1,496 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.locks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+
+
+/** <h1> NUMA-Aware Scalable Read-Write Lock </h1>
+ * A variant of ScalableRWLock in striped mode where the Readers' counters
+ * are grouped per NUMA node (or socket, or cluster) and the Writers use a
+ * cohort lock, like the C-RW-WP algorithm described in this paper:
+ * <a href="http://blogs.oracle.com/dave/resource/ppopp13-dice-NUMAAwareRWLocks.pdf">NUMA-Aware Reader-Writer locks</a>
+ * <p>
+ * Readers: <br>
+ * Each node has stripesPerNode counters, each on its own cache line, and
+ * the counters of the same node are next to each other. A Reader increments
+ * one of the counters of its node, selected by a hash of its thread id, and
+ * then checks that there is no Writer, the same way as in ScalableRWLock.
+ * This way, the cache lines that Readers write to are only shared among
+ * threads of the same node, and a Writer scans numNodes*stripesPerNode
+ * counters regardless of the number of threads.
+ * <p>
+ * Writers: <br>
+ * The write-lock is a cohort lock made of one ticket lock per node and a
+ * global ticket lock. A Writer first acquires the lock of its node and then
+ * the global lock. When it releases the write-lock and there are other
+ * Writers waiting on the lock of the same node, it keeps the global lock and
+ * passes it on with the node's lock, up to MAX_HANDOFFS consecutive times,
+ * after which the global lock is released so that Writers on other nodes
+ * can get it. This keeps the lock, and the data it protects, on the same
+ * node for several consecutive Writers, instead of bouncing between nodes.
+ * A Writer that has taken a ticket can't give up on it, because the next
+ * Writer is waiting for the egress to reach its own ticket. This is why the
+ * write-lock doesn't support lockInterruptibly(), and why tryLock(timeout)
+ * retries tryLock(), which doesn't take a ticket unless the lock is free,
+ * instead of waiting in line. Writers waiting in lock() yield instead of
+ * parking.
+ * Conditions are supported on the write-lock with newCondition(), see
+ * LockCondition.
+ * <p>
+ * Topology: <br>
+ * Java has no way to tell on which node a thread is running, so a thread is
+ * assigned to a node by a hash of its thread id, unless it has called
+ * {@link #setCurrentThreadNode(int)}, which is meant for threads whose
+ * affinity is set from the outside (for example with taskset or numactl).
+ * The default number of nodes is given by the system property
+ * {@code com.concurrencyfreaks.locks.numaNodes} or, if it isn't set, the
+ * number of entries in /sys/devices/system/node/ on Linux, and 1 otherwise.
+ * <p>
+ * Advantages: <ul>
+ * <li> Implements {@code java.util.concurrent.locks.ReadWriteLock}
+ * <li> No ThreadLocal and no finalize(), and the memory footprint doesn't
+ *      grow with the number of threads
+ * <li> Consecutive Writers on the same node don't bounce the lock between nodes
+ * </ul>
+ * <p>
+ * Disadvantages: <ul>
+ * <li> Not Reentrant
+ * <li> Has Writer-Preference
+ * <li> {@code sharedUnlock()} can't detect a thread that doesn't hold the read-lock
+ * <li> Writers may wait for up to MAX_HANDOFFS Writers of another node
+ * <li> Does not support {@code lockInterruptibly()}
+ * <li> Does not support {@code newCondition()} on the read-lock
+ * <li> {@code tryLock(timeout)} on the write-lock can be overtaken by Writers in {@code lock()}
+ * </ul>
+ *
+ * sharedLock() progress: blocking
+ * exclusiveLock() progress: blocking (starvation-free)
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class NumaScalableRWLock implements ReadWriteLock {
+
+    // Maximum number of consecutive Writers of the same node
+    public static final int MAX_HANDOFFS = 64;
+
+    public static final int DEFAULT_STRIPES_PER_NODE = 8;
+
+    public static final int DEFAULT_NUM_NODES = Integer.getInteger("com.concurrencyfreaks.locks.numaNodes", detectNumNodes());
+
+    // Size of a cache line in ints
+    private static final int CACHE_LINE = 64/4;
+
+    // Size of two cache lines in longs, to avoid false-sharing with the adjacent prefetcher
+    private static final int CLPAD = 128/8;
+
+    // Set when any thread calls setCurrentThreadNode(), so that the others don't need to check threadNode
+    private static volatile boolean useThreadNode = false;
+
+    private static final ThreadLocal<Integer> threadNode = new ThreadLocal<Integer>();
+
+    private final int numNodes;
+    private final int stripesPerNode;
+
+    // Counters of Readers, stripesPerNode per node, one per cache line
+    private final AtomicIntegerArray stripes;
+
+    // Ticket lock of each node
+    private final AtomicLongArray nodeIngress;
+    private final AtomicLongArray nodeEgress;
+
+    // Global ticket lock. Readers can enter only when globalIngress == globalEgress
+    @sun.misc.Contended
+    private volatile long globalIngress = 0;
+    @sun.misc.Contended
+    private volatile long globalEgress = 0;
+
+    // These are only accessed by the holder of the node's lock
+    private final boolean[] nodeHasGlobal;
+    private final int[] nodeHandoffs;
+
+    // The node of the Writer currently holding the lock
+    private int writerNode;
+
+    /**
+     * The lock returned by method {@link NumaScalableRWLock#readLock}.
+     */
+    private final InnerReadLock readerLock;
+
+    /**
+     * The lock returned by method {@link NumaScalableRWLock#writeLock}.
+     */
+    private final InnerWriteLock writerLock;
+
+
+    /**
+     * Read-only lock
+     */
+    final class InnerReadLock implements Lock {
+        public void lock() { sharedLock(); }
+        public void unlock() { sharedUnlock(); }
+        public boolean tryLock() { return sharedTryLock(); }
+        public boolean tryLock(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            if (Thread.interrupted()) throw new InterruptedException();
+            return sharedTryLockNanos(unit.toNanos(timeout));
+        }
+        public void lockInterruptibly() throws InterruptedException {
+            // Not supported
+            throw new UnsupportedOperationException();
+        }
+        public Condition newCondition() {
+            // Not supported
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /**
+     * Write-only lock
+     */
+    final class InnerWriteLock implements Lock {
+        public void lock() { exclusiveLock(); }
+        public void unlock() { exclusiveUnlock(); }
+        public boolean tryLock() { return exclusiveTryLock(); }
+        public boolean tryLock(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            if (Thread.interrupted()) throw new InterruptedException();
+            return exclusiveTryLockNanos(unit.toNanos(timeout));
+        }
+        public void lockInterruptibly() throws InterruptedException {
+            // Not supported
+            throw new UnsupportedOperationException();
+        }
+        public Condition newCondition() {
+            return new LockCondition(this);
+        }
+    }
+
+
+    /**
+     * Default constructor, with DEFAULT_NUM_NODES and DEFAULT_STRIPES_PER_NODE
+     */
+    public NumaScalableRWLock() {
+        this(DEFAULT_NUM_NODES, DEFAULT_STRIPES_PER_NODE);
+    }
+
+
+    /**
+     * @param numNodes number of NUMA nodes (or sockets, or clusters)
+     * @param stripesPerNode number of counters of Readers per node, will be rounded up to a power of 2
+     */
+    public NumaScalableRWLock(int numNodes, int stripesPerNode) {
+        if (numNodes <= 0 || stripesPerNode <= 0) throw new IllegalArgumentException();
+        this.numNodes = numNodes;
+        this.stripesPerNode = stripesPerNode == 1 ? 1 : Integer.highestOneBit(stripesPerNode-1) << 1;
+        stripes = new AtomicIntegerArray(numNodes*this.stripesPerNode*CACHE_LINE);
+        nodeIngress = new AtomicLongArray(numNodes*CLPAD);
+        nodeEgress = new AtomicLongArray(numNodes*CLPAD);
+        nodeHasGlobal = new boolean[numNodes];
+        nodeHandoffs = new int[numNodes];
+        readerLock = new NumaScalableRWLock.InnerReadLock();
+        writerLock = new NumaScalableRWLock.InnerWriteLock();
+    }
+
+    public Lock readLock() { return readerLock; }
+    public Lock writeLock() { return writerLock; }
+
+    public int getNumNodes() { return numNodes; }
+
+
+    /**
+     * Assigns the current thread to a node, in all instances of this lock.
+     * Should be called before the thread uses any of them, and must not be
+     * called while the thread holds the read-lock of any of them, because
+     * sharedUnlock() finds the counter to decrement from the node of the
+     * current thread, which would no longer be the node of sharedLock().
+     *
+     * @param node the node where the current thread is running, or -1 to
+     * go back to assigning it by a hash of its thread id
+     */
+    public static void setCurrentThreadNode(int node) {
+        if (node < 0) {
+            threadNode.remove();
+            return;
+        }
+        threadNode.set(node);
+        useThreadNode = true;
+    }
+
+
+    /**
+     * Returns the number of NUMA nodes reported by Linux, or 1
+     */
+    private static int detectNumNodes() {
+        final File[] files = new File("/sys/devices/system/node/").listFiles();
+        if (files == null) return 1;
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().matches("node[0-9]+")) count++;
+        }
+        return count == 0 ? 1 : count;
+    }
+
+
+    /**
+     * An imprecise but fast hash function (by George Marsaglia), same as in
+     * ScalableRWLock
+     */
+    private static long threadHash() {
+        long x = Thread.currentThread().getId();
+        x ^= (x << 21);
+        x ^= (x >>> 35);
+        x ^= (x << 4);
+        return x & Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Returns the node of the current thread
+     *
+     * @param hash the value of threadHash() for the current thread
+     */
+    private int currentNode(long hash) {
+        if (useThreadNode) {
+            final Integer node = threadNode.get();
+            if (node != null) return node % numNodes;
+        }
+        return (int)((hash >>> 16) % numNodes);
+    }
+
+
+    /**
+     * Returns the index in stripes[] of the counter for the current thread
+     */
+    private int stripeIndex() {
+        final long hash = threadHash();
+        return (int)((currentNode(hash)*stripesPerNode + (hash & (stripesPerNode-1)))*CACHE_LINE);
+    }
+
+
+    /**
+     * Returns true if there is no Reader in any of the stripes
+     */
+    private boolean stripesAreEmpty() {
+        for (int idx = 0; idx < numNodes*stripesPerNode*CACHE_LINE; idx += CACHE_LINE) {
+            if (stripes.get(idx) != 0) return false;
+        }
+        return true;
+    }
+
+
+    private boolean isWriteLocked() {
+        return globalIngress != globalEgress;
+    }
+
+
+    /**
+     * Acquires the read lock.
+     *
+     * <p>If the write lock is held (or a Writer is waiting for it) then
+     * the current thread yields until the write lock is released.
+     */
+    public void sharedLock() {
+        final int idx = stripeIndex();
+        while (true) {
+            stripes.getAndIncrement(idx);
+            if (!isWriteLocked()) return;
+            // Back off to avoid blocking a Writer
+            stripes.getAndDecrement(idx);
+            while (isWriteLocked()) Thread.yield();
+        }
+    }
+
+
+    /**
+     * Releases the read lock.
+     */
+    public void sharedUnlock() {
+        stripes.getAndDecrement(stripeIndex());
+    }
+
+
+    /**
+     * Acquires the read lock only if the write lock is not held by
+     * another thread at the time of invocation.
+     *
+     * @return {@code true} if the read lock was acquired
+     */
+    public boolean sharedTryLock() {
+        final int idx = stripeIndex();
+        stripes.getAndIncrement(idx);
+        if (!isWriteLocked()) return true;
+        stripes.getAndDecrement(idx);
+        return false;
+    }
+
+
+    /**
+     * Acquires the read lock if the write lock is not held by
+     * another thread within the given waiting time.
+     *
+     * @param nanosTimeout the time to wait for the read lock in nanoseconds
+     * @return {@code true} if the read lock was acquired
+     */
+    public boolean sharedTryLockNanos(long nanosTimeout) {
+        final long lastTime = System.nanoTime();
+        final int idx = stripeIndex();
+        while (true) {
+            stripes.getAndIncrement(idx);
+            if (!isWriteLocked()) return true;
+            stripes.getAndDecrement(idx);
+            if (System.nanoTime() - lastTime < nanosTimeout) {
+                Thread.yield();
+            } else {
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Acquires the write lock.
+     *
+     * <p>Acquires the lock of the current thread's node, then the global
+     * lock unless it was passed on by the previous Writer of the same
+     * node, and then waits for the ongoing Readers to leave.
+     */
+    public void exclusiveLock() {
+        final int node = currentNode(threadHash());
+        final long ticket = nodeIngress.getAndIncrement(node*CLPAD);
+        while (nodeEgress.get(node*CLPAD) != ticket) Thread.yield();
+        if (!nodeHasGlobal[node]) {
+            final long gticket = UNSAFE.getAndAddLong(this, globalIngressOffset, 1);
+            while (globalEgress != gticket) Thread.yield();
+        }
+        writerNode = node;
+        while (!stripesAreEmpty()) Thread.yield();
+    }
+
+
+    /**
+     * Releases the write lock.
+     *
+     * <p>If there are other Writers waiting on the lock of the same node,
+     * and there haven't been MAX_HANDOFFS consecutive Writers in this node,
+     * the global lock is passed on to the next Writer of the node.
+     *
+     * @throws IllegalMonitorStateException if the write lock is not held
+     */
+    public void exclusiveUnlock() {
+        if (!isWriteLocked()) {
+            // ERROR: tried to unlock a non write-locked instance
+            throw new IllegalMonitorStateException();
+        }
+        final int node = writerNode;
+        final long ticket = nodeEgress.get(node*CLPAD);
+        if (nodeIngress.get(node*CLPAD) != ticket+1 && nodeHandoffs[node] < MAX_HANDOFFS) {
+            // There are Writers waiting on this node, give them the global lock
+            nodeHandoffs[node]++;
+            nodeHasGlobal[node] = true;
+        } else {
+            nodeHandoffs[node] = 0;
+            nodeHasGlobal[node] = false;
+            globalEgress = globalEgress + 1;
+        }
+        nodeEgress.set(node*CLPAD, ticket+1);
+    }
+
+
+    /**
+     * Acquires the write lock only if it is not held by another thread
+     * and there are no Readers, at the time of invocation.
+     *
+     * @return {@code true} if the write lock was acquired
+     */
+    public boolean exclusiveTryLock() {
+        final int node = currentNode(threadHash());
+        final long ticket = nodeEgress.get(node*CLPAD);
+        if (nodeIngress.get(node*CLPAD) != ticket) return false;
+        if (!nodeIngress.compareAndSet(node*CLPAD, ticket, ticket+1)) return false;
+        if (!nodeHasGlobal[node]) {
+            final long gticket = globalEgress;
+            if (globalIngress != gticket || !UNSAFE.compareAndSwapLong(this, globalIngressOffset, gticket, gticket+1)) {
+                nodeEgress.set(node*CLPAD, ticket+1);
+                return false;
+            }
+        }
+        writerNode = node;
+        if (stripesAreEmpty()) return true;
+        // There is at least one ongoing Reader so give up
+        exclusiveUnlock();
+        return false;
+    }
+
+
+    /**
+     * Acquires the write lock if it is not held by another thread and
+     * there are no Readers within the given waiting time.
+     * A ticket can't be given up, so this retries exclusiveTryLock() until
+     * it succeeds or the time has expired.
+     *
+     * @param nanosTimeout the time to wait for the write lock in nanoseconds
+     * @return {@code true} if the write lock was acquired
+     */
+    public boolean exclusiveTryLockNanos(long nanosTimeout) throws InterruptedException {
+        final long lastTime = System.nanoTime();
+        while (true) {
+            if (exclusiveTryLock()) return true;
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (System.nanoTime() - lastTime < nanosTimeout) {
+                Thread.yield();
+            } else {
+                return false;
+            }
+        }
+    }
+
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long globalIngressOffset;
+    static {
+        try {
+            java.lang.reflect.Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            globalIngressOffset = UNSAFE.objectFieldOffset(NumaScalableRWLock.class.getDeclaredField("globalIngress"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/******************************************************************************
+ * Copyright (c) 2012-2014, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */ 
+package com.concurrencyfreaks.locks;
+
+
+
+/**
+ * <h1> Read-Write Lock Policy </h1>
+ *
+ * Selects which side gets priority when Readers and Writers contend on
+ * a Reader-Writer lock, like ScalableRWLock.
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public enum RWLockPolicy {
+    /**
+     * A Writer waiting for the lock blocks new Readers, and a burst of Writers
+     * can keep the Readers waiting for the whole burst.
+     */
+    WRITER_PREFERENCE,
+
+    /**
+     * A Writer waiting for the lock doesn't block new Readers, and gives up
+     * its attempt whenever it sees a Reader. Readers only wait for a Writer
+     * that is already in its critical section. Writers may starve.
+     */
+    READER_PREFERENCE,
+
+    /**
+     * Read phases and write phases alternate: a Writer waiting for the lock
+     * blocks new Readers, but the Readers that were blocked by a Writer
+     * enter before the next Writer does. A Reader waits for at most two
+     * write phases, and a Writer waits for at most one read phase after the
+     * previous Writer. Described by Brandenburg and Anderson in
+     * "Spin-Based Reader-Writer Synchronization for Multiprocessor Real-Time Systems".
+     */
+    PHASE_FAIR,
+}
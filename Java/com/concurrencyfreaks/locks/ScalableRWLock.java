@@ -27,15 +27,18 @@
  */ 
 package com.concurrencyfreaks.locks;
  
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.StampedLock;
 
+import com.concurrencyfreaks.readindicators.ReaderRegistry;
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 
 
 /** <h1> Scalable Read-Write Lock </h1>
@@ -52,13 +55,14 @@ import java.util.concurrent.locks.StampedLock;
  * Threads attempting a read-lock for the first time are added to a list and
  * removed when the thread terminates, following the mechanism described below.
  * <p>
- * To manage the adding and removal of new Reader threads, we use a 
- * ConcurrentLinkedQueue instance named {@code readersStateList} containing all  
- * the references to ReadersEntry (Reader's states), which the Writer scans to 
- * determine if the Readers have completed or not. 
- * After a thread terminates, the {@code finalize()} of the associated 
- * {@code ReaderEntry} instance will be called, which will remove the
- * Reader's state reference from the {@code readersStateList}, to avoid memory leaking.
+ * To manage the adding and removal of new Reader threads, we use a
+ * ReaderRegistry instance named {@code readers} containing all the Reader's
+ * states in a compact array, which the Writer scans to determine if the
+ * Readers have completed or not.
+ * After a thread terminates, its state is removed from the registry once the
+ * GC finds that its ThreadLocal entry is unreachable, to avoid memory
+ * leaking. A thread can also remove its state right away by calling
+ * {@link #deregisterCurrentThread()}.
  * <p>
  * Advantages: <ul>
  * <li> Implements {@code java.util.concurrent.locks.ReadWriteLock} 
@@ -70,10 +74,9 @@ import java.util.concurrent.locks.StampedLock;
  * <p>
  * Disadvantages: <ul>
  * <li> Not Reentrant
- * <li> Has Writer-Preference
- * <li> Memory footprint increases with number of threads by sizeof(ReadersEntry) x O(N_threads)
- * <li> Does not support {@code lockInterruptibly()}
- * <li> Does not support {@code newCondition()}
+ * <li> Has Writer-Preference, unless created with another RWLockPolicy
+ * <li> Memory footprint increases with number of threads by sizeof(AtomicInteger) x O(N_threads)
+ * <li> Does not support {@code lockInterruptibly()} or {@code newCondition()} on the read-lock
  * </ul>
  * <p>
  * For scenarios with few writes, the average case for {@code sharedLock()} is
@@ -84,6 +87,49 @@ import java.util.concurrent.locks.StampedLock;
  * on the same instance, the performance penalty will be small because the 
  * accessed variables will most likely be in L1/L2 cache.  
  * <p>
+ * Striped mode: <br>
+ * When there are many short-lived threads (for example one thread per task),
+ * the per-thread states make the list scanned by the Writer, and the memory
+ * footprint, grow with the number of threads that ever did a read-lock, until
+ * the GC finds the terminated threads. Created with {@link #ScalableRWLock(int)}, the
+ * lock uses instead a fixed array of numStripes counters, each on its own
+ * cache line, and each Reader increments and decrements the counter selected
+ * by a hash of its thread id. There is no ThreadLocal and no registry, and
+ * the Writer scans numStripes counters regardless of the number of threads.
+ * The cost is an atomic increment instead of a set() on the Reader's path, on a
+ * cache line that may be shared with other Readers, and that 
+ * {@code sharedUnlock()} can't detect a thread that doesn't hold the read-lock.
+ * <p>
+ * Packed mode: <br>
+ * Created with {@link #ScalableRWLock(ThreadRegistry)}, each Reader has its
+ * own state like in the default mode, but the states are in a single
+ * {@code AtomicIntegerArray}, one per cache line, at the index of the tid that
+ * the ThreadRegistry gave to the Reader's thread. Registering a new Reader
+ * claims a free tid instead of making a new copy of the array of states, and
+ * the Writer scans the states sequentially up to the registry's high water
+ * mark, without loading a reference to each state. The Reader's path is the
+ * same as in the default mode, a set() on its own cache line. At most
+ * {@code registry.getMaxThreads()} threads can read-lock at the same time,
+ * otherwise {@code sharedLock()} throws IllegalStateException.
+ * <p>
+ * Policies: <br>
+ * By default the lock has Writer-Preference: a Reader that sees the
+ * stampedLock locked goes back to not reading and waits. All constructors
+ * also take a RWLockPolicy, which can be used in any of the modes above.
+ * With READER_PREFERENCE and PHASE_FAIR, a Writer that has acquired the
+ * stampedLock sets {@code writerInCS} before it scans the Readers, and the
+ * Readers that are allowed to go ahead of a waiting Writer only check
+ * {@code writerInCS} after publishing their state, which makes it safe for
+ * the same reason as the default algorithm. <br>
+ * READER_PREFERENCE: every Reader is allowed to go ahead of a waiting
+ * Writer, and the Writer clears {@code writerInCS} while there are Readers. <br>
+ * PHASE_FAIR: a Reader that was blocked by a Writer counts itself in
+ * {@code phaseReaders}, at the index of the parity of the Writer's epoch,
+ * and waits for that Writer to unlock, which increments {@code writerEpoch}.
+ * From then on the Reader is allowed to go ahead of a waiting Writer, and
+ * the next Writer waits for all the Readers counted for the previous epoch
+ * to enter before it sets {@code writerInCS}.
+ * <p>
  * 
  * @author Pedro Ramalhete
  * @author Andreia Correia
@@ -97,13 +143,12 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
     private final static int SRWL_STATE_WRITING     = 1;
     private final static int SRWL_STATE_NOT_READING = 0;
     private final static int SRWL_STATE_READING     = 1;
-    private final static AtomicInteger[] dummyArray = new AtomicInteger[0];    
 
     /**
-     * List of Reader's states that the Writer will scan when attempting to
+     * Reader's states that the Writer will scan when attempting to
      * acquire the lock in write-mode
      */
-    private transient final ConcurrentLinkedQueue<AtomicInteger> readersStateList;
+    private transient final ReaderRegistry<AtomicInteger> readers;
     
     /**
      * The thread-id of the Writer currently holding the lock in write-mode, or
@@ -112,15 +157,47 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      */
     private transient final StampedLock stampedLock;   
     
+    // Size of a cache line in ints
+    private static final int CACHE_LINE = 64/4;
+
     /**
-     * Thread-local reference to the current thread's ReadersEntry instance.
-     * It's from this instance that the current Reader thread is able
-     * to determine where to store its own state, and the number of reentrant
-     * read lock loops for that particular thread.
+     * Counters of Readers for striped mode, or Reader's states indexed by
+     * tid for packed mode, one per cache line, or null if we're using the
+     * ReaderRegistry
      */
-    private transient final ThreadLocal<ReadersEntry> entry;  
-    
-    private transient final AtomicReference<AtomicInteger[]> readersStateArrayRef;
+    private transient final AtomicIntegerArray stripes;
+    private transient final int numStripes;
+
+    // Hands out the tids for packed mode, or null
+    private transient final ThreadRegistry registry;
+
+    private transient final RWLockPolicy policy;
+
+    // Set by the Writer before its last scan of the Readers, for READER_PREFERENCE and PHASE_FAIR
+    private transient volatile boolean writerInCS = false;
+
+    // Number of write-lock releases, for PHASE_FAIR
+    private transient volatile long writerEpoch = 0;
+
+    /**
+     * Number of Readers that were blocked by a Writer and didn't enter yet,
+     * for PHASE_FAIR, at the index of the parity of the Writer's epoch.
+     * Both counters are on their own cache line.
+     */
+    private transient final AtomicIntegerArray phaseReaders = new AtomicIntegerArray(2*CACHE_LINE);
+
+    /**
+     * The Writer that is parked in lockInterruptibly() or tryLock(timeout)
+     * waiting for the Readers to leave, or null. See writerPause().
+     * It is on its own cache line because Readers read it each time they
+     * leave, and it is written only when a Writer is about to park, so
+     * Readers don't miss in the cache unless there is a parked Writer.
+     */
+    @sun.misc.Contended
+    private transient volatile Thread waitingWriter = null;
+
+    // Number of scans of the Readers a Writer does before it parks
+    private static final int WRITER_SPINS = 64;
     
     /**
      * The lock returned by method {@link ScalableReentrantRWLock#readLock}.
@@ -133,24 +210,6 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
     private final InnerWriteLock writerLock;
 
     
-    /**
-     * Inner class that makes use of finalize() to remove the Reader's state 
-     * from the ConcurrentLinkedQueue {@code readersStateList}
-     */
-    final class ReadersEntry {
-        public final AtomicInteger state;
-        
-        public ReadersEntry(AtomicInteger state) { 
-            this.state = state;         
-        }
-        
-        protected void finalize() throws Throwable {
-            removeState(state);
-            super.finalize();
-        }
-    }    
-	
-	
     /**
      * Read-only lock
      */
@@ -187,12 +246,10 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
             return exclusiveTryLockNanos(unit.toNanos(timeout));
         }
         public void lockInterruptibly() throws InterruptedException {
-            // Not supported
-            throw new UnsupportedOperationException();                     
+            exclusiveLockInterruptibly();
         }        
         public Condition newCondition() {
-            // Not supported
-            throw new UnsupportedOperationException();           
+            return new LockCondition(this);
         }               
     }	
 	
@@ -200,22 +257,83 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
     /**
      * Default constructor
      */
-    public ScalableRWLock() {	      		
-        // States of the Readers, one entry in the list per thread
-        readersStateList = new ConcurrentLinkedQueue<AtomicInteger>();
-        
+    public ScalableRWLock() {
+        this(RWLockPolicy.WRITER_PREFERENCE);
+    }
+
+
+    /**
+     * @param policy Which side gets priority when Readers and Writers contend
+     */
+    public ScalableRWLock(RWLockPolicy policy) {
+        this.policy = policy;
+        // States of the Readers, one entry per thread. The thread calling
+        // the constructor may never attempt to read-lock this instance and,
+        // therefore, there is no point in registering a state for it.
+        readers = new ReaderRegistry<AtomicInteger>(new AtomicInteger[0]);
+
         stampedLock = new StampedLock();
 
-        // Default value for "entry" is null which is ok because, the thread 
-        // calling the constructor may never attempt to read-lock this 
-        // instance and, therefore, there is not point in allocating an 
-        // instance of ReadersEntry for it.
-        entry = new ThreadLocal<ReadersEntry>();
-        
-        readersStateArrayRef = new AtomicReference<AtomicInteger[]>(null);
-        
         readerLock = new ScalableRWLock.InnerReadLock();
         writerLock = new ScalableRWLock.InnerWriteLock();
+
+        stripes = null;
+        numStripes = 0;
+        registry = null;
+    }
+
+
+    /**
+     * Constructor for striped mode, where Readers share a fixed number of
+     * counters instead of having one state per thread.
+     *
+     * @param numStripes number of counters, will be rounded up to a power of 2
+     */
+    public ScalableRWLock(int numStripes) {
+        this(numStripes, RWLockPolicy.WRITER_PREFERENCE);
+    }
+
+
+    /**
+     * Constructor for striped mode with a policy
+     */
+    public ScalableRWLock(int numStripes, RWLockPolicy policy) {
+        if (numStripes <= 0) throw new IllegalArgumentException();
+        this.policy = policy;
+        readers = null;
+        stampedLock = new StampedLock();
+        readerLock = new ScalableRWLock.InnerReadLock();
+        writerLock = new ScalableRWLock.InnerWriteLock();
+        this.numStripes = numStripes == 1 ? 1 : Integer.highestOneBit(numStripes-1) << 1;
+        stripes = new AtomicIntegerArray(this.numStripes*CACHE_LINE);
+        registry = null;
+    }
+
+
+    /**
+     * Constructor for packed mode, where the state of each Reader is in
+     * a single array, at the index of its tid in the registry.
+     *
+     * @param registry Hands out the tids of the Readers. Can be shared with
+     * other instances.
+     */
+    public ScalableRWLock(ThreadRegistry registry) {
+        this(registry, RWLockPolicy.WRITER_PREFERENCE);
+    }
+
+
+    /**
+     * Constructor for packed mode with a policy
+     */
+    public ScalableRWLock(ThreadRegistry registry, RWLockPolicy policy) {
+        this.policy = policy;
+        readers = null;
+        stampedLock = new StampedLock();
+        readerLock = new ScalableRWLock.InnerReadLock();
+        writerLock = new ScalableRWLock.InnerWriteLock();
+        this.registry = registry;
+        numStripes = registry.getMaxThreads();
+        stripes = new AtomicIntegerArray(numStripes*CACHE_LINE);
     }
     
     public Lock readLock() { return readerLock; }
@@ -223,33 +341,263 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
 
     
     /**
-     * This function should be called only from ReadersEntry.finalize()
-     * 
-     * @param state The reader's state that we wish to remove from the ConcurrentLinkedQueue
+     * Removes the Reader's state of the current thread, so that the Writers
+     * no longer scan it. Must not be called while holding the read-lock.
+     * This is optional, the state is removed anyway when the thread
+     * terminates, but only after the GC finds it.
+     * In packed mode this gives back the tid of the current thread to the
+     * registry, which may be shared with other instances.
      */
-    protected void removeState(AtomicInteger state) {        
-        readersStateList.remove(state);
-        readersStateArrayRef.set(null);
-        // Paranoia: just in case someone forgot to call sharedUnlock()
-        // and there is a Writer waiting on that state
-        state.set(SRWL_STATE_NOT_READING);
+    public void deregisterCurrentThread() {
+        if (readers != null) readers.deregisterCurrentThread();
+        if (registry != null) registry.release();
     }
-    
-    
+
+
     /**
-     * Creates a new ReadersEntry instance for the current thread and
-     * its associated AtomicInteger to store the state of the Reader
-     * 
-     * @return Returns a reference to the newly created instance of 
-     * {@code ReadersEntry}
+     * Returns the Reader's state of the current thread, registering a new
+     * one if needed
+     */
+    private AtomicInteger getState() {
+        final AtomicInteger state = readers.get();
+        if (state != null) return state;
+        return readers.register(new AtomicInteger(SRWL_STATE_NOT_READING));
+    }
+
+
+    /**
+     * An imprecise but fast hash function (by George Marsaglia), same as in
+     * RIDistributedCacheLineCounter. Returns the index in stripes[] of
+     * the counter for the current thread.
+     * In packed mode, returns the index of the state of the current thread.
+     */
+    private int stripeIndex() {
+        if (registry != null) return registry.getTid()*CACHE_LINE;
+        long x = Thread.currentThread().getId();
+        x ^= (x << 21);
+        x ^= (x >>> 35);
+        x ^= (x << 4);
+        return (int)(((numStripes-1) & x)*CACHE_LINE);
+    }
+
+
+    /**
+     * Returns true if there is no Reader in any of the stripes
+     */
+    private boolean stripesAreEmpty() {
+        // In packed mode, no tid above the high water mark was handed out
+        final int length = (registry == null ? numStripes : registry.getHighWaterMark())*CACHE_LINE;
+        for (int idx = 0; idx < length; idx += CACHE_LINE) {
+            if (stripes.get(idx) != 0) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Increments the counter of the stripe, or in packed mode, sets the
+     * state of the Reader to SRWL_STATE_READING
+     */
+    private void arrive(int idx) {
+        if (registry != null) {
+            stripes.set(idx, SRWL_STATE_READING);
+        } else {
+            stripes.getAndIncrement(idx);
+        }
+    }
+
+
+    private void depart(int idx) {
+        if (registry != null) {
+            stripes.set(idx, SRWL_STATE_NOT_READING);
+        } else {
+            stripes.getAndDecrement(idx);
+        }
+        readerDeparted();
+    }
+
+
+    /**
+     * Must be called each time a Reader goes back to SRWL_STATE_NOT_READING,
+     * or leaves its stripe or its phase counter, so that a Writer parked in
+     * writerPause() re-scans the Readers. The Writer publishes itself in
+     * waitingWriter before it scans, and the Reader changes its state before
+     * it reads waitingWriter, so at least one of them sees the other.
+     */
+    private void readerDeparted() {
+        final Thread writer = waitingWriter;
+        if (writer != null) LockSupport.unpark(writer);
+    }
+
+
+    /**
+     * Returns true if there is no Reader, in any of the modes
+     */
+    private boolean readersAreEmpty() {
+        if (stripes != null) return stripesAreEmpty();
+        for (AtomicInteger readerState : readers.getStates()) {
+            if (readerState.get() == SRWL_STATE_READING) return false;
+        }
+        return true;
+    }
+
+
+    private static boolean hasExpired(boolean timed, long lastTime, long nanosTimeout) {
+        return timed && (nanosTimeout <= 0 || System.nanoTime() - lastTime >= nanosTimeout);
+    }
+
+
+    /**
+     * Called by a Writer holding the stampedLock in lockInterruptibly() or
+     * tryLock(timeout), each time it finds a Reader it has to wait for.
+     * For the first WRITER_SPINS calls it returns right away so that the
+     * caller scans the Readers again. Then it publishes the current thread
+     * in waitingWriter and, from the call after that, parks until a Reader
+     * leaves, the thread is interrupted, or the timeout elapses.
+     * The caller must set waitingWriter back to null before it releases the
+     * stampedLock or returns.
      */
-    private ReadersEntry addState() {
-        final AtomicInteger state = new AtomicInteger(SRWL_STATE_NOT_READING);
-        final ReadersEntry newEntry = new ReadersEntry(state); 
-        entry.set(newEntry);
-        readersStateList.add(state);
-        readersStateArrayRef.set(null);
-        return newEntry;
+    private void writerPause(int spins, boolean timed, long lastTime, long nanosTimeout) {
+        if (spins < WRITER_SPINS) return;
+        if (waitingWriter == null) {
+            // Scan the Readers once more before parking
+            waitingWriter = Thread.currentThread();
+        } else if (timed) {
+            LockSupport.parkNanos(this, nanosTimeout - (System.nanoTime() - lastTime));
+        } else {
+            LockSupport.park(this);
+        }
+    }
+
+
+    /**
+     * Called after acquiring the stampedLock in exclusiveLockInterruptibly()
+     * and exclusiveTryLockNanos(), for WRITER_PREFERENCE, in any of the
+     * modes. Waits for the Readers with writerPause(). If timed is true and
+     * nanosTimeout elapses since lastTime, releases the stampedLock and
+     * returns false.
+     *
+     * @throws InterruptedException if the current thread is interrupted,
+     * after releasing the stampedLock
+     */
+    private boolean waitForReadersInterruptibly(boolean timed, long lastTime, long nanosTimeout) throws InterruptedException {
+        int spins = 0;
+        while (!readersAreEmpty()) {
+            final boolean interrupted = Thread.interrupted();
+            if (interrupted || hasExpired(timed, lastTime, nanosTimeout)) {
+                waitingWriter = null;
+                stampedLock.asWriteLock().unlock();
+                if (interrupted) throw new InterruptedException();
+                return false;
+            }
+            writerPause(++spins, timed, lastTime, nanosTimeout);
+        }
+        waitingWriter = null;
+        return true;
+    }
+
+
+    /**
+     * Read-lock for the READER_PREFERENCE and PHASE_FAIR policies, in any of
+     * the modes. If timed is true, gives up and returns false when
+     * nanosTimeout has elapsed since lastTime.
+     */
+    private boolean sharedLockPolicy(boolean timed, long lastTime, long nanosTimeout) {
+        final AtomicInteger currentReadersState = stripes == null ? getState() : null;
+        final int idx = stripes == null ? 0 : stripeIndex();
+        // A Reader allowed to go ahead of a Writer that is waiting for the
+        // lock, only waits for a Writer in its critical section
+        boolean allowed = (policy == RWLockPolicy.READER_PREFERENCE);
+        // Where this Reader is counted in phaseReaders, or -1
+        int phaseIdx = -1;
+        while (true) {
+            if (currentReadersState != null) {
+                currentReadersState.set(SRWL_STATE_READING);
+            } else {
+                arrive(idx);
+            }
+            if (allowed ? !writerInCS : !stampedLock.isWriteLocked()) break;
+            if (currentReadersState != null) {
+                currentReadersState.set(SRWL_STATE_NOT_READING);
+                readerDeparted();
+            } else {
+                depart(idx);
+            }
+            if (hasExpired(timed, lastTime, nanosTimeout)) {
+                if (phaseIdx != -1) leavePhase(phaseIdx);
+                return false;
+            }
+            if (allowed) {
+                while (writerInCS && !hasExpired(timed, lastTime, nanosTimeout)) Thread.yield();
+            } else {
+                // Wait for the current Writer to unlock, counting ourselves
+                // so that the next Writer lets us in first
+                final long epoch = writerEpoch;
+                phaseIdx = (int)(epoch & 1)*CACHE_LINE;
+                phaseReaders.getAndIncrement(phaseIdx);
+                while (writerEpoch == epoch && stampedLock.isWriteLocked() && !hasExpired(timed, lastTime, nanosTimeout)) {
+                    Thread.yield();
+                }
+                allowed = true;
+            }
+        }
+        if (phaseIdx != -1) leavePhase(phaseIdx);
+        return true;
+    }
+
+
+    private void leavePhase(int phaseIdx) {
+        phaseReaders.getAndDecrement(phaseIdx);
+        readerDeparted();
+    }
+
+
+    /**
+     * Called after acquiring the stampedLock, for the READER_PREFERENCE and
+     * PHASE_FAIR policies. If timed is true and nanosTimeout elapses since
+     * lastTime, or if interruptible is true and the thread is interrupted,
+     * releases the stampedLock and returns false.
+     * If interruptible is true, waits for the Readers with writerPause()
+     * instead of yielding.
+     */
+    private boolean waitForReadersPolicy(boolean interruptible, boolean timed, long lastTime, long nanosTimeout) {
+        int spins = 0;
+        if (policy == RWLockPolicy.PHASE_FAIR) {
+            // Let in the Readers that were blocked by the previous Writer
+            final int prevIdx = (int)((writerEpoch+1) & 1)*CACHE_LINE;
+            while (phaseReaders.get(prevIdx) != 0) {
+                if (hasExpired(timed, lastTime, nanosTimeout) || (interruptible && Thread.currentThread().isInterrupted())) {
+                    if (interruptible) waitingWriter = null;
+                    stampedLock.asWriteLock().unlock();
+                    return false;
+                }
+                if (interruptible) {
+                    writerPause(++spins, timed, lastTime, nanosTimeout);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        while (true) {
+            writerInCS = true;
+            if (readersAreEmpty()) {
+                if (interruptible) waitingWriter = null;
+                return true;
+            }
+            // With READER_PREFERENCE, don't block the Readers while we wait
+            if (policy == RWLockPolicy.READER_PREFERENCE) writerInCS = false;
+            if (hasExpired(timed, lastTime, nanosTimeout) || (interruptible && Thread.currentThread().isInterrupted())) {
+                writerInCS = false;
+                if (interruptible) waitingWriter = null;
+                stampedLock.asWriteLock().unlock();
+                return false;
+            }
+            if (interruptible) {
+                writerPause(++spins, timed, lastTime, nanosTimeout);
+            } else {
+                Thread.yield();
+            }
+        }
     }
     
 
@@ -263,13 +611,22 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      * the current thread yields until the write lock is released.
      */    
     public void sharedLock() {
-        ReadersEntry localEntry = entry.get();
-        // Initialize a new Reader-state for this thread if needed         
-        if (localEntry == null) {
-            localEntry = addState();      
-        }    
-
-        final AtomicInteger currentReadersState = localEntry.state;
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) {
+            sharedLockPolicy(false, 0, 0);
+            return;
+        }
+        if (stripes != null) {
+            final int idx = stripeIndex();
+            while (true) {
+                arrive(idx);
+                if (!stampedLock.isWriteLocked()) return;
+                depart(idx);
+                while (stampedLock.isWriteLocked()) {
+                   Thread.yield();
+                }
+            }
+        }
+        final AtomicInteger currentReadersState = getState();
         // The "optimistic" code path takes only two synchronized calls:
         // a set() on a cache line that should be held in exclusive mode 
         // by the current thread, and a get() on a cache line that is shared.
@@ -281,6 +638,7 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
             } else {
                 // Go back to SRWL_STATE_NOT_READING to avoid blocking a Writer
                 currentReadersState.set(SRWL_STATE_NOT_READING);
+                readerDeparted();
                 // Some (other) thread is holding the write-lock, we must wait
                 while (stampedLock.isWriteLocked()) {
                    Thread.yield();
@@ -303,12 +661,17 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      * hold this lock.
      */    
     public void sharedUnlock() {
-        final ReadersEntry localEntry = entry.get();
-        if (localEntry==null) {
+        if (stripes != null) {
+            depart(stripeIndex());
+            return;
+        }
+        final AtomicInteger currentReadersState = readers.get();
+        if (currentReadersState == null) {
             // ERROR: Tried to unlock a non read-locked lock
             throw new IllegalMonitorStateException();
         } else {
-            localEntry.state.set(SRWL_STATE_NOT_READING);
+            currentReadersState.set(SRWL_STATE_NOT_READING);
+            readerDeparted();
             return;
         }
     }
@@ -332,17 +695,18 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
     public void exclusiveLock() {        
         // Try to acquire the lock in write-mode 
         stampedLock.writeLock();
+
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) {
+            waitForReadersPolicy(false, false, 0, 0);
+            return;
+        }
+        if (stripes != null) {
+            while (!stripesAreEmpty()) Thread.yield();
+            return;
+        }
         
         // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final AtomicInteger[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
         for (AtomicInteger readerState : localReadersStateArray) {
@@ -351,6 +715,32 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
             }
         }
     }
+
+
+    /**
+     * Acquires the write lock unless the current thread is interrupted.
+     *
+     * <p>Same as {@link #exclusiveLock()}, but while waiting for another
+     * Writer the current thread is parked by the stampedLock, while waiting
+     * for the Readers it spins for a while and then parks until the last of
+     * them leaves, and if the current thread is interrupted while waiting
+     * for the lock or for the Readers, it gives up and throws
+     * InterruptedException.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void exclusiveLockInterruptibly() throws InterruptedException {
+        stampedLock.writeLockInterruptibly();
+
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) {
+            if (!waitForReadersPolicy(true, false, 0, 0)) {
+                Thread.interrupted();
+                throw new InterruptedException();
+            }
+            return;
+        }
+        waitForReadersInterruptibly(false, 0, 0);
+    }
     
         
     /**
@@ -370,6 +760,11 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
             // ERROR: tried to unlock a non write-locked instance
             throw new IllegalMonitorStateException();
         }
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) {
+            writerInCS = false;
+            // Only the holder of the write-lock modifies writerEpoch
+            writerEpoch = writerEpoch + 1;
+        }
            
         stampedLock.asWriteLock().unlock();
     }
@@ -390,13 +785,15 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
     * @return {@code true} if the read lock was acquired
     */
     public boolean sharedTryLock() {
-        ReadersEntry localEntry = entry.get();
-        // Initialize a new Reader-state for this thread if needed         
-        if (localEntry == null) {
-            localEntry = addState();      
-        }       
-        
-        final AtomicInteger currentReadersState = localEntry.state;
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) return sharedLockPolicy(true, 0, 0);
+        if (stripes != null) {
+            final int idx = stripeIndex();
+            arrive(idx);
+            if (!stampedLock.isWriteLocked()) return true;
+            depart(idx);
+            return false;
+        }
+        final AtomicInteger currentReadersState = getState();
         currentReadersState.set(SRWL_STATE_READING);
         if (!stampedLock.isWriteLocked()) {
             // Acquired lock in read-only mode
@@ -404,6 +801,7 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
         } else {
             // Go back to SRWL_STATE_NOT_READING and quit
             currentReadersState.set(SRWL_STATE_NOT_READING);
+            readerDeparted();
             return false;
         }        
     }
@@ -432,13 +830,22 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      */
     public boolean sharedTryLockNanos(long nanosTimeout) {
         final long lastTime = System.nanoTime();   
-        ReadersEntry localEntry = entry.get();
-        // Initialize a new Reader-state for this thread if needed         
-        if (localEntry == null) {
-            localEntry = addState();      
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) return sharedLockPolicy(true, lastTime, nanosTimeout);
+        if (stripes != null) {
+            final int idx = stripeIndex();
+            while (true) {
+                arrive(idx);
+                if (!stampedLock.isWriteLocked()) return true;
+                depart(idx);
+                if (nanosTimeout <= 0) return false;
+                if (System.nanoTime() - lastTime < nanosTimeout) {
+                    Thread.yield();
+                } else {
+                    return false;
+                }
+            }
         }
-        
-        final AtomicInteger currentReadersState = localEntry.state;        
+        final AtomicInteger currentReadersState = getState();        
         while (true) {
             currentReadersState.set(SRWL_STATE_READING);
             if (!stampedLock.isWriteLocked()) {
@@ -448,6 +855,7 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
                 // Go back to SRWL_STATE_NOT_READING to avoid blocking a Writer
                 // and then check if this is a downgrade.
                 currentReadersState.set(SRWL_STATE_NOT_READING); 
+                readerDeparted();
                            
                 if (nanosTimeout <= 0) return false;
                 if (System.nanoTime() - lastTime < nanosTimeout) {
@@ -486,17 +894,17 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
         if (stampedLock.tryWriteLock() == 0) {
             return false;
         }
+
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) return waitForReadersPolicy(false, true, 0, 0);
+        if (stripes != null) {
+            if (stripesAreEmpty()) return true;
+            // There is at least one ongoing Reader so give up
+            stampedLock.asWriteLock().unlock();
+            return false;
+        }
             
         // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final AtomicInteger[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
         for (AtomicInteger readerState : localReadersStateArray) {
@@ -520,7 +928,7 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      * the value {@code true} if and only if no other thread is attempting a 
      * read lock, setting the write lock {@code reentrantWriterCount} 
      * to one. If another thread is attempting a read lock, this
-     * function <b>may yield until the read lock is released</b>.
+     * function <b>may park until the read lock is released</b>.
      * 
      * <p>If the current thread already holds this lock then the
      * {@code reentrantWriterCount} is incremented by one and the method returns
@@ -542,6 +950,8 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
      * by the current thread, or the write lock was already held by the
      * current thread; and {@code false} if the waiting time
      * elapsed before the lock could be acquired.
+     * @throws InterruptedException if the current thread is interrupted
+     * while waiting for the lock or for the Readers
      */    
     public boolean exclusiveTryLockNanos(long nanosTimeout) throws InterruptedException {
         final long lastTime = System.nanoTime();
@@ -549,32 +959,13 @@ public class ScalableRWLock implements ReadWriteLock, java.io.Serializable {
         if (stampedLock.tryWriteLock(nanosTimeout, TimeUnit.NANOSECONDS) == 0) {
             return false;
         }
-        
-        // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
-        
-        // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == SRWL_STATE_READING) {
-                if (System.nanoTime() - lastTime < nanosTimeout) {
-                    Thread.yield();
-                } else { 
-                    // Time has expired and there is at least one ongoing Reader so give up
-                    stampedLock.asWriteLock().unlock();
-                    return false;
-                }
-            }
+
+        if (policy != RWLockPolicy.WRITER_PREFERENCE) {
+            if (waitForReadersPolicy(true, true, lastTime, nanosTimeout)) return true;
+            if (Thread.interrupted()) throw new InterruptedException();
+            return false;
         }
-        
-        return true;
+        return waitForReadersInterruptibly(true, lastTime, nanosTimeout);
     }
     
 }
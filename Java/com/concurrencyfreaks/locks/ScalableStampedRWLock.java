@@ -27,15 +27,15 @@
  */ 
 package com.concurrencyfreaks.locks;
  
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.StampedLock;
 
+import com.concurrencyfreaks.readindicators.ReaderRegistry;
+
 
 
 /** <h1> Scalable Stamped Read-Write Lock </h1>
@@ -53,13 +53,14 @@ import java.util.concurrent.locks.StampedLock;
  * are added to a list and removed when the thread terminates, following the 
  * mechanism described below.
  * <p>
- * To manage the adding and removal of new Reader threads, we use a 
- * ConcurrentLinkedQueue instance named {@code readersStateList} containing all  
- * the references to ReadersEntry (Reader's states), which the Writer scans to 
- * determine if the Readers have completed or not. 
- * After a thread terminates, the {@code finalize()} of the associated 
- * {@code ReaderEntry} instance will be called, which will remove the
- * Reader's state reference from the {@code readersStateList}, to avoid memory leaking.
+ * To manage the adding and removal of new Reader threads, we use a
+ * ReaderRegistry instance named {@code readers} containing all the
+ * ReadersEntry (Reader's states) in a compact array, which the Writer scans
+ * to determine if the Readers have completed or not.
+ * After a thread terminates, its ReadersEntry is removed from the registry
+ * once the GC finds that its ThreadLocal entry is unreachable, to avoid memory
+ * leaking. A thread can also remove its ReadersEntry right away by calling
+ * {@link #deregisterCurrentThread()}.
  * <p>
  * Relatively to the ScalableRWLock implemented previously, we use a 
  * StampedLock instead of a regular lock so that we can default to the 
@@ -104,36 +105,16 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
     private final static int SRWL_STATE_READING     = 1;
     
     /**
-     * List of Reader's states that the Writer will scan when attempting to
+     * Reader's states that the Writer will scan when attempting to
      * acquire the lock in write-mode
      */
-    private transient final ConcurrentLinkedQueue<AtomicInteger> readersStateList;
+    private transient final ReaderRegistry<ReadersEntry> readers;
     
     /**
      * Stamped lock that is used mostly as writer-lock
      */    
     private transient final StampedLock stampedLock;       
     
-    /**
-     * Thread-local reference to the current thread's ReadersEntry instance.
-     * It's from this instance that the current Reader thread is able
-     * to determine where to store its own state for that particular thread.
-     */
-    private transient final ThreadLocal<ReadersEntry> entry;
-    
-    /**
-     * Shortcut to the reader's states so that we don't have to walk the 
-     * ConcurrentLinkedQueue on every exclusiveLock().
-     */
-    private transient final AtomicReference<AtomicInteger[]> readersStateArrayRef;
-
-    /**
-     * We use this as a "special" marking: readersStateArrayRef
-     * will point to it when the array of Reader's states needs to be rebuild
-     * from the ConcurrentLinkedQueue.
-     */
-    private transient final static AtomicInteger[] dummyArray = new AtomicInteger[0];    
-    
     /**
      * The lock returned by method {@link ScalableReentrantRWLock#readLock}.
      */
@@ -146,8 +127,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
 
     
     /**
-     * Inner class that makes use of finalize() to remove the Reader's state 
-     * from the ConcurrentLinkedQueue {@code readersStateList}
+     * The Reader's state of a thread, kept in the ReaderRegistry
      */
     final class ReadersEntry {
         public final AtomicInteger state;
@@ -156,11 +136,6 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
         public ReadersEntry(AtomicInteger state) { 
             this.state = state;         
         }
-        
-        protected void finalize() throws Throwable {
-            removeState(state);
-            super.finalize();
-        }
     }    
 	
 	
@@ -220,11 +195,9 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
      * Default constructor
      */
     public ScalableStampedRWLock() {	      		
-        // States of the Readers, one entry in the list per thread
-        readersStateList = new ConcurrentLinkedQueue<AtomicInteger>();
+        // States of the Readers, one entry per thread
+        readers = new ReaderRegistry<ReadersEntry>(new ReadersEntry[0]);
         stampedLock = new StampedLock();        
-        entry = new ThreadLocal<ReadersEntry>();        
-        readersStateArrayRef = new AtomicReference<AtomicInteger[]>(null);
         readerLock = new ScalableStampedRWLock.InnerReadLock(this);
         writerLock = new ScalableStampedRWLock.InnerWriteLock(this);
     }
@@ -234,22 +207,16 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
 
     
     /**
-     * This function should be called only from ReadersEntry.finalize()
-     * 
-     * @param state The reader's state that we wish to remove from the ConcurrentLinkedQueue
+     * Removes the Reader's state of the current thread, so that the Writers
+     * no longer scan it. Must not be called while holding the read-lock.
+     * This is optional, the state is removed anyway when the thread
+     * terminates, but only after the GC finds it.
      */
-    protected void removeState(AtomicInteger state) {        
-        readersStateList.remove(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ.
-        readersStateArrayRef.set(null);
-        
-        // Paranoia: just in case someone forgot to call sharedUnlock()
-        // and there is a Writer waiting on that state.
-        state.set(SRWL_STATE_NOT_READING);
+    public void deregisterCurrentThread() {
+        readers.deregisterCurrentThread();
     }
-    
-    
+
+
     /**
      * Creates a new ReadersEntry instance for the current thread and
      * its associated AtomicInteger to store the state of the Reader
@@ -258,14 +225,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
      * {@code ReadersEntry}
      */
     private ReadersEntry addState() {
-        final AtomicInteger state = new AtomicInteger(SRWL_STATE_NOT_READING);
-        final ReadersEntry newEntry = new ReadersEntry(state); 
-        entry.set(newEntry);
-        readersStateList.add(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ.
-        readersStateArrayRef.set(null);
-        return newEntry;
+        return readers.register(new ReadersEntry(new AtomicInteger(SRWL_STATE_NOT_READING)));
     }
     
 
@@ -279,7 +239,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
      * the current thread yields until the write lock is released.
      */    
     public void sharedLock() {
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -319,7 +279,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
      * hold this lock.
      */    
     public void sharedUnlock() {
-        final ReadersEntry localEntry = entry.get();
+        final ReadersEntry localEntry = readers.get();
         if (localEntry==null) {
             // ERROR: Tried to unlock a non read-locked lock
             throw new IllegalMonitorStateException();
@@ -349,19 +309,11 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
         stampedLock.writeLock();
         
         // We can only do this after the stampedLock has been acquired
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            while (readerEntry.state.get() == SRWL_STATE_READING) {
                 Thread.yield();
             }
         }
@@ -401,7 +353,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
     * @return {@code true} if the read lock was acquired
     */
     public boolean sharedTryLock() {
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -445,7 +397,7 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
      */
     public boolean sharedTryLockNanos(long nanosTimeout) {
         final long lastTime = System.nanoTime();   
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -499,19 +451,11 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
         }
 
         // We can only do this after the stampedLock has been acquired
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            if (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            if (readerEntry.state.get() == SRWL_STATE_READING) {
                 stampedLock.asWriteLock().unlock();
                 return false;
             }
@@ -563,19 +507,11 @@ public class ScalableStampedRWLock implements ReadWriteLock, java.io.Serializabl
         }
                         
         // We can only do this after the stampedLock has been acquired
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            while (readerEntry.state.get() == SRWL_STATE_READING) {
                 if (System.nanoTime() - lastTime < nanosTimeout) {
                     Thread.yield();
                 } else { 
@@ -27,16 +27,16 @@
  */ 
 package com.concurrencyfreaks.locks;
  
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.StampedLock;
 
+import com.concurrencyfreaks.readindicators.ReaderRegistry;
+
 
 
 /** <h1> Scalable Stamped Reentrant Read-Write Lock </h1>
@@ -54,13 +54,14 @@ import java.util.concurrent.locks.StampedLock;
  * Threads attempting a read-lock for the first time are added to a list and
  * removed when the thread terminates, following the mechanism described below.
  * <p>
- * To manage the adding and removal of new Reader threads, we use a 
- * ConcurrentLinkedQueue instance named {@code readersStateList} containing all  
- * the references to ReadersEntry (Reader's states), which the Writer scans to 
- * determine if the Readers have completed or not. 
- * After a thread terminates, the {@code finalize()} of the associated 
- * {@code ReaderEntry} instance will be called, which will remove the
- * Reader's state reference from the {@code readersStateList}, to avoid memory leaking.
+ * To manage the adding and removal of new Reader threads, we use a
+ * ReaderRegistry instance named {@code readers} containing all the
+ * ReadersEntry (Reader's states) in a compact array, which the Writer scans
+ * to determine if the Readers have completed or not.
+ * After a thread terminates, its ReadersEntry is removed from the registry
+ * once the GC finds that its ThreadLocal entry is unreachable, to avoid memory
+ * leaking. A thread can also remove its ReadersEntry right away by calling
+ * {@link #deregisterCurrentThread()}.
  * <p>
  * Relatively to the ScalableRWLock implemented previously, we use a 
  * StampedLock instead of a regular lock so that we can default to the 
@@ -110,13 +111,12 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
     // Reader states
     private final static int SRWL_STATE_NOT_READING = 0;
     private final static int SRWL_STATE_READING     = 1;
-    private final static AtomicInteger[] dummyArray = new AtomicInteger[0];    
 
     /**
-     * List of Reader's states that the Writer will scan when attempting to
+     * Reader's states that the Writer will scan when attempting to
      * acquire the lock in write-mode
      */
-    private transient final ConcurrentLinkedQueue<AtomicInteger> readersStateList;
+    private transient final ReaderRegistry<ReadersEntry> readers;
     
     /**
      * Stamped lock that is used mostly as writer-lock
@@ -136,20 +136,6 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      */
     private transient long reentrantWriterCounter;
     
-    /**
-     * Thread-local reference to the current thread's ReadersEntry instance.
-     * It's from this instance that the current Reader thread is able
-     * to determine where to store its own state, and the number of reentrant
-     * read lock loops for that particular thread.
-     */
-    private transient final ThreadLocal<ReadersEntry> entry;
-    
-    /**
-     * Shortcut to the reader's states so that we don't have to walk the 
-     * ConcurrentLinkedQueue on every exclusiveLock().
-     */    
-    private transient final AtomicReference<AtomicInteger[]> readersStateArrayRef;
-    
     /**
      * The lock returned by method {@link ScalableReentrantRWLock#readLock}.
      */
@@ -162,8 +148,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
 
     
     /**
-     * Inner class that makes use of finalize() to remove the Reader's state 
-     * from the ConcurrentLinkedQueue {@code readersStateList}
+     * The Reader's state of a thread, kept in the ReaderRegistry
      */
     final class ReadersEntry {
         public final AtomicInteger state;
@@ -173,11 +158,6 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
         public ReadersEntry(AtomicInteger state) { 
             this.state = state;         
         }
-        
-        protected void finalize() throws Throwable {
-            removeState(state);
-            super.finalize();
-        }
     }    
 	
 	
@@ -230,13 +210,11 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      * Default constructor
      */
     public ScalableStampedReentrantRWLock() {	      		
-        // States of the Readers, one entry in the list per thread
-        readersStateList = new ConcurrentLinkedQueue<AtomicInteger>();        
+        // States of the Readers, one entry per thread
+        readers = new ReaderRegistry<ReadersEntry>(new ReadersEntry[0]);        
         stampedLock = new StampedLock();        
         writerOwner = new AtomicLong(SRWL_INVALID_TID);
         reentrantWriterCounter = 0;
-        entry = new ThreadLocal<ReadersEntry>();
-        readersStateArrayRef = new AtomicReference<AtomicInteger[]>(null);        
         readerLock = new ScalableStampedReentrantRWLock.InnerReadLock();
         writerLock = new ScalableStampedReentrantRWLock.InnerWriteLock();
     }
@@ -246,22 +224,16 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
 
     
     /**
-     * This function should be called only from ReadersEntry.finalize()
-     * 
-     * @param state The reader's state that we wish to remove from the ConcurrentLinkedQueue
+     * Removes the Reader's state of the current thread, so that the Writers
+     * no longer scan it. Must not be called while holding the read-lock.
+     * This is optional, the state is removed anyway when the thread
+     * terminates, but only after the GC finds it.
      */
-    protected void removeState(AtomicInteger state) {        
-        readersStateList.remove(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ.
-        readersStateArrayRef.set(null);
-        
-        // Paranoia: just in case someone forgot to call sharedUnlock()
-        // and there is a Writer waiting on that state.
-        state.set(SRWL_STATE_NOT_READING);
+    public void deregisterCurrentThread() {
+        readers.deregisterCurrentThread();
     }
-    
-    
+
+
     /**
      * Creates a new ReadersEntry instance for the current thread and
      * its associated AtomicInteger to store the state of the Reader
@@ -270,14 +242,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      * {@code ReadersEntry}
      */
     private ReadersEntry addState() {
-        final AtomicInteger state = new AtomicInteger(SRWL_STATE_NOT_READING);
-        final ReadersEntry newEntry = new ReadersEntry(state); 
-        entry.set(newEntry);
-        readersStateList.add(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ
-        readersStateArrayRef.set(null);
-        return newEntry;
+        return readers.register(new ReadersEntry(new AtomicInteger(SRWL_STATE_NOT_READING)));
     }
     
 
@@ -291,7 +256,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      * the current thread yields until the write lock is released.
      */    
     public void sharedLock() {
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -343,7 +308,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      * hold this lock.
      */    
     public void sharedUnlock() {
-        final ReadersEntry localEntry = entry.get();
+        final ReadersEntry localEntry = readers.get();
         if (localEntry==null || localEntry.reentrantReaderCount == 0) {
             // ERROR: Tried to unlock a non read-locked lock
             throw new IllegalMonitorStateException();
@@ -391,19 +356,11 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
         reentrantWriterCounter++;
                         
         // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            while (readerEntry.state.get() == SRWL_STATE_READING) {
                 Thread.yield();
             }
         }
@@ -453,7 +410,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
     * @return {@code true} if the read lock was acquired
     */
     public boolean sharedTryLock() {
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -514,7 +471,7 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
      */
     public boolean sharedTryLockNanos(long nanosTimeout) {
         final long lastTime = System.nanoTime();
-        ReadersEntry localEntry = entry.get();
+        ReadersEntry localEntry = readers.get();
         // Initialize a new Reader-state for this thread if needed         
         if (localEntry == null) {
             localEntry = addState();      
@@ -599,19 +556,11 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
         }
          
         // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            if (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            if (readerEntry.state.get() == SRWL_STATE_READING) {
                 stampedLock.asWriteLock().unlock();
                 return false;
             }
@@ -661,19 +610,11 @@ public class ScalableStampedReentrantRWLock implements ReadWriteLock, java.io.Se
         }
                         
         // We can only do this after writerOwner has been set to the current thread
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }         
+        final ReadersEntry[] localReadersStateArray = readers.getStates();
         
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == SRWL_STATE_READING) {
+        for (ReadersEntry readerEntry : localReadersStateArray) {
+            while (readerEntry.state.get() == SRWL_STATE_READING) {
                 if (System.nanoTime() - lastTime < nanosTimeout) {
                     Thread.yield();
                 } else { 
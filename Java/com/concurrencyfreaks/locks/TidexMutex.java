@@ -54,6 +54,15 @@ import java.util.concurrent.locks.Lock;
  * More details on this post:
  * <a href="http://concurrencyfreaks.com/2014/12/tidex-mutex.html">http://concurrencyfreaks.com/2014/12/tidex-mutex.html</a>
  * <p>
+ * A thread that has done the getAndSet() on ingress can't give up on
+ * acquiring the lock, because the next thread is waiting for its tid on
+ * egress. This is why lockInterruptibly() and tryLock(time, unit) are not
+ * supported: leaving the ingress/egress chain would need a wait queue like
+ * the one in AbstractQueuedSynchronizer, and that would take away the
+ * wait-free entry of lock(). Retrying tryLock() instead would let threads
+ * in lock() overtake the waiter forever.
+ * Conditions are supported with newCondition(), see LockCondition.
+ * <p>
  * TODO: Make a reentrant version
  * TODO: Use a spinning technique similar to the one on StampedLock
  * 
@@ -134,7 +143,6 @@ public class TidexMutex implements Lock {
 
     @Override
     public Condition newCondition() {
-        // Not supported
-        throw new UnsupportedOperationException();
+        return new LockCondition(this);
     }    
 }
@@ -29,21 +29,41 @@ package com.concurrencyfreaks.papers.LeftRight;
  */
 import java.lang.reflect.Field;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
 import sun.misc.Contended;
 
+import com.concurrencyfreaks.readindicators.ReaderRegistry;
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 /**
- * <h1>Left-Right pattern TreeSet with a CLQ</h1> 
+ * <h1>Left-Right pattern TreeSet with a ReaderRegistry</h1> 
  * A Thread-safe TreeSet data-structure that has 
  * Wait-Free-Population-Oblivious properties for contains(). 
  * <p> Follows the algorithm described in the paper of the Left-Right pattern, 
- * but uses a ConcurrentLinkedQueue to store the states of each Reader thread. 
- * The finalize() of the ReadersEntry class is responsible
- * to remove the corresponding entry in the CLQ whenever a thread terminates.
+ * but uses a ReaderRegistry to store the states of each Reader thread.
+ * The state of a thread is removed from the ReaderRegistry after the thread
+ * terminates and the GC finds it, or when the thread calls
+ * {@link #deregisterCurrentThread()}.
+ * <p>
+ * Striped mode: when created with {@link #LRScalableTreeSet(int)} the Readers
+ * don't have per-thread states. Instead, there is a fixed number of stripes,
+ * each with one counter per version on its own cache line, and each Reader
+ * increments and decrements the counter of the stripe selected by a hash of
+ * its thread id. The Writer scans numStripes counters for each version, no
+ * matter how many threads have done a contains(), which is what we want when
+ * there are many short-lived threads.
+ * <p>
+ * Packed mode: when created with {@link #LRScalableTreeSet(ThreadRegistry)}
+ * each Reader has its own pair of states, like with the ReaderRegistry, but
+ * they are in the same array as the stripes, at the index of the tid that the
+ * ThreadRegistry gave to the Reader's thread. A new Reader claims a free tid
+ * instead of making a new copy of the array of states, and the Writer scans
+ * the states sequentially up to the registry's high water mark. At most
+ * {@code registry.getMaxThreads()} threads can do a contains() at the same
+ * time, otherwise it throws IllegalStateException.
  * <p>
  *
  *
@@ -64,14 +84,20 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
     // States of versionIndex
     private final static int VERSION0 = 0;
     private final static int VERSION1 = 1;
-    private final State[] dummyArray = new State[0];
     private final TreeSet<E> leftTree;
     private final TreeSet<E> rightTree;
     private transient final AtomicInteger leftRight;
     private transient final AtomicLong versionIndex;
-    private transient final ConcurrentLinkedQueue<State> readersStateQ;
-    private transient final AtomicReference<State[]> readersStateArrayRef;
-    private transient final ThreadLocal<ReadersEntry> entry;
+    private transient final ReaderRegistry<State> readers;
+
+    // Size of a cache line in ints
+    private static final int CACHE_LINE = 64/4;
+    // Counters for striped mode, or Reader's states indexed by tid for
+    // packed mode, or null if using the ReaderRegistry
+    private transient final AtomicIntegerArray stripes;
+    private transient final int numStripes;
+    // Hands out the tids for packed mode, or null
+    private transient final ThreadRegistry registry;
 
     /**
      * Inner class for the state of the Reader
@@ -90,24 +116,6 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
         }
     }
 
-    /**
-     * Inner class that makes use of finalize() to remove the Reader's state
-     * from the ConcurrentLinkedQueue {@code readersStateQ}
-     */
-    private class ReadersEntry {
-
-        final State st;
-
-        public ReadersEntry(State state) {
-            this.st = state;
-        }
-
-        protected void finalize() throws Throwable {
-            removeState(st);
-            super.finalize();
-        }
-    }
-
     /**
      * Default constructor.
      */
@@ -120,53 +128,123 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
         versionIndex = new AtomicLong(VERSION0);
 
         // Stores the Reader's state for each thread
-        readersStateQ = new ConcurrentLinkedQueue<State>();
+        readers = new ReaderRegistry<State>(new State[0]);
 
-        readersStateArrayRef = new AtomicReference<State[]>(null);
+        stripes = null;
+        numStripes = 0;
+        registry = null;
+    }
 
-        entry = new ThreadLocal<ReadersEntry>();
+    /**
+     * Constructor for striped mode.
+     *
+     * @param numStripes number of stripes, will be rounded up to a power of 2
+     */
+    public LRScalableTreeSet(int numStripes) {
+        if (numStripes <= 0) throw new IllegalArgumentException();
+        leftTree = new TreeSet<E>();
+        rightTree = new TreeSet<E>();
+        leftRight = new AtomicInteger(READS_ON_LEFT);
+        versionIndex = new AtomicLong(VERSION0);
+        readers = null;
+        this.numStripes = numStripes == 1 ? 1 : Integer.highestOneBit(numStripes-1) << 1;
+        // Each stripe has the counter for VERSION0 and then the one for VERSION1
+        stripes = new AtomicIntegerArray(this.numStripes*2*CACHE_LINE);
+        registry = null;
     }
 
     /**
-     * This function should be called only from ReadersEntry.finalize()
+     * Constructor for packed mode.
      *
-     * @param state The reader's states that we wish to remove from the
-     * ConcurrentLinkedQueues
+     * @param registry Hands out the tids of the Readers. Can be shared with
+     * other instances.
+     */
+    public LRScalableTreeSet(ThreadRegistry registry) {
+        leftTree = new TreeSet<E>();
+        rightTree = new TreeSet<E>();
+        leftRight = new AtomicInteger(READS_ON_LEFT);
+        versionIndex = new AtomicLong(VERSION0);
+        readers = null;
+        this.registry = registry;
+        numStripes = registry.getMaxThreads();
+        // Same layout as the stripes, the state for VERSION0 and then the one for VERSION1
+        stripes = new AtomicIntegerArray(numStripes*2*CACHE_LINE);
+    }
+
+    /**
+     * An imprecise but fast hash function (by George Marsaglia).
+     * Returns the index in stripes[] of the VERSION0 counter for the current thread.
+     * In packed mode, returns the index of the VERSION0 state of the current thread.
      */
-    protected void removeState(State state) {
-        // We don't need to lock in exclusive mode thanks to the GC
-        readersStateQ.remove(state);
-        readersStateArrayRef.set(null);
+    private int stripeIndex() {
+        if (registry != null) return registry.getTid()*2*CACHE_LINE;
+        long x = Thread.currentThread().getId();
+        x ^= (x << 21);
+        x ^= (x >>> 35);
+        x ^= (x << 4);
+        return (int)(((numStripes-1) & x)*2*CACHE_LINE);
     }
 
     /**
-     * Creates a new ReadersEntry instance for the current thread and its
-     * associated State to store the state of the Reader
+     * Yield while there are Readers on any of the stripes of the given version
      */
-    private ReadersEntry addState() {
-        final State state = new State(STATE_NOT_READING, STATE_NOT_READING);
-        final ReadersEntry newEntry = new ReadersEntry(state);
-        entry.set(newEntry);
-        readersStateQ.add(state);
-        readersStateArrayRef.set(null);
-        return newEntry;
+    private void waitForStripes(final int localVersionIndex) {
+        // In packed mode, no tid above the high water mark was handed out
+        final int length = (registry == null ? numStripes : registry.getHighWaterMark())*2*CACHE_LINE;
+        for (int idx = localVersionIndex*CACHE_LINE; idx < length; idx += 2*CACHE_LINE) {
+            while (stripes.get(idx) != 0) {
+                Thread.yield();
+            }
+        }
     }
 
     /**
-     * The array readersStateArrayRef will only be rebuild if a new thread is
-     * added or removed
+     * contains() for striped mode and packed mode
      */
-    private State[] rebuildArrayIfNeeded() {
-        State[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateQ 
-            readersStateArrayRef.set(dummyArray);
-            // Copy the elements in readersStateQ to an array
-            localReadersStateArray =
-                    readersStateQ.toArray(new State[readersStateQ.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);
+    private boolean stripedContains(E elem, final int localVersionIndex) {
+        final int idx = stripeIndex() + localVersionIndex*CACHE_LINE;
+        if (registry != null) {
+            stripes.set(idx, STATE_READING);
+        } else {
+            stripes.getAndIncrement(idx);
+        }
+        try {
+            // Order is important: The leftRight value can only be read _after_
+            // the counter has been incremented.
+            if (leftRight.get() == READS_ON_LEFT) {
+                return leftTree.contains(elem);
+            } else {
+                return rightTree.contains(elem);
+            }
+        } finally {
+            if (registry != null) {
+                stripes.set(idx, STATE_NOT_READING);
+            } else {
+                stripes.getAndDecrement(idx);
+            }
         }
-        return localReadersStateArray;
+    }
+
+    /**
+     * Removes the Reader's state of the current thread, so that the Writers
+     * no longer scan it. Must not be called during a contains().
+     * This is optional, the state is removed anyway when the thread
+     * terminates, but only after the GC finds it.
+     * In packed mode this gives back the tid of the current thread to the
+     * registry, which may be shared with other instances.
+     */
+    public void deregisterCurrentThread() {
+        if (readers != null) readers.deregisterCurrentThread();
+        if (registry != null) registry.release();
+    }
+
+    /**
+     * Returns the State of the current thread, registering a new one if needed
+     */
+    private State getState() {
+        final State state = readers.get();
+        if (state != null) return state;
+        return readers.register(new State(STATE_NOT_READING, STATE_NOT_READING));
     }
 
     /**
@@ -176,7 +254,14 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
      * called.
      */
     private void toggleVersionAndScan() {
-        State[] localReadersStateArray = rebuildArrayIfNeeded();
+        if (stripes != null) {
+            final long localVersionIndex = versionIndex.get();
+            waitForStripes((int)((localVersionIndex+1) % 2));
+            versionIndex.set(localVersionIndex+1);
+            waitForStripes((int)(localVersionIndex % 2));
+            return;
+        }
+        final State[] localReadersStateArray = readers.getStates();
         final long localVersionIndex = versionIndex.get();
         final int prevVersionIndex = (int)(localVersionIndex % 2);
         final int nextVersionIndex = (int)((localVersionIndex+1) % 2);
@@ -225,19 +310,16 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
      * {@code null} if this map contains no mapping for the key.
      */
     public boolean contains(E elem) {
-        ReadersEntry localReadersEntry = entry.get();
-        // Initialize a new Reader-state for this thread if needed         
-        if (localReadersEntry == null) {
-            localReadersEntry = addState();
-        }
+        if (stripes != null) return stripedContains(elem, (int)(versionIndex.get()%2));
+        final State localState = getState();
         boolean retValue;
         long localVersionIndex = versionIndex.get()%2;
         try {
             // Set the current Reader's state to READING
             if (localVersionIndex == VERSION0) {
-                localReadersEntry.st.v0State = STATE_READING;
+                localState.v0State = STATE_READING;
             } else {
-                localReadersEntry.st.v1State = STATE_READING;
+                localState.v1State = STATE_READING;
             }
 
             // Read the up-to-date value of leftRight.
@@ -252,9 +334,9 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
             // In the extreme event that TreeSet.contains() throws an exception, 
             // we want to make sure that no Writer is left hanging.
             if (localVersionIndex == VERSION0) {
-                localReadersEntry.st.v0State = STATE_NOT_READING;
+                localState.v0State = STATE_NOT_READING;
             } else {
-                localReadersEntry.st.v1State = STATE_NOT_READING;
+                localState.v1State = STATE_NOT_READING;
             }
         }
         return retValue;
@@ -292,18 +374,15 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
             return false;
         }
 
-        ReadersEntry localReadersEntry = entry.get();
-        // Initialize a new Reader-state for this thread if needed         
-        if (localReadersEntry == null) {
-            localReadersEntry = addState();
-        }
+        if (stripes != null) return stripedContains(elem, (int)(lVersionIndex%2));
+        final State localState = getState();
         localVersionIndex = lVersionIndex % 2;
         try {
             // Set the current Reader's state to READING
             if (localVersionIndex == VERSION0) {
-                localReadersEntry.st.v0State = STATE_READING;
+                localState.v0State = STATE_READING;
             } else {
-                localReadersEntry.st.v1State = STATE_READING;
+                localState.v1State = STATE_READING;
             }
 
             // Read the up-to-date value of leftRight.
@@ -318,9 +397,9 @@ public class LRScalableTreeSet<E> implements java.io.Serializable {
             // In the extreme event that TreeSet.contains() throws an exception, 
             // we want to make sure that no Writer is left hanging.
             if (localVersionIndex == VERSION0) {
-                localReadersEntry.st.v0State = STATE_NOT_READING;
+                localState.v0State = STATE_NOT_READING;
             } else {
-                localReadersEntry.st.v1State = STATE_NOT_READING;
+                localState.v1State = STATE_NOT_READING;
             }
         }
         return retValue;
@@ -0,0 +1,148 @@
+package com.concurrencyfreaks.queues;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+
+/**
+ * This is a performance benchmark of LindenJonssonPriorityQueue against
+ * PriorityBlockingQueue and ConcurrentSkipListMap.pollFirstEntry()
+ *
+ * The queue starts with PREFILL items and each thread alternates between
+ * inserting an item with a random priority and removing the smallest one,
+ * so the size of the queue stays roughly the same. The keys are unique,
+ * with the random priority in the upper bits and the tid and a per-thread
+ * sequence in the lower bits, because ConcurrentSkipListMap doesn't allow
+ * duplicate keys.
+ */
+public class BenchmarkPriorityQueues {
+
+    public enum TestCase {
+        LindenJonssonPriorityQueue,
+        PriorityBlockingQueue,
+        ConcurrentSkipListMap,
+    }
+
+    private final static int PREFILL = 10000;
+    private final static int PRIORITY_BITS = 20;
+
+    private final int numMilis;
+    private final WorkerThread[] workerThreads;
+    private LindenJonssonPriorityQueue<Long> ljpq;
+    private PriorityBlockingQueue<Long> pbq;
+    private ConcurrentSkipListMap<Long,Long> cslm;
+
+
+    public BenchmarkPriorityQueues(int numThreads, int numMilis) {
+        this.numMilis = numMilis;
+        workerThreads = new WorkerThread[numThreads];
+        System.out.println("----- Performance tests numThreads=" +numThreads+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numThreads, type);
+        System.out.println();
+    }
+
+
+    static long makeKey(int tid, int seq) {
+        final long priority = ThreadLocalRandom.current().nextInt(1 << PRIORITY_BITS);
+        return (priority << 40) | ((long)(tid & 0xFF) << 32) | (seq & 0xFFFFFFFFL);
+    }
+
+
+    public void singleTest(int numThreads, TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        ljpq = null;
+        pbq = null;
+        cslm = null;
+        switch (type) {
+        case LindenJonssonPriorityQueue: ljpq = new LindenJonssonPriorityQueue<Long>(); break;
+        case PriorityBlockingQueue:      pbq = new PriorityBlockingQueue<Long>(); break;
+        case ConcurrentSkipListMap:      cslm = new ConcurrentSkipListMap<Long,Long>(); break;
+        }
+        // The prefill uses tid 255, which the worker threads don't
+        for (int i = 0; i < PREFILL; i++) {
+            final Long key = makeKey(255, i);
+            switch (type) {
+            case LindenJonssonPriorityQueue: ljpq.enqueue(key); break;
+            case PriorityBlockingQueue:      pbq.offer(key); break;
+            case ConcurrentSkipListMap:      cslm.put(key, key); break;
+            }
+        }
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(type, i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        for (int i = 0; i < numThreads; i++) numOps += workerThreads[i].numOps;
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis));
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final TestCase type;
+        final int tid;
+        volatile boolean quit = false;
+        long numOps = 0;
+
+        public WorkerThread(TestCase type, int tid) {
+            this.type = type;
+            this.tid = tid;
+        }
+
+        public void run() {
+            int seq = 0;
+            while (!quit) {
+                final Long key = makeKey(tid, seq++);
+                switch (type) {
+                case LindenJonssonPriorityQueue:
+                    ljpq.enqueue(key);
+                    ljpq.dequeue();
+                    break;
+                case PriorityBlockingQueue:
+                    pbq.offer(key);
+                    pbq.poll();
+                    break;
+                case ConcurrentSkipListMap:
+                    cslm.put(key, key);
+                    cslm.pollFirstEntry();
+                    break;
+                }
+                numOps += 2;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> threadList = new LinkedList<Integer>(Arrays.asList(1, 2, 4, 8, 16, 32, 64));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        for (Integer nThreads : threadList) {
+            new BenchmarkPriorityQueues(nThreads, 10000);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+        }
+    }
+}
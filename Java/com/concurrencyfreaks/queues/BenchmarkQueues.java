@@ -0,0 +1,315 @@
+package com.concurrencyfreaks.queues;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import com.concurrencyfreaks.queues.array.FAAArrayQueue;
+import com.concurrencyfreaks.queues.array.FAABoundedArrayQueue;
+import com.concurrencyfreaks.queues.array.LCRQueue;
+import com.concurrencyfreaks.queues.array.LazyIndexArrayQueue;
+import com.concurrencyfreaks.queues.array.LinearArrayQueue;
+import com.concurrencyfreaks.queues.array.Log2ArrayQueue;
+import com.concurrencyfreaks.queues.array.MPSCArrayQueue;
+import com.concurrencyfreaks.queues.array.SPSCArrayQueue;
+
+
+
+/**
+ * This is a performance benchmark of the queues that implement IQueue
+ *
+ * Each thread does a burst of burstSize enqueues followed by a burst of
+ * burstSize dequeues, in one of two modes:
+ *
+ * PerItem:
+ * Calls enqueue() and dequeue() once for each item in the burst.
+ *
+ * Batched:
+ * Calls enqueueAll() and dequeueInto() once for the whole burst. Queues that
+ * don't override these methods use the default in IQueue, which is
+ * the same as PerItem.
+ *
+ * When started with -Dcom.concurrencyfreaks.queues.stats=true, the
+ * histograms of helping iterations of CRTurnQueue and CRSimQueue are shown
+ * after their throughput.
+ *
+ * The TestCases that end in Recycle are the array queues created with
+ * recycleNodes=true.
+ *
+ * Single-consumer queues (SPSCArrayQueue and MPSCArrayQueue) can't have all
+ * threads dequeueing, so with more than one thread, thread 0 is the consumer
+ * and all the others are producers, which stop enqueueing when they are
+ * more than MAX_BACKLOG items ahead of the consumer. SPSCArrayQueue only
+ * runs with one or two threads.
+ */
+public class BenchmarkQueues {
+
+    public enum TestCase {
+        FAAArrayQueue,
+        BlockingFAAArrayQueue,
+        FAABoundedArrayQueue,
+        LinearArrayQueue,
+        LazyIndexArrayQueue,
+        Log2ArrayQueue,
+        FAAArrayQueueRecycle,
+        LinearArrayQueueRecycle,
+        LazyIndexArrayQueueRecycle,
+        Log2ArrayQueueRecycle,
+        LCRQueue,
+        CRTurnQueue,
+        CRSimQueue,
+        EncapsulatorQueue,
+        EncapsulatorFastQueue,
+        CRDoubleLinkQueue,
+        BitNextQueue,
+        BitNextLazyHeadQueue,
+        MichaelScottQueue,
+        MichaelScottQueueHP,
+        KoganPetrankQueue,
+        KoganPetrankNoSLQueue,
+        SPSCArrayQueue,
+        MPSCArrayQueue,
+    }
+
+    public enum TestKind {
+        PerItem,
+        Batched,
+    }
+
+    // Must be larger than numThreads*burstSize or the enqueuers may block forever
+    private final static int BOUNDED_CAPACITY = 64*1024;
+
+    // How far ahead of the consumer the producers of single-consumer queues can go
+    private final static int MAX_BACKLOG = 64*1024;
+
+    private final int numMilis;
+    private final int burstSize;
+    private final WorkerThread[] workerThreads;
+    private IQueue<UserData> queue;
+    // Number of items dequeued by the consumer of a single-consumer queue
+    private volatile long numConsumed = 0;
+
+
+    public BenchmarkQueues(int numThreads, int numMilis, int burstSize) {
+        this.numMilis = numMilis;
+        this.burstSize = burstSize;
+        workerThreads = new WorkerThread[numThreads];
+
+        System.out.println("----- Performance tests numThreads=" +numThreads+"  burstSize="+burstSize+" -----");
+        for (TestKind kind : TestKind.values()) {
+            for (TestCase type : TestCase.values()) singleTest(numThreads, type, kind);
+        }
+        System.out.println();
+    }
+
+
+    static <T> IQueue<T> createQueue(TestCase type) {
+        switch (type) {
+        case FAAArrayQueue:       return new FAAArrayQueue<T>();
+        case BlockingFAAArrayQueue: return new BlockingIQueue<T>(new FAAArrayQueue<T>());
+        case FAABoundedArrayQueue: return new FAABoundedArrayQueue<T>(BOUNDED_CAPACITY);
+        case LinearArrayQueue:    return new LinearArrayQueue<T>();
+        case LazyIndexArrayQueue: return new LazyIndexArrayQueue<T>();
+        case Log2ArrayQueue:      return new Log2ArrayQueue<T>();
+        case FAAArrayQueueRecycle:       return new FAAArrayQueue<T>(true);
+        case LinearArrayQueueRecycle:    return new LinearArrayQueue<T>(true);
+        case LazyIndexArrayQueueRecycle: return new LazyIndexArrayQueue<T>(true);
+        case Log2ArrayQueueRecycle:      return new Log2ArrayQueue<T>(true);
+        case LCRQueue:            return new LCRQueue<T>();
+        case CRTurnQueue:         return new CRTurnQueue<T>();
+        case CRSimQueue:          return new CRSimQueue<T>();
+        case EncapsulatorQueue:   return new EncapsulatorQueue<T>();
+        case EncapsulatorFastQueue: return new EncapsulatorFastQueue<T>();
+        case CRDoubleLinkQueue:   return new CRDoubleLinkQueue<T>();
+        case BitNextQueue:        return new BitNextQueue<T>();
+        case BitNextLazyHeadQueue: return new BitNextLazyHeadQueue<T>();
+        case MichaelScottQueue:   return new MichaelScottQueue<T>();
+        case MichaelScottQueueHP: return new MichaelScottQueue<T>(true);
+        case KoganPetrankQueue:   return new KoganPetrankQueue<T>();
+        case KoganPetrankNoSLQueue: return new KoganPetrankNoSLQueue<T>();
+        case SPSCArrayQueue:      return new SPSCArrayQueue<T>();
+        case MPSCArrayQueue:      return new MPSCArrayQueue<T>();
+        }
+        return null;
+    }
+
+
+    /**
+     * Shows the helping iterations of the queues that record them
+     */
+    private void printStats() {
+        if (queue instanceof CRTurnQueue) {
+            System.out.println("    enqueue iterations: "+((CRTurnQueue<UserData>)queue).getEnqueueStats());
+            System.out.println("    dequeue iterations: "+((CRTurnQueue<UserData>)queue).getDequeueStats());
+        } else if (queue instanceof CRSimQueue) {
+            System.out.println("    enqueue iterations: "+((CRSimQueue<UserData>)queue).getEnqueueStats());
+            System.out.println("    dequeue iterations: "+((CRSimQueue<UserData>)queue).getDequeueStats());
+        }
+    }
+
+
+    /**
+     * Returns true if at most one thread at a time can call dequeue()
+     */
+    static boolean isSingleConsumer(TestCase type) {
+        return type == TestCase.SPSCArrayQueue || type == TestCase.MPSCArrayQueue;
+    }
+
+
+    /**
+     * Returns the maximum number of threads, or zero if there is no limit
+     */
+    static int maxThreads(TestCase type) {
+        return type == TestCase.SPSCArrayQueue ? 2 : 0;
+    }
+
+
+    public void singleTest(int numThreads, TestCase type, TestKind kind) {
+        // If we see an error here just increase the number of spaces
+        String testName = type.toString() + "-" + kind.toString();
+        String indentedName = testName + "                                  ".substring(testName.length());
+        System.out.print("##### "+indentedName+" #####  ");
+        if (maxThreads(type) != 0 && numThreads > maxThreads(type)) {
+            System.out.println("skipped");
+            return;
+        }
+        queue = createQueue(type);
+        numConsumed = 0;
+
+        // Create the threads and then start them all in one go
+        final boolean split = isSingleConsumer(type) && numThreads > 1;
+        for (int i = 0; i < numThreads; i++) {
+            final Role role = !split ? Role.Both : (i == 0 ? Role.Consumer : Role.Producer);
+            workerThreads[i] = new WorkerThread(kind, role, i, numThreads-1);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        for (int i = 0; i < numThreads; i++) numOps += workerThreads[i].numOps;
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis));
+        if (QueueStats.ENABLED) printStats();
+    }
+
+
+    /**
+     * Inner class for user's data that will be put in the queues
+     */
+    public class UserData {
+        public int a = 1;
+        public int b = 2;
+    }
+
+
+    enum Role {
+        Both,
+        Producer,
+        Consumer,
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final TestKind kind;
+        final Role role;
+        final int tid;
+        final int numProducers;
+        volatile boolean quit = false;
+        long numOps = 0;
+
+        public WorkerThread(TestKind kind, Role role, int tid, int numProducers) {
+            this.kind = kind;
+            this.role = role;
+            this.tid = tid;
+            this.numProducers = numProducers;
+        }
+
+        public void run() {
+            final UserData[] items = new UserData[burstSize];
+            final UserData[] dst = new UserData[burstSize];
+            for (int i = 0; i < burstSize; i++) {
+                items[i] = new UserData();
+                items[i].a = tid;
+                items[i].b = i;
+            }
+
+            switch (role) {
+            case Both:     runBoth(items, dst); break;
+            case Producer: runProducer(items); break;
+            case Consumer: runConsumer(dst); break;
+            }
+        }
+
+        private void runBoth(UserData[] items, UserData[] dst) {
+            while (!quit) {
+                if (kind == TestKind.Batched) {
+                    queue.enqueueAll(items, 0, burstSize);
+                    int numDeqs = 0;
+                    while (numDeqs < burstSize) numDeqs += queue.dequeueInto(dst, burstSize-numDeqs);
+                } else {
+                    for (int i = 0; i < burstSize; i++) queue.enqueue(items[i]);
+                    for (int i = 0; i < burstSize; i++) {
+                        while (queue.dequeue() == null);
+                    }
+                }
+                numOps += 2*burstSize;
+            }
+        }
+
+        private void runProducer(UserData[] items) {
+            while (!quit) {
+                // Assume the other producers are going at the same rate as this one
+                if (numOps*numProducers - numConsumed > MAX_BACKLOG) {
+                    Thread.yield();
+                    continue;
+                }
+                if (kind == TestKind.Batched) {
+                    queue.enqueueAll(items, 0, burstSize);
+                } else {
+                    for (int i = 0; i < burstSize; i++) queue.enqueue(items[i]);
+                }
+                numOps += burstSize;
+            }
+        }
+
+        private void runConsumer(UserData[] dst) {
+            while (!quit) {
+                if (kind == TestKind.Batched) {
+                    numOps += queue.dequeueInto(dst, burstSize);
+                } else {
+                    for (int i = 0; i < burstSize; i++) {
+                        if (queue.dequeue() != null) numOps++;
+                    }
+                }
+                numConsumed = numOps;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> threadList = new LinkedList<Integer>(Arrays.asList(1, 2, 4, 8, 16, 32));
+        LinkedList<Integer> burstList = new LinkedList<Integer>(Arrays.asList(1, 32, 128));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        for (Integer burstSize : burstList) {
+            for (Integer nThreads : threadList) {
+                new BenchmarkQueues(nThreads, 10000, burstSize);
+                Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+            }
+        }
+    }
+}
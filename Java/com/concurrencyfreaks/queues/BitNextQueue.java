@@ -0,0 +1,240 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.lang.reflect.Field;
+
+
+/**
+ * <h1> Bit Next Queue </h1>
+ *
+ * A Java port of CPP/queues/BitNextQueue.hpp, a lock-free queue that uses a
+ * trick similar to Tim Harris's lock-free list of setting a bit on the
+ * "next" of the node.
+ * Based on the paper "BitNext - A Lock-Free Queue"
+ * https://github.com/pramalhe/ConcurrencyFreaks/tree/master/papers/bitnext-2016.pdf
+ *
+ * <br> enqueue algorithm: bit-next, based on the trick of the bit on the next like on Maged-Harris list
+ * <br> dequeue algorithm: bit-next, based on the trick of the bit on the next like on Maged-Harris list
+ * <br> Consistency: Linearizable
+ * <br> enqueue() progress: lock-free
+ * <br> dequeue() progress: lock-free
+ * <br> Memory Reclamation: GC
+ * <br> Uncontended enqueue: 2 CAS
+ * <br> Uncontended dequeue: 2 CAS
+ * <p>
+ * A dequeue() marks the node that has the item as "logically removed" by
+ * setting the mark on node.next. The head points to the first node that
+ * has not been logically removed, unless that would be past the last node,
+ * in which case it points to the last (removed) node. An enqueue() can't
+ * insert after a node whose next is marked, except when it's the last node.
+ * <p>
+ * Java has no pointer tagging, so a marked next is a Marker node that points
+ * to the actual successor, like in java.util.concurrent.ConcurrentSkipListMap.
+ * Marked null is the shared MARKED_NULL instance. Each successful dequeue()
+ * allocates one Marker, unless it takes the last node.
+ * The tail can be left on a node that was already dequeued, which enqueuers
+ * then read, so unlike other queues in this package we can't do self-linking.
+ * The dequeued item is cleared from its node instead, so that it isn't kept
+ * reachable for as long as the node is.
+ * <p>
+ * The C++ version bounds the insertion retries by maxThreads, which in Java
+ * we don't need to know: the loop is still lock-free without the bound.
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class BitNextQueue<E> implements IQueue<E> {
+
+    static class Node<E> {
+        E item;                  // Cleared by the dequeuer, after reading it
+        volatile Node<E> next;
+
+        Node(E item) {
+            this.item = item;
+        }
+
+        boolean casNext(Node<E> cmp, Node<E> val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        // Only used on nodes that aren't published yet, the CAS that publishes them is a full barrier
+        void relaxedNext(Node<E> val) {
+            UNSAFE.putObject(this, nextOffset, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    /**
+     * A marked reference to succ. It is only ever seen in node.next
+     */
+    static final class Marker<E> extends Node<E> {
+        final Node<E> succ;
+
+        Marker(Node<E> succ) {
+            super(null);
+            this.succ = succ;
+        }
+    }
+
+    private static final Marker<?> MARKED_NULL = new Marker<Object>(null);
+
+    @sun.misc.Contended
+    private volatile Node<E> head;
+    @sun.misc.Contended
+    private volatile Node<E> tail;
+
+
+    public BitNextQueue() {
+        final Node<E> sentinelNode = new Node<E>(null);
+        // The sentinel is already "logically removed"
+        sentinelNode.next = getMarked(null);
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    private static <E> boolean isMarked(Node<E> ref) {
+        return ref instanceof Marker;
+    }
+
+    private static <E> Node<E> getUnmarked(Node<E> ref) {
+        return ref instanceof Marker ? ((Marker<E>)ref).succ : ref;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Node<E> getMarked(Node<E> ref) {
+        return ref == null ? (Node<E>)MARKED_NULL : new Marker<E>(ref);
+    }
+
+
+    /**
+     * Progress Condition: lock-free
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        final Node<E> newNode = new Node<E>(item);
+        Node<E> newNodeMark = null;
+        while (true) {
+            final Node<E> ltail = tail;
+            Node<E> lnext = ltail.next;
+            if (getUnmarked(lnext) != null) {         // Advance the tail first
+                casTail(ltail, getUnmarked(lnext));   // "tail" is always unmarked
+            } else {
+                for (int i = 0; i < 2; i++) {
+                    // lnext here is either null or MARKED_NULL
+                    if (isMarked(lnext) && newNodeMark == null) newNodeMark = getMarked(newNode);
+                    newNode.relaxedNext(null);
+                    if (ltail.casNext(lnext, isMarked(lnext) ? newNodeMark : newNode)) {
+                        casTail(ltail, newNode);
+                        return;
+                    }
+                    lnext = ltail.next;
+                    if (getUnmarked(lnext) != null) {
+                        casTail(ltail, getUnmarked(lnext));
+                        break;
+                    }
+                }
+            }
+            while (true) {
+                lnext = ltail.next;
+                // This node has been dequeued, must re-read tail
+                if (isMarked(lnext)) break;
+                newNode.relaxedNext(lnext);
+                if (ltail.casNext(lnext, newNode)) return;
+            }
+        }
+    }
+
+
+    /**
+     * Progress Condition: lock-free
+     *
+     * @return the item at the head of the queue or {@code null} if the queue is empty
+     */
+    public E dequeue() {
+        while (true) {
+            final Node<E> lhead = head;
+            final Node<E> lnext = lhead.next;
+            if (isMarked(lnext)) {
+                // This one is marked, help advance the head and go for the next node
+                final Node<E> succ = getUnmarked(lnext);
+                if (succ == null) return null;  // Don't advance head if this is already the last node
+                casHead(lhead, succ);
+                continue;
+            }
+            // By now we are certain lnext is not marked
+            if (lhead.casNext(lnext, getMarked(lnext))) {
+                final E item = lhead.item;
+                lhead.item = null;
+                return item;
+            }
+        }
+    }
+
+
+    private boolean casTail(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    private boolean casHead(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    private static final long headOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(BitNextQueue.class.getDeclaredField("tail"));
+            headOffset = UNSAFE.objectFieldOffset(BitNextQueue.class.getDeclaredField("head"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * <h1> Blocking IQueue </h1>
+ *
+ * An adapter that adds blocking to any (unbounded) IQueue, so that
+ * consumers can wait with take() or poll(timeout) instead of spinning on
+ * dequeue() while the queue is empty.
+ *
+ * Consumers that find the queue empty spin for MAX_SPINS attempts and then
+ * register themselves in a waiter registry: they increment numWaiters, add
+ * their Thread to a list, check the queue once more, and park.
+ * Producers enqueue on the underlying queue and then do a single volatile
+ * read of numWaiters. If it's zero, which is always the case when no
+ * consumer is waiting, that's all the extra work there is. Otherwise, they
+ * unpark the first waiter in the list.
+ * A lost wake-up is not possible: both the increment of numWaiters and the
+ * enqueue on the underlying queue are sequentially consistent, so either the
+ * consumer sees the item on its last check, or the producer sees numWaiters
+ * as non-zero.
+ * Several producers may unpark the same waiter, and a waiter may time out
+ * after being unparked. To make sure that items are not left in the queue
+ * while consumers stay parked, a waiter that leaves the registry unparks
+ * the next waiter, if there is one.
+ *
+ * The methods have the same names and semantics as in
+ * java.util.concurrent.BlockingQueue, but this adapter doesn't implement
+ * BlockingQueue. The underlying queue can't tell if it is empty or how many
+ * items it has without removing them, so this adapter could only implement
+ * the Collection methods (size(), isEmpty(), iterator(), contains(),
+ * toString(), etc) by counting the items on each enqueue and dequeue, which
+ * would make the path with no waiters slower than the raw queue.
+ * Only put(), offer(), take(), poll() and drainTo() are provided.
+ *
+ * put()/offer() progress: same as enqueue() of the underlying queue
+ * poll() progress: same as dequeue() of the underlying queue
+ * take() progress: blocking
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class BlockingIQueue<E> implements IQueue<E> {
+
+    static final int MAX_SPINS = 100;
+
+    private final IQueue<E> queue;
+
+    // Number of threads in the waiters list (or about to be)
+    @sun.misc.Contended
+    private volatile int numWaiters = 0;
+
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+
+    /**
+     * @param queue the queue where the items are kept. It must not be accessed
+     * directly while it's being used through this adapter, or consumers may
+     * stay parked while there are items in it.
+     */
+    public BlockingIQueue(IQueue<E> queue) {
+        if (queue == null) throw new NullPointerException();
+        this.queue = queue;
+    }
+
+
+    /**
+     * Wakes up the first thread in the waiters list, if any
+     */
+    private void signalWaiter() {
+        final Thread waiter = waiters.peek();
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+
+    private void register(Thread thread) {
+        UNSAFE.getAndAddInt(this, numWaitersOffset, 1);
+        waiters.add(thread);
+    }
+
+
+    private void deregister(Thread thread) {
+        waiters.remove(thread);
+        UNSAFE.getAndAddInt(this, numWaitersOffset, -1);
+        // Pass on the wake-up, we may have been signaled for an item that we didn't take
+        if (numWaiters != 0) signalWaiter();
+    }
+
+
+    /**
+     * Waits until there is an item or until the deadline
+     *
+     * @param timed if false, deadline is ignored and we wait forever
+     * @return the item, or null if the deadline passed
+     */
+    private E awaitItem(boolean timed, long deadline) throws InterruptedException {
+        E item;
+        for (int spins = 0; spins < MAX_SPINS; spins++) {
+            if ((item = queue.dequeue()) != null) return item;
+        }
+        final Thread thread = Thread.currentThread();
+        register(thread);
+        while (true) {
+            if ((item = queue.dequeue()) != null) {
+                deregister(thread);
+                return item;
+            }
+            if (Thread.interrupted()) {
+                deregister(thread);
+                throw new InterruptedException();
+            }
+            if (timed) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    deregister(thread);
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+
+    /**
+     * Progress Condition: same as the underlying queue's enqueue()
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        queue.enqueue(item);
+        if (numWaiters != 0) signalWaiter();
+    }
+
+
+    public void enqueueAll(E[] items, int off, int len) {
+        queue.enqueueAll(items, off, len);
+        if (numWaiters != 0) signalWaiter();
+    }
+
+
+    /**
+     * Doesn't block.
+     *
+     * @return the item at the head of the queue or {@code null} if the queue is empty
+     */
+    public E dequeue() {
+        return queue.dequeue();
+    }
+
+
+    public int dequeueInto(E[] dst, int max) {
+        return queue.dequeueInto(dst, max);
+    }
+
+
+    public boolean offer(E item) {
+        enqueue(item);
+        return true;
+    }
+
+
+    public void put(E item) {
+        enqueue(item);
+    }
+
+
+    public E poll() {
+        return queue.dequeue();
+    }
+
+
+    public E take() throws InterruptedException {
+        final E item = queue.dequeue();
+        if (item != null) return item;
+        return awaitItem(false, 0);
+    }
+
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final E item = queue.dequeue();
+        if (item != null) return item;
+        return awaitItem(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        int n = 0;
+        E item;
+        while (n < maxElements && (item = queue.dequeue()) != null) {
+            c.add(item);
+            n++;
+        }
+        return n;
+    }
+
+
+    /**
+     * Number of consumers currently parked (or about to park) on this queue
+     */
+    public int getNumWaiters() {
+        return numWaiters;
+    }
+
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long numWaitersOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            numWaitersOffset = UNSAFE.objectFieldOffset(BlockingIQueue.class.getDeclaredField("numWaiters"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
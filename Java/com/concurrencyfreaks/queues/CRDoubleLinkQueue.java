@@ -114,7 +114,7 @@ public class CRDoubleLinkQueue<E> implements IQueue<E> {
      * 
      * @param item must not be null
      */
-    public boolean enqueue(E item) {
+    public void enqueue(E item) {
         if (item == null) throw new NullPointerException();
         final Node<E> newNode = new Node<E>(item);
         while (true) {
@@ -125,7 +125,7 @@ public class CRDoubleLinkQueue<E> implements IQueue<E> {
             newNode.prev = ltail;
             if (casTail(ltail, newNode)) {
                 ltail.next = newNode;        // This can be relaxed because the dequeuer helps to link the tail
-                return true;
+                return;
             }
         }
     }
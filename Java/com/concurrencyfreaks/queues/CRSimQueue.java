@@ -30,6 +30,8 @@ package com.concurrencyfreaks.queues;
 import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 
 /**
  * <h1> Correia-Ramalhete's variant of SimQueue </h1>
@@ -66,6 +68,11 @@ import java.util.concurrent.atomic.AtomicIntegerArray;
  * - We need 3 iterations in the main for() loop of enqueue() and not 2 because we don't
  *   have a connectQueue() method in dequeue(). We can call the 
  * 
+ * When QueueStats.ENABLED is true, the number of iterations of the main
+ * loop of each enqueue() and dequeue() is recorded, and can be read with
+ * getEnqueueStats() and getDequeueStats(). They are bounded by 3 and 2,
+ * and each iteration goes over the maxThreads requests.
+ * 
  * 
  * @author Pedro Ramalhete
  * @author Andreia Correia
@@ -147,6 +154,8 @@ public class CRSimQueue<E> implements IQueue<E> {
     
     // Class variables
     private final int maxThreads;
+    // Hands out a unique tid to each thread using this queue
+    private final ThreadRegistry registry;
     // Used by enqueuers
     private final AtomicIntegerArray enqueuers;
     private final E[] items;
@@ -156,6 +165,9 @@ public class CRSimQueue<E> implements IQueue<E> {
     private final AtomicIntegerArray dequeuers;
     @sun.misc.Contended
     private volatile DeqState<E> deqState;
+    // Only used if QueueStats.ENABLED
+    private final QueueStats enqStats;
+    private final QueueStats deqStats;
 
     
     
@@ -166,6 +178,9 @@ public class CRSimQueue<E> implements IQueue<E> {
 
     public CRSimQueue(int maxThreads) {
         this.maxThreads = maxThreads;
+        this.registry = new ThreadRegistry(maxThreads);
+        this.enqStats = QueueStats.ENABLED ? new QueueStats(3) : null;
+        this.deqStats = QueueStats.ENABLED ? new QueueStats(2) : null;
         enqueuers = new AtomicIntegerArray(maxThreads);
         dequeuers = new AtomicIntegerArray(maxThreads);
         items = (E[])new Object[maxThreads];        
@@ -180,9 +195,8 @@ public class CRSimQueue<E> implements IQueue<E> {
      * 
      * @param item must not be null
      */
-    public boolean enqueue(E item) {
-        enqueue(item, (int)(Thread.currentThread().getId() % maxThreads));
-        return true;
+    public void enqueue(E item) {
+        enqueue(item, registry.getTid());
     }
     
     public void enqueue(E item, final int tid) {
@@ -191,12 +205,13 @@ public class CRSimQueue<E> implements IQueue<E> {
         items[tid] = item;
         final int newrequest = (enqState.applied[tid]+1)%2;
         enqueuers.set(tid, newrequest);        
-        for (int iter = 0; iter < 3; iter++) {
+        int iter = 0;
+        for (; iter < 3; iter++) {
             final EnqState<E> lstate = enqState;
             // Advance the tail if needed
             if (lstate.tail.next != lstate.nextNode) lstate.tail.next = lstate.nextNode;
             // Check if my request has been done
-            if (lstate.applied[tid] == newrequest) return;
+            if (lstate.applied[tid] == newrequest) break;
             // Help other requests, starting from zero
             Node<E> first = null, node = null;
             int[] applied = lstate.applied.clone();
@@ -216,6 +231,7 @@ public class CRSimQueue<E> implements IQueue<E> {
             // Try to apply the new sublist
             if (lstate == enqState) casEnqState(lstate, new EnqState<E>(lstate.nextTail, first, node, applied));
         }
+        if (QueueStats.ENABLED) enqStats.record(tid, iter);
     }
       
     
@@ -224,17 +240,21 @@ public class CRSimQueue<E> implements IQueue<E> {
      */
     
     public E dequeue() {
-        return dequeue((int)(Thread.currentThread().getId() % maxThreads));        
+        return dequeue(registry.getTid());        
     }
     
     public E dequeue(final int tid) {
         DeqState<E> lstate = deqState;
         // Start by checking if the queue is empty
-        if (lstate.head.next == null) return null;
+        if (lstate.head.next == null) {
+            if (QueueStats.ENABLED) deqStats.record(tid, 0);
+            return null;
+        }
         // Publish dequeue request
         final int newrequest = (lstate.applied[tid]+1) % 2;
         dequeuers.set(tid, newrequest);
-        for (int iter = 0; iter < 2; iter++) {
+        int iter = 0;
+        for (; iter < 2; iter++) {
             lstate = deqState;
             if (lstate.applied[tid] == newrequest) break;
             // Help opened dequeue requests, starting from turn+1
@@ -260,12 +280,32 @@ public class CRSimQueue<E> implements IQueue<E> {
                 if (lstate != deqState) break;
             }
             if (lstate != deqState) continue;
-            if (casDeqState(lstate, new DeqState<E>(newHead, newTurn, items, applied))) break; 
+            if (casDeqState(lstate, new DeqState<E>(newHead, newTurn, items, applied))) {
+                iter++;
+                break;
+            }
         }
+        if (QueueStats.ENABLED) deqStats.record(tid, iter);
         return deqState.items[tid];
     }
     
         
+    /**
+     * @return the iterations per enqueue(), or null if QueueStats.ENABLED is false
+     */
+    public QueueStats.Snapshot getEnqueueStats() {
+        return QueueStats.ENABLED ? enqStats.snapshot() : null;
+    }
+
+
+    /**
+     * @return the iterations per dequeue(), or null if QueueStats.ENABLED is false
+     */
+    public QueueStats.Snapshot getDequeueStats() {
+        return QueueStats.ENABLED ? deqStats.snapshot() : null;
+    }
+
+
     private boolean casEnqState(EnqState<E> cmp, EnqState<E> val) {
         return UNSAFE.compareAndSwapObject(this, enqStateOffset, cmp, val);
     }
@@ -30,6 +30,8 @@ package com.concurrencyfreaks.queues;
 import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 
 
 /**
@@ -45,6 +47,18 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * enqueue() progress: wait-free bounded O(N_threads)
  * dequeue() progress: wait-free bounded O(N_threads)
  * 
+ * Each thread uses a tid from a ThreadRegistry, which means there can be at
+ * most maxThreads live threads using the queue. When created with
+ * perOperationSlots=true, the tid is instead acquired from the ThreadRegistry
+ * at the start of each enqueue()/dequeue() and released at the end, so that
+ * any number of threads can use the queue, as long as there are at most
+ * maxThreads operations in progress. In this mode, enqueue() and dequeue()
+ * are blocking, because they may have to wait for a free slot.
+ * 
+ * When QueueStats.ENABLED is true, the number of iterations of the main
+ * loop of each enqueue() and dequeue() is recorded, and can be read with
+ * getEnqueueStats() and getDequeueStats(). Both are bounded by maxThreads.
+ * 
  * @author Pedro Ramalhete
  * @author Andreia Correia
  */
@@ -101,13 +115,37 @@ public class CRTurnQueue<E> implements IQueue<E> {
     private final static int MAX_THREADS = 128;
 
     private final int maxThreads;
+
+    // Hands out a unique tid to each thread using this queue
+    private final ThreadRegistry registry;
+
+    // If true, the tid is acquired at the start of each operation
+    private final boolean perOperationSlots;
+
+    // Only used if QueueStats.ENABLED
+    private final QueueStats enqStats;
+    private final QueueStats deqStats;
     
     public CRTurnQueue() {
         this(MAX_THREADS);
     }
     
     public CRTurnQueue(int maxThreads) {
+        this(maxThreads, false);
+    }
+    
+    /**
+     * @param maxThreads maximum number of live threads using the queue or, if
+     * perOperationSlots is true, of operations in progress
+     * @param perOperationSlots if true, each operation acquires a tid
+     * instead of each thread
+     */
+    public CRTurnQueue(int maxThreads, boolean perOperationSlots) {
         this.maxThreads = maxThreads;
+        this.registry = new ThreadRegistry(maxThreads);
+        this.perOperationSlots = perOperationSlots;
+        this.enqStats = QueueStats.ENABLED ? new QueueStats(maxThreads) : null;
+        this.deqStats = QueueStats.ENABLED ? new QueueStats(maxThreads) : null;
         Node<E> sentinelNode = new Node<E>(null, 0);
         head = sentinelNode;
         tail = sentinelNode;
@@ -122,12 +160,22 @@ public class CRTurnQueue<E> implements IQueue<E> {
     }
     
     private int getIndex() {
-        return (int)(Thread.currentThread().getId() % maxThreads);
+        return registry.getTid();
     }
     
-    // Use this API only if you're using sequential thread ids
+    // Throws IllegalStateException if more than maxThreads live threads use the queue
     public void enqueue(E item) {
-        enqueue(item, getIndex());
+        if (!perOperationSlots) {
+            enqueue(item, getIndex());
+            return;
+        }
+        if (item == null) throw new NullPointerException();
+        final int tid = registry.acquireSlot();
+        try {
+            enqueue(item, tid);
+        } finally {
+            registry.releaseSlot(tid);
+        }
     }
     
     /**
@@ -145,12 +193,16 @@ public class CRTurnQueue<E> implements IQueue<E> {
         if (item == null) throw new NullPointerException();
         final Node<E> myNode = new Node<E>(item, tid);
         enqueuers.set(tid, myNode);                    // Do step 1: add node to enqueuers[]
-        for (int i = 0; i < maxThreads; i++) {
+        int i = 0;
+        for (; i < maxThreads; i++) {
             Node<E> ltail = tail;
             if (enqueuers.get(ltail.enqTid) == ltail) {  // Help a thread do step 4
                 enqueuers.compareAndSet(ltail.enqTid, ltail, null);
             }
-            if (enqueuers.get(tid) == null) return;    // Some thread helped me and did all the work, yupiii! (INV3)
+            if (enqueuers.get(tid) == null) {          // Some thread helped me and did all the work, yupiii! (INV3)
+                if (QueueStats.ENABLED) enqStats.record(tid, i);
+                return;
+            }
             for (int j = 1; j < maxThreads+1; j++) {     // Help a thread do step 2
                 Node<E> nodeToHelp = enqueuers.get((j + ltail.enqTid) % maxThreads);
                 if (nodeToHelp == null) continue;
@@ -161,6 +213,7 @@ public class CRTurnQueue<E> implements IQueue<E> {
             if (lnext != null) casTail(ltail, lnext);
         }
         enqueuers.lazySet(tid, null);                  // Do step 4, just in case it's not done 
+        if (QueueStats.ENABLED) enqStats.record(tid, i);
     }
     
     
@@ -210,9 +263,14 @@ public class CRTurnQueue<E> implements IQueue<E> {
     }
 
     
-    // Use this API only if you're using sequential thread ids
     public E dequeue() {
-        return dequeue(getIndex());
+        if (!perOperationSlots) return dequeue(getIndex());
+        final int tid = registry.acquireSlot();
+        try {
+            return dequeue(tid);
+        } finally {
+            registry.releaseSlot(tid);
+        }
     }
     
     /**
@@ -229,7 +287,8 @@ public class CRTurnQueue<E> implements IQueue<E> {
         final Node<E> prReq = deqself.get(tid);
         final Node<E> myReq = deqhelp.get(tid);
         deqself.set(tid, myReq);             // isRequest=true
-        for (int i=0; i < maxThreads; i++) {
+        int i = 0;
+        for (; i < maxThreads; i++) {
             if (deqhelp.get(tid) != myReq) break;
             Node<E> lhead = head;
             if (lhead == tail) {         // Give up
@@ -239,12 +298,14 @@ public class CRTurnQueue<E> implements IQueue<E> {
                     deqself.set(tid, myReq);
                     break;
                 }
+                if (QueueStats.ENABLED) deqStats.record(tid, i);
                 return null;
             }
             Node<E> lnext = lhead.next;
             if (lhead != head) continue;
             if (searchNext(lhead, lnext) != IDX_NONE) casDeqAndCasHead(lhead, lnext, tid);
         }
+        if (QueueStats.ENABLED) deqStats.record(tid, i);
         Node<E> myNode = deqhelp.get(tid);   
         Node<E> lhead = head;
         // Check if step 4 is needed for my node.
@@ -256,6 +317,22 @@ public class CRTurnQueue<E> implements IQueue<E> {
     }
 
     
+    /**
+     * @return the iterations per enqueue(), or null if QueueStats.ENABLED is false
+     */
+    public QueueStats.Snapshot getEnqueueStats() {
+        return QueueStats.ENABLED ? enqStats.snapshot() : null;
+    }
+
+
+    /**
+     * @return the iterations per dequeue(), or null if QueueStats.ENABLED is false
+     */
+    public QueueStats.Snapshot getDequeueStats() {
+        return QueueStats.ENABLED ? deqStats.snapshot() : null;
+    }
+
+
     private boolean casTail(Node<E> cmp, Node<E> val) {
         return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
     }
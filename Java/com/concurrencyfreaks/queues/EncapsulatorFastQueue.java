@@ -0,0 +1,293 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
+
+
+/**
+ * <h1> The Encapsulator Queue (fast variant) </h1>
+ * 
+ * Same algorithm as EncapsulatorQueue, with the improvements listed in its
+ * comments:
+ * - Each thread re-uses its own "lreqs" array to gather the open requests,
+ *   instead of allocating a new one of maxThreads entries on every enqueue.
+ *   This is safe because the Node constructor copies the used part of it;
+ * - Each node has a lazy dequeue index, like in LazyIndexArrayQueue, and
+ *   dequeuers scan the node's encaps sequentially starting from it, instead
+ *   of starting at a different entry for each tid. The entries before the
+ *   index have all been dequeued, so in the common case the first CAS is
+ *   on the oldest item left in the node;
+ * - The requests in enqueuers[] are CLPAD entries apart, so that enqueuers
+ *   opening and closing their requests don't do false sharing. To keep the
+ *   scan short, it only goes up to the highest tid that has been handed out,
+ *   which the ThreadRegistry keeps low because it gives out the first free
+ *   tid. Enqueuers that read numTids before it covered a new tid may miss
+ *   its request, so the first enqueue() with each tid is lock-free, because
+ *   it retries until it inserts a node itself;
+ * Besides the node, each enqueue() allocates only the Encap and the node's
+ * array of encaps.
+ * 
+ * enqueue algorithm: Encapsulator algorithm
+ * dequeue algorithm: Does a CAS in each Encap until it succeeds, starting at the lazy index
+ * Consistency: Linearizable
+ * enqueue() progress: wait-free bounded O(N_threads), lock-free on the first call with each tid
+ * dequeue() progress: lock-free
+ * 
+ * This queue does self-linking to help the GC.
+ * 
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class EncapsulatorFastQueue<E> implements IQueue<E> {
+    
+    static class Node<E> {
+        final Encap<E>[] encaps;
+        // All the encaps before this index have been dequeued
+        volatile int deqidx = 0;
+        volatile Node<E> next = null;
+        
+        @SuppressWarnings("unchecked")
+        public Node(Encap<E>[] reqs, int used) {
+            encaps = new Encap[used];
+            // Make a copy of the array so we don't have to carry "length" around
+            System.arraycopy(reqs, 0, encaps, 0, used); 
+        }
+                
+        boolean casNext(Node<E> cmp, Node<E> val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        void putOrderedNext(Node<E> val) {
+            UNSAFE.putOrderedObject(this, nextOffset, val);
+        }
+
+        void putOrderedDeqidx(int val) {
+            UNSAFE.putOrderedInt(this, deqidxOffset, val);
+        }
+        
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+        private static final long deqidxOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+                deqidxOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("deqidx"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }        
+    }
+
+    // Encapsulates an item. Set to null when the item has been dequeued
+    static class Encap<E> {
+        volatile E item;
+
+        public Encap(E item) { this.item = item; }
+        
+        boolean casItem(E cmp, E val) {
+            return UNSAFE.compareAndSwapObject(this, itemOffset, cmp, val);
+        }
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long itemOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                itemOffset = UNSAFE.objectFieldOffset(Encap.class.getDeclaredField("item"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }        
+    }
+    
+    @sun.misc.Contended
+    private volatile Node<E> head;
+    @sun.misc.Contended
+    private volatile Node<E> tail;
+    // Request of thread tid is at enqueuers[tid*CLPAD]
+    private final AtomicReferenceArray<Encap<E>> enqueuers;
+    // Re-usable lreqs array of each thread
+    private final AtomicReferenceArray<Encap<E>[]> lreqsPerThread;
+    // Highest tid that used this queue, plus one
+    @sun.misc.Contended
+    private volatile int numTids = 0;
+    
+    private final static int MAX_THREADS = 128;
+
+    // Number of entries in enqueuers[] per thread, 128 bytes with compressed oops
+    private final static int CLPAD = 32;
+
+    private final int maxThreads;
+
+    // Hands out a unique tid to each thread using this queue
+    private final ThreadRegistry registry;
+    
+    public EncapsulatorFastQueue() {
+        this(MAX_THREADS);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public EncapsulatorFastQueue(int maxThreads) {
+        this.maxThreads = maxThreads;
+        this.registry = new ThreadRegistry(maxThreads);
+        Node<E> sentinelNode = new Node<E>(new Encap[0],0);
+        head = sentinelNode;
+        tail = sentinelNode;
+        enqueuers = new AtomicReferenceArray<Encap<E>>(maxThreads*CLPAD);
+        lreqsPerThread = new AtomicReferenceArray<Encap<E>[]>(maxThreads);
+    }
+    
+    
+    public void enqueue(E item) {
+        enqueue(item, registry.getTid());
+    }
+    
+    /**
+     * Progress Condition: wait-free
+     * 
+     * @param item must not be null
+     * @param tid must be a UNIQUE thread id in the range 0 to maxThreads-1
+     */
+    public void enqueue(E item, final int tid) {
+        if (item == null) throw new NullPointerException();
+        Encap<E>[] lreqs = lreqsPerThread.get(tid);
+        // The first time, other enqueuers may not scan up to our tid yet, so we can only stop after inserting our own node
+        final int maxIters = (lreqs == null) ? Integer.MAX_VALUE : 2;
+        if (lreqs == null) lreqs = newLreqs(tid);
+        final Encap<E> myEncap = new Encap<E>(item);
+        enqueuers.set(tid*CLPAD, myEncap);  // Open request
+        for (int iter = 0; iter < maxIters; iter++) {
+            Node<E> ltail = tail;
+            if (ltail.next != null) { // Advance tail if needed
+                casTail(ltail, ltail.next);
+                ltail = tail;
+                if (ltail.next != null) continue;
+            }
+            int numreqs = 0;
+            final int lnumTids = numTids;
+            for (int i = 0; i < lnumTids; i++) {
+                final Encap<E> encap = enqueuers.get(i*CLPAD);
+                if (encap == null) continue;
+                lreqs[numreqs++] = encap;
+            }
+            if (ltail != tail || ltail.next != null) continue;
+            if (ltail.casNext(null, new Node<E>(lreqs, numreqs))) {
+                casTail(ltail, ltail.next);
+                break;
+            }
+        }
+        enqueuers.lazySet(tid*CLPAD, null);
+    }
+
+
+    /**
+     * Creates the lreqs array of thread tid and updates numTids, on the
+     * first enqueue() with this tid
+     */
+    @SuppressWarnings("unchecked")
+    private Encap<E>[] newLreqs(final int tid) {
+        final Encap<E>[] lreqs = new Encap[maxThreads];
+        lreqsPerThread.set(tid, lreqs);
+        int lnumTids = numTids;
+        while (lnumTids < tid+1) {
+            if (UNSAFE.compareAndSwapInt(this, numTidsOffset, lnumTids, tid+1)) break;
+            lnumTids = numTids;
+        }
+        return lreqs;
+    }
+    
+    
+    public E dequeue() {
+        Node<E> lhead = head;
+        Node<E> node = lhead;
+        while (node != null) {
+            if (node.next == node) { // Handle self-linking
+                lhead = head;
+                node = lhead;
+            }
+            final Encap<E>[] encaps = node.encaps;
+            for (int i = node.deqidx; i < encaps.length; i++) {
+                final Encap<E> encap = encaps[i];
+                final E item = encap.item;
+                if (item == null) continue;
+                if (encap.casItem(item, null)) {
+                    node.putOrderedDeqidx(i+1);
+                    if (node != lhead && lhead == head) {
+                        if (casHead(lhead, node)) {
+                            // Self-link to help the GC
+                            if (lhead != tail) lhead.putOrderedNext(lhead); 
+                        }
+                    }
+                    return item;
+                }
+            }
+            node = node.next;
+        }
+        return null;
+    }
+
+    
+    private boolean casTail(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    private boolean casHead(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    private static final long headOffset;
+    private static final long numTidsOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(EncapsulatorFastQueue.class.getDeclaredField("tail"));
+            headOffset = UNSAFE.objectFieldOffset(EncapsulatorFastQueue.class.getDeclaredField("head"));
+            numTidsOffset = UNSAFE.objectFieldOffset(EncapsulatorFastQueue.class.getDeclaredField("numTids"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }  
+}
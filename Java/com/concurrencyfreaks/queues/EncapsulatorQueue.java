@@ -30,6 +30,8 @@ package com.concurrencyfreaks.queues;
 import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 
 
 /**
@@ -134,6 +136,9 @@ public class EncapsulatorQueue<E> implements IQueue<E> {
     private final static int MAX_THREADS = 128;
 
     private final int maxThreads;
+
+    // Hands out a unique tid to each thread using this queue
+    private final ThreadRegistry registry;
     
     public EncapsulatorQueue() {
         this(MAX_THREADS);
@@ -141,6 +146,7 @@ public class EncapsulatorQueue<E> implements IQueue<E> {
     
     public EncapsulatorQueue(int maxThreads) {
         this.maxThreads = maxThreads;
+        this.registry = new ThreadRegistry(maxThreads);
         Node<E> sentinelNode = new Node<E>(new Encap[0],0);
         head = sentinelNode;
         tail = sentinelNode;
@@ -149,7 +155,7 @@ public class EncapsulatorQueue<E> implements IQueue<E> {
     
     
     public void enqueue(E item) {
-        enqueue(item, (int)(Thread.currentThread().getId() % maxThreads));
+        enqueue(item, registry.getTid());
     }
     
     /**
@@ -187,7 +193,7 @@ public class EncapsulatorQueue<E> implements IQueue<E> {
     
     
     public E dequeue() {
-        return dequeue((int)(Thread.currentThread().getId() % maxThreads));
+        return dequeue(registry.getTid());
     }
     
     /**
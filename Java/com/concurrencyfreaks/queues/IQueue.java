@@ -4,4 +4,31 @@ package com.concurrencyfreaks.queues;
 public interface IQueue<E> {
     public void enqueue(E item);
     public E dequeue();
+
+    /**
+     * Enqueues {@code len} items from {@code items}, starting at {@code off}.
+     * Queues that can reserve several slots at once should override this,
+     * the default just calls enqueue() for each item.
+     *
+     * @param items none of the items in the range may be null
+     */
+    public default void enqueueAll(E[] items, int off, int len) {
+        for (int i = off; i < off+len; i++) enqueue(items[i]);
+    }
+
+    /**
+     * Dequeues up to {@code max} items into {@code dst}, starting at index 0.
+     * The default just calls dequeue() until it returns null.
+     *
+     * @return the number of items placed in {@code dst}
+     */
+    public default int dequeueInto(E[] dst, int max) {
+        int n = 0;
+        while (n < max) {
+            final E item = dequeue();
+            if (item == null) break;
+            dst[n++] = item;
+        }
+        return n;
+    }
 }
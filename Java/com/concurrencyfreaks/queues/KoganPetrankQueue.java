@@ -1,9 +1,10 @@
 package com.concurrencyfreaks.queues;
 
 import java.lang.reflect.Field;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
 /**
  * <h1> Kogan-Petrank Queue </h1>
  *
@@ -19,32 +20,81 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * enqueue() progress: wait-free bounded O(N_threads)
  * dequeue() progress: wait-free bounded O(N_threads)
  *
+ * Each thread uses a tid from a ThreadRegistry, which means there can be at
+ * most maxThreads live threads using the queue, but unlike with
+ * {@code Thread.getId() % maxThreads}, the thread ids don't have to be
+ * consecutive.
+ *
+ * Descriptors:
+ * The operation descriptors in state[] are immutable, because helpers CAS
+ * state[] from the descriptor they have seen, and re-using a descriptor for
+ * another operation would make those CAS succeed when they shouldn't (ABA).
+ * Instead of allocating up to three descriptors per operation, like in the
+ * paper, we avoid the ones that carry no information of their own:
+ * - Node extends OpDesc, and a new node is the descriptor of the pending
+ *   enqueue that inserts it;
+ * - Completed enqueues and empty dequeues are marked with the shared
+ *   descriptors DONE_ENQ and DONE_DEQ_EMPTY. Completed operations don't
+ *   need their phase, they only make the next phases larger;
+ * - deqTid is an int field in Node instead of an AtomicInteger;
+ * - Helpers don't allocate a new descriptor for an operation that they
+ *   see has already been completed;
+ * This leaves one allocation per enqueue (the node) and, for a dequeue, the
+ * announced descriptor, the one with the node to dequeue, and the completed
+ * one with the same node.
+ *
  * @author Pedro Ramalhete
  * @author Andreia Correia 
  */
-public class KoganPetrankQueue<E> {
-    
-    private static class Node<E> {
+public class KoganPetrankQueue<E> implements IQueue<E> {
+
+    private static class OpDesc<E> {
+        final long phase;
+        final boolean pending;
+        final boolean enqueue;
+        // Only a Node sets this after construction, to itself
+        Node<E> node;
+
+        public OpDesc (long ph, boolean pend, boolean enq, Node<E> n) {
+            phase = ph;
+            pending = pend;
+            enqueue = enq;
+            node = n;
+        }
+    }
+
+
+    /**
+     * Each node is also the descriptor of the (pending) enqueue that inserts it
+     */
+    private static class Node<E> extends OpDesc<E> {
         E value;
         volatile Node<E> next;
-        int enqTid;
-        AtomicInteger deqTid;
+        final int enqTid;
+        volatile int deqTid;
 
-        public Node(E val, int etid) {
+        public Node(E val, int etid, long ph) {
+            super(ph, true, true, null);
+            node = this;
             value = val;
             next = null;
             enqTid = etid;
-            deqTid = new AtomicInteger(-1);
+            deqTid = -1;
         }
 
         public boolean casNext(Node<E> cmp, Node<E> val) {
             return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
         }
-        
+
+        public boolean casDeqTid(int cmp, int val) {
+            return UNSAFE.compareAndSwapInt(this, deqTidOffset, cmp, val);
+        }
+
         // Unsafe mechanics
         private static final sun.misc.Unsafe UNSAFE;
         private static final long nextOffset;
-        
+        private static final long deqTidOffset;
+
         static {
             try {
                 Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
@@ -53,41 +103,53 @@ public class KoganPetrankQueue<E> {
                 Class<?> k = Node.class;
                 nextOffset = UNSAFE.objectFieldOffset
                     (k.getDeclaredField("next"));
+                deqTidOffset = UNSAFE.objectFieldOffset
+                    (k.getDeclaredField("deqTid"));
             } catch (Exception e) {
                 throw new Error(e);
             }
         }
     }
 
-    
-    private static class OpDesc<E> {
-        final long phase;
-        final boolean pending;
-        final boolean enqueue;
-        final Node<E> node;
-        
-        public OpDesc (long ph, boolean pend, boolean enq, Node<E> n) {
-            phase = ph;
-            pending = pend;
-            enqueue = enq;
-            node = n;
-        }
+    private static final OpDesc<?> DONE_ENQ = new OpDesc<Object>(-1, false, true, null);
+    private static final OpDesc<?> DONE_DEQ_EMPTY = new OpDesc<Object>(-1, false, false, null);
+
+    // The shared descriptors have no items, so they can be used as an OpDesc<E> of any E
+    @SuppressWarnings("unchecked")
+    private static <E> OpDesc<E> doneEnq() {
+        return (OpDesc<E>)DONE_ENQ;
     }
-    
-    private static final int NUM_THREADS = 128;
-    
+
+    @SuppressWarnings("unchecked")
+    private static <E> OpDesc<E> doneDeqEmpty() {
+        return (OpDesc<E>)DONE_DEQ_EMPTY;
+    }
+
+    private static final int MAX_THREADS = 128;
+
     // Member variables
     volatile Node<E> head;
     volatile Node<E> tail;
     final AtomicReferenceArray<OpDesc<E>> state;
-    
+
+    // Hands out a unique tid to each thread using this queue
+    private final ThreadRegistry registry;
+
     public KoganPetrankQueue() {
-        final Node<E> sentinel = new Node<E>(null, -1);
+        this(MAX_THREADS);
+    }
+
+    /**
+     * @param maxThreads maximum number of live threads using the queue
+     */
+    public KoganPetrankQueue(int maxThreads) {
+        registry = new ThreadRegistry(maxThreads);
+        final Node<E> sentinel = new Node<E>(null, -1, -1);
         head = sentinel;
         tail = sentinel;
-        state = new AtomicReferenceArray<OpDesc<E>>(NUM_THREADS);
+        state = new AtomicReferenceArray<OpDesc<E>>(maxThreads);
         for (int i = 0; i < state.length(); i++) {
-            state.set(i, new OpDesc<E>(-1, false, true, null));
+            state.set(i, doneEnq());
         }
     }
     
@@ -123,15 +185,28 @@ public class KoganPetrankQueue<E> {
     }
     
     
-    public void enq(E value) {
-        // We better have consecutive thread ids, otherwise this will blow up
-        // TODO: replace this mechanism with something more flexible
-        final int TID = (int)(Thread.currentThread().getId() % NUM_THREADS);
+    /**
+     * Progress Condition: Wait-Free bounded O(N_threads)
+     *
+     * @param value must not be null
+     * @throws IllegalStateException if more than maxThreads live threads use the queue
+     */
+    public void enqueue(E value) {
+        if (value == null) throw new NullPointerException();
+        final int TID = registry.getTid();
         long phase = maxPhase() + 1;
-        state.set(TID, new OpDesc<E>(phase, true, true, new Node<E>(value, TID)));
+        state.set(TID, new Node<E>(value, TID, phase));
         help(phase);
         help_finish_enq();
     }
+
+
+    /**
+     * Same as enqueue()
+     */
+    public void enq(E value) {
+        enqueue(value);
+    }
     
     
     private void help_enq(int tid, long phase) {
@@ -160,19 +235,22 @@ public class KoganPetrankQueue<E> {
         if (next != null && next != last) { // Check for self-linking
             int tid = next.enqTid;
             final OpDesc<E> curDesc = state.get(tid);
-            if (last == tail && state.get(tid).node == next) {
-                final OpDesc<E> newDesc = new OpDesc<E>(state.get(tid).phase, false, true, next);
-                state.compareAndSet(tid, curDesc, newDesc);
+            if (last == tail) {
+                // If state[tid] isn't next, then the enqueue of next has been completed
+                if (curDesc == next) state.compareAndSet(tid, curDesc, doneEnq());
                 casTail(last, next);
             }
         }
     }
     
     
-    public E deq() {
-        // We better have consecutive thread ids, otherwise this will blow up
-        // TODO: replace this mechanism with something more flexible
-        final int TID = (int)(Thread.currentThread().getId() % NUM_THREADS);
+    /**
+     * Progress Condition: Wait-Free bounded O(N_threads)
+     *
+     * @throws IllegalStateException if more than maxThreads live threads use the queue
+     */
+    public E dequeue() {
+        final int TID = registry.getTid();
         long phase = maxPhase() + 1;
         state.set(TID, new OpDesc<E>(phase, true, false, null));
         help(phase);
@@ -183,6 +261,14 @@ public class KoganPetrankQueue<E> {
         node.next = node;              // Self-link to help the GC
         return value;
     }
+
+
+    /**
+     * Same as dequeue()
+     */
+    public E deq() {
+        return dequeue();
+    }
     
     
     private void help_deq(int tid, long phase) {
@@ -195,8 +281,7 @@ public class KoganPetrankQueue<E> {
                     if (next == null) {
                         OpDesc<E> curDesc = state.get(tid);
                         if (last == tail && isStillPending(tid, phase)) {
-                            OpDesc<E> newDesc = new OpDesc<E>(state.get(tid).phase, false, false, null);
-                            state.compareAndSet(tid, curDesc, newDesc);
+                            state.compareAndSet(tid, curDesc, doneDeqEmpty());
                         }
                     } else {
                         help_finish_enq();
@@ -211,7 +296,7 @@ public class KoganPetrankQueue<E> {
                             continue;
                         }
                     }
-                    first.deqTid.compareAndSet(-1, tid);
+                    first.casDeqTid(-1, tid);
                     help_finish_deq();
                 }
             }
@@ -222,12 +307,14 @@ public class KoganPetrankQueue<E> {
     private void help_finish_deq() {
         final Node<E> first = head;
         final Node<E> next = first.next;
-        int tid = first.deqTid.get();
+        int tid = first.deqTid;
         if (tid != -1 && next != first) {
             final OpDesc<E> curDesc = state.get(tid);
             if (first == head && next != null) {
-                final OpDesc<E> newDesc = new OpDesc<E>(state.get(tid).phase, false, false, state.get(tid).node);
-                state.compareAndSet(tid, curDesc, newDesc);
+                if (curDesc.pending) {
+                    final OpDesc<E> newDesc = new OpDesc<E>(curDesc.phase, false, false, curDesc.node);
+                    state.compareAndSet(tid, curDesc, newDesc);
+                }
                 casHead(first, next);
             }
         }
@@ -0,0 +1,318 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * <h1> Linden-Jonsson Priority Queue </h1>
+ *
+ * A lock-free priority queue based on a skiplist, where dequeue() removes
+ * the smallest item (deleteMin). Items are ordered by their natural ordering
+ * or by a Comparator, and there is no order among items that compare equal.
+ *
+ * Deletion is done only at the start of the list, so the deleted nodes
+ * always form a prefix of the bottom level. A dequeue() walks the bottom
+ * level from the head and logically deletes the first node that isn't
+ * deleted yet, by marking the next pointer of its predecessor. The mark on
+ * pred.next[0] means that the successor of pred is deleted, which makes
+ * inserts fail to link a node between pred and its successor. This way an
+ * enqueue() of an item smaller than all the others is linked after the last
+ * deleted node, and is never missed by a dequeue().
+ * The deleted prefix is only unlinked from head once it has more than
+ * BOUND_OFFSET nodes, with a single CAS on head.next[0], after which the
+ * head pointers of the upper levels are updated to skip the deleted nodes.
+ * This batched physical deletion is what avoids the contention on the
+ * first nodes that other skiplist priority queues have. On the other hand,
+ * each dequeue() walks over the deleted prefix, so with few threads a
+ * smaller boundOffset is faster.
+ *
+ * Java has no pointer tagging, so a marked next[0] is a Marker node (which
+ * is never seen outside of next[0]) that points to the actual successor,
+ * like in java.util.concurrent.ConcurrentSkipListMap. Each successful
+ * dequeue() allocates one Marker.
+ * Nodes are reclaimed by the GC, but the items of the deleted prefix stay
+ * reachable until the prefix is unlinked, i.e. for up to boundOffset
+ * dequeues.
+ *
+ * enqueue() progress: lock-free
+ * dequeue() progress: lock-free
+ * peekMin() progress: lock-free
+ * Consistency: Linearizable
+ *
+ * <p>
+ * The algorithm is described in Jonatan Linden and Bengt Jonsson's paper:
+ * "A Skiplist-Based Concurrent Priority Queue with Minimal Memory Contention"
+ * http://user.it.uu.se/~jonli208/priorityqueue/
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class LindenJonssonPriorityQueue<E> implements IQueue<E> {
+
+    // Number of levels of the skiplist
+    static final int MAX_LEVEL = 24;
+    // Default number of deleted nodes a dequeue() has to walk over before it unlinks them
+    static final int BOUND_OFFSET = 32;
+
+    static class Node<E> {
+        final E item;
+        final AtomicReferenceArray<Node<E>> next;
+        // True until all levels of this node are linked
+        volatile boolean inserting;
+
+        Node(E item, int height) {
+            this.item = item;
+            this.next = height == 0 ? null : new AtomicReferenceArray<Node<E>>(height);
+            this.inserting = height != 0;
+        }
+    }
+
+    /**
+     * Stored in pred.next[0] instead of succ, to mark succ as deleted
+     */
+    static final class Marker<E> extends Node<E> {
+        final Node<E> succ;
+
+        Marker(Node<E> succ) {
+            super(null, 0);
+            this.succ = succ;
+        }
+    }
+
+    private final Node<E> head;
+    private final Node<E> tail;
+    private final Comparator<? super E> comparator;
+    private final int boundOffset;
+
+
+    public LindenJonssonPriorityQueue() {
+        this(null, BOUND_OFFSET);
+    }
+
+
+    /**
+     * @param comparator the ordering of the items, or null for their natural ordering
+     */
+    public LindenJonssonPriorityQueue(Comparator<? super E> comparator) {
+        this(comparator, BOUND_OFFSET);
+    }
+
+
+    /**
+     * @param comparator the ordering of the items, or null for their natural ordering
+     * @param boundOffset number of deleted nodes a dequeue() has to walk over
+     * before it unlinks them
+     */
+    public LindenJonssonPriorityQueue(Comparator<? super E> comparator, int boundOffset) {
+        if (boundOffset < 1) throw new IllegalArgumentException();
+        this.comparator = comparator;
+        this.boundOffset = boundOffset;
+        head = new Node<E>(null, MAX_LEVEL);
+        tail = new Node<E>(null, MAX_LEVEL);
+        for (int i = 0; i < MAX_LEVEL; i++) head.next.set(i, tail);
+        head.inserting = false;
+        tail.inserting = false;
+    }
+
+
+    private static <E> boolean isMarked(Node<E> ref) {
+        return ref instanceof Marker;
+    }
+
+
+    private static <E> Node<E> unmarked(Node<E> ref) {
+        return ref instanceof Marker ? ((Marker<E>)ref).succ : ref;
+    }
+
+
+    /**
+     * Returns true if the item of node is smaller than item. The tail
+     * works as +infinity.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isLess(Node<E> node, E item) {
+        if (node == tail) return false;
+        if (comparator != null) return comparator.compare(node.item, item) < 0;
+        return ((Comparable<? super E>)node.item).compareTo(item) < 0;
+    }
+
+
+    /**
+     * Geometric distribution with p=1/2, between 1 and MAX_LEVEL
+     */
+    private static int randomLevel() {
+        final int r = ThreadLocalRandom.current().nextInt();
+        return Math.min(MAX_LEVEL, Integer.numberOfTrailingZeros(r) + 1);
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     */
+    @SuppressWarnings("unchecked")
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        final int height = randomLevel();
+        final Node<E> newNode = new Node<E>(item, height);
+        final Node<E>[] preds = new Node[height];
+        final Node<E>[] succs = new Node[height];
+        Node<E> del;
+        while (true) {
+            del = locatePreds(item, preds, succs);
+            newNode.next.lazySet(0, succs[0]);
+            if (preds[0].next.compareAndSet(0, succs[0], newNode)) break;
+        }
+        // Link the upper levels, giving up if newNode or its successor gets deleted
+        int i = 1;
+        while (i < height) {
+            newNode.next.set(i, succs[i]);
+            if (isMarked(newNode.next.get(0)) || isMarked(succs[i].next.get(0)) || del == succs[i]) break;
+            if (preds[i].next.compareAndSet(i, succs[i], newNode)) {
+                i++;
+            } else {
+                del = locatePreds(item, preds, succs);
+                if (succs[0] != newNode) break;  // newNode has been deleted
+            }
+        }
+        newNode.inserting = false;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @return the smallest item in the queue, or null if it's empty
+     */
+    public E dequeue() {
+        Node<E> x = head;
+        Node<E> newHead = null;
+        int offset = 0;
+        final Node<E> obsHead = x.next.get(0);
+        while (true) {
+            final Node<E> nxt = x.next.get(0);
+            final Node<E> succ = unmarked(nxt);
+            if (succ == tail) return null;
+            // A node that is still linking its upper levels can't be unlinked
+            if (newHead == null && x.inserting) newHead = x;
+            offset++;
+            if (isMarked(nxt)) {
+                x = succ;       // succ is already deleted, skip it
+                continue;
+            }
+            if (x.next.compareAndSet(0, nxt, new Marker<E>(nxt))) {
+                x = succ;
+                break;
+            }
+            offset--;
+        }
+        final E item = x.item;
+        if (newHead == null) newHead = x;
+        if (offset <= boundOffset) return item;
+        if (head.next.get(0) != obsHead) return item;
+        // Unlink the deleted prefix up to newHead, which stays as the first (deleted) node
+        if (head.next.compareAndSet(0, obsHead, new Marker<E>(newHead))) restructure();
+        return item;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @return the smallest item in the queue, or null if it's empty. The
+     * item is not removed.
+     */
+    public E peekMin() {
+        Node<E> x = head;
+        while (true) {
+            final Node<E> nxt = x.next.get(0);
+            final Node<E> succ = unmarked(nxt);
+            if (succ == tail) return null;
+            if (!isMarked(nxt)) return succ.item;
+            x = succ;
+        }
+    }
+
+
+    /**
+     * Fills preds[] and succs[] with the nodes between which item should be
+     * linked, on the levels below preds.length. At the bottom level, the
+     * deleted prefix is skipped.
+     *
+     * @return the last deleted node seen on the bottom level, or null
+     */
+    private Node<E> locatePreds(E item, Node<E>[] preds, Node<E>[] succs) {
+        Node<E> del = null;
+        Node<E> pred = head;
+        for (int i = MAX_LEVEL-1; i >= 0; i--) {
+            Node<E> cur = pred.next.get(i);
+            boolean d = isMarked(cur);
+            cur = unmarked(cur);
+            while (isLess(cur, item) || isMarked(cur.next.get(0)) || (i == 0 && d)) {
+                if (d && i == 0) del = cur;
+                pred = cur;
+                cur = pred.next.get(i);
+                d = isMarked(cur);
+                cur = unmarked(cur);
+            }
+            if (i < preds.length) {
+                preds[i] = pred;
+                succs[i] = cur;
+            }
+        }
+        return del;
+    }
+
+
+    /**
+     * Makes the head pointers of the upper levels skip the deleted prefix,
+     * after it has been unlinked from the bottom level
+     */
+    private void restructure() {
+        Node<E> pred = head;
+        int i = MAX_LEVEL-1;
+        while (i > 0) {
+            final Node<E> h = head.next.get(i);
+            if (!isMarked(h.next.get(0))) {
+                i--;
+                continue;
+            }
+            Node<E> cur = pred.next.get(i);
+            while (isMarked(cur.next.get(0))) {
+                pred = cur;
+                cur = pred.next.get(i);
+            }
+            if (head.next.compareAndSet(i, h, pred.next.get(i))) i--;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.lang.reflect.Field;
+
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+import com.concurrencyfreaks.reclamation.HazardPointers;
+
+
+/**
+ * <h1> Michael-Scott Queue </h1>
+ *
+ * A Java port of CPP/queues/MichaelScottQueue.hpp, which optionally recycles
+ * its nodes through HazardPointers.
+ *
+ * <br> enqueue algorithm: MS enqueue
+ * <br> dequeue algorithm: MS dequeue
+ * <br> Consistency: Linearizable
+ * <br> enqueue() progress: lock-free
+ * <br> dequeue() progress: lock-free
+ * <br> Memory Reclamation: GC, or Hazard Pointers + GC if recycleNodes is true
+ * <p>
+ * When created with recycleNodes, each dequeue() retires the old sentinel
+ * node, and each enqueue() first tries to get a node from the free objects
+ * of the HazardPointers instance before allocating a new one. A recycled
+ * node has a new item and a null next, so without hazard pointers a thread
+ * that still had a reference to it could see the wrong item, or succeed a
+ * CAS on head or tail due to ABA. The hazard pointers use the same
+ * publish-then-validate pattern as the C++ version: tail (or head) is read,
+ * published on a hazard pointer and then read again, and if it didn't
+ * change then the node can't be recycled until the hazard pointer is cleared.
+ * Dequeue needs two hazard pointers, one for the head and one for head.next.
+ * <p>
+ * Each thread gets its tid for the hazard pointers from a ThreadRegistry,
+ * so there can be at most maxThreads live threads using a queue that
+ * recycles its nodes. Without recycling, there is no limit.
+ * <p>
+ * Lock-Free Linked List as described in Maged Michael and Michael Scott's paper:
+ * <a href="http://www.cs.rochester.edu/~scott/papers/1996_PODC_queues.pdf">
+ * Simple, Fast, and Practical Non-Blocking and Blocking Concurrent Queue Algorithms</a>
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class MichaelScottQueue<E> implements IQueue<E> {
+
+    static class Node<E> {
+        E item;
+        volatile Node<E> next;
+
+        Node(E item) {
+            this.item = item;
+        }
+
+        boolean casNext(Node<E> cmp, Node<E> val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    @sun.misc.Contended
+    private volatile Node<E> head;
+    @sun.misc.Contended
+    private volatile Node<E> tail;
+
+    private final static int MAX_THREADS = 128;
+
+    // We need two hazard pointers for dequeue()
+    private final static int kHpTail = 0;
+    private final static int kHpHead = 0;
+    private final static int kHpNext = 1;
+
+    // Both are null if we're not recycling nodes
+    private final HazardPointers<Node<E>> hp;
+    private final ThreadRegistry registry;
+
+
+    public MichaelScottQueue() {
+        this(MAX_THREADS, false);
+    }
+
+
+    public MichaelScottQueue(boolean recycleNodes) {
+        this(MAX_THREADS, recycleNodes);
+    }
+
+
+    /**
+     * @param maxThreads maximum number of live threads using the queue, only
+     * used if recycleNodes is true
+     * @param recycleNodes if true, dequeued nodes are re-used by enqueue()
+     */
+    public MichaelScottQueue(int maxThreads, boolean recycleNodes) {
+        if (recycleNodes) {
+            hp = new HazardPointers<Node<E>>(2, maxThreads);
+            registry = new ThreadRegistry(maxThreads);
+        } else {
+            hp = null;
+            registry = null;
+        }
+        final Node<E> sentinelNode = new Node<E>(null);
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        if (hp == null) {
+            enqueueGC(item);
+            return;
+        }
+        final int tid = registry.getTid();
+        Node<E> newNode = hp.poll(tid);
+        if (newNode == null) {
+            newNode = new Node<E>(item);
+        } else {
+            // Nobody else has a reference to it, and casNext() will publish it
+            newNode.item = item;
+            newNode.next = null;
+        }
+        while (true) {
+            final Node<E> ltail = hp.protectPtr(kHpTail, tail, tid);
+            if (ltail != tail) continue;
+            final Node<E> lnext = ltail.next;
+            if (lnext == null) {
+                // It seems this is the last node, so add the newNode here
+                // and try to move the tail to the newNode
+                if (ltail.casNext(null, newNode)) {
+                    casTail(ltail, newNode);
+                    hp.clear(tid);
+                    return;
+                }
+            } else {
+                casTail(ltail, lnext);
+            }
+        }
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     */
+    public E dequeue() {
+        if (hp == null) return dequeueGC();
+        final int tid = registry.getTid();
+        Node<E> node = protectHead(tid);
+        while (node != tail) {
+            final Node<E> lnext = hp.protectPtr(kHpNext, node.next, tid);
+            // If head is still node, then lnext is its next and it's not retired
+            if (head != node) {
+                node = protectHead(tid);
+                continue;
+            }
+            if (casHead(node, lnext)) {
+                final E item = lnext.item;
+                lnext.item = null;      // lnext is now the sentinel, we don't need the item anymore
+                hp.clear(tid);
+                hp.retire(node, tid);
+                return item;
+            }
+            node = protectHead(tid);
+        }
+        hp.clear(tid);
+        return null;                    // Queue is empty
+    }
+
+
+    private Node<E> protectHead(int tid) {
+        Node<E> ret;
+        Node<E> n = null;
+        while ((ret = head) != n) {
+            hp.protectPtr(kHpHead, ret, tid);
+            n = ret;
+        }
+        return ret;
+    }
+
+
+    private void enqueueGC(E item) {
+        final Node<E> newNode = new Node<E>(item);
+        while (true) {
+            final Node<E> ltail = tail;
+            final Node<E> lnext = ltail.next;
+            if (lnext == null) {
+                if (ltail.casNext(null, newNode)) {
+                    casTail(ltail, newNode);
+                    return;
+                }
+            } else {
+                casTail(ltail, lnext);
+            }
+        }
+    }
+
+
+    private E dequeueGC() {
+        Node<E> node = head;
+        while (node != tail) {
+            final Node<E> lnext = node.next;
+            if (casHead(node, lnext)) {
+                final E item = lnext.item;
+                lnext.item = null;
+                return item;
+            }
+            node = head;
+        }
+        return null;                    // Queue is empty
+    }
+
+
+    private boolean casTail(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    private boolean casHead(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    private static final long headOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(MichaelScottQueue.class.getDeclaredField("tail"));
+            headOffset = UNSAFE.objectFieldOffset(MichaelScottQueue.class.getDeclaredField("head"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
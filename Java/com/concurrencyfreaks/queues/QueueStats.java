@@ -0,0 +1,203 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * <h1> Queue Stats </h1>
+ *
+ * A lock-free log-linear histogram of the number of helping iterations that
+ * each operation of a wait-free queue took, used by CRTurnQueue and
+ * CRSimQueue to check their wait-free bound in production.
+ *
+ * Recording is disabled unless the JVM is started with
+ * {@code -Dcom.concurrencyfreaks.queues.stats=true}. ENABLED is a static
+ * final, so when it's false the JIT removes the calls to record() from the
+ * queues, and the queues don't even create a QueueStats instance.
+ *
+ * Values below SUB_BUCKETS have one bucket each. Each power of two above
+ * that is split in SUB_BUCKETS buckets of the same width, which means the
+ * relative error is at most 1/SUB_BUCKETS. The counts are striped by tid
+ * into NUM_STRIPES rows, each incremented with a getAndIncrement(), so that
+ * threads with different tids rarely touch the same cache line.
+ * A Snapshot sums all the stripes. It's not an atomic view of the counts,
+ * but each operation recorded before snapshot() was called is in it.
+ *
+ * record() progress: lock-free
+ * snapshot() progress: wait-free bounded by NUM_STRIPES*NUM_BUCKETS
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class QueueStats {
+
+    public static final boolean ENABLED = Boolean.getBoolean("com.concurrencyfreaks.queues.stats");
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any non-negative int
+    static final int NUM_BUCKETS = (31 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    static final int NUM_STRIPES = 16;
+    // Keep the max of each stripe on its own cache line
+    private static final int CLPAD = 8;
+
+    private final int bound;
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_STRIPES*NUM_BUCKETS);
+    private final AtomicLongArray maxs = new AtomicLongArray(NUM_STRIPES*CLPAD);
+
+
+    /**
+     * @param bound the theoretical maximum number of iterations per operation
+     */
+    public QueueStats(int bound) {
+        this.bound = bound;
+    }
+
+
+    static int bucketIndex(int value) {
+        if (value < SUB_BUCKETS) return value;
+        final int exp = 31 - Integer.numberOfLeadingZeros(value);
+        final int sub = (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+
+    /**
+     * Returns the largest value that goes into the bucket idx
+     */
+    static long bucketUpperBound(int idx) {
+        if (idx < SUB_BUCKETS) return idx;
+        final int exp = idx / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lower = (long)(SUB_BUCKETS + idx % SUB_BUCKETS) << (exp - SUB_BUCKET_BITS);
+        return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+
+    /**
+     * Progress Condition: lock-free
+     *
+     * @param tid the tid of the thread calling, used only to choose a stripe
+     * @param iterations must not be negative
+     */
+    public void record(int tid, int iterations) {
+        final int stripe = tid % NUM_STRIPES;
+        counts.getAndIncrement(stripe*NUM_BUCKETS + bucketIndex(iterations));
+        long lmax = maxs.get(stripe*CLPAD);
+        while (iterations > lmax) {
+            if (maxs.compareAndSet(stripe*CLPAD, lmax, iterations)) break;
+            lmax = maxs.get(stripe*CLPAD);
+        }
+    }
+
+
+    public Snapshot snapshot() {
+        final long[] buckets = new long[NUM_BUCKETS];
+        long max = 0;
+        for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+            for (int i = 0; i < NUM_BUCKETS; i++) buckets[i] += counts.get(stripe*NUM_BUCKETS + i);
+            max = Math.max(max, maxs.get(stripe*CLPAD));
+        }
+        return new Snapshot(buckets, max, bound);
+    }
+
+
+    /**
+     * An immutable copy of the histogram
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long max;
+        private final int bound;
+
+        Snapshot(long[] buckets, long max, int bound) {
+            this.buckets = buckets;
+            this.max = max;
+            this.bound = bound;
+            long lcount = 0;
+            for (int i = 0; i < buckets.length; i++) lcount += buckets[i];
+            this.count = lcount;
+        }
+
+        /**
+         * Number of operations recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Largest number of iterations of a single operation
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * The theoretical maximum number of iterations per operation
+         */
+        public int getBound() {
+            return bound;
+        }
+
+        /**
+         * Returns the number of iterations that at least percentile% of
+         * the operations didn't exceed, rounded up to the end of its bucket
+         *
+         * @param percentile between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            final long target = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) return Math.min(bucketUpperBound(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * Returns the number of operations that took at least {@code value}
+         * iterations, rounded to the start of the bucket of {@code value}
+         */
+        public long getCountAtOrAbove(int value) {
+            long sum = 0;
+            for (int i = bucketIndex(Math.max(0, value)); i < buckets.length; i++) sum += buckets[i];
+            return sum;
+        }
+
+        public String toString() {
+            return "count="+count+" p50="+getValueAtPercentile(50)+" p99="+getValueAtPercentile(99)+
+                   " p99.9="+getValueAtPercentile(99.9)+" max="+max+" bound="+bound;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.concurrencyfreaks.queues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import com.concurrencyfreaks.queues.BenchmarkQueues.TestCase;
+import com.concurrencyfreaks.queues.array.FAAArrayQueue;
+import com.concurrencyfreaks.queues.array.LazyIndexArrayQueue;
+import com.concurrencyfreaks.queues.array.Log2ArrayQueue;
+
+
+
+/**
+ * This is a correctness stress test of the queues that implement IQueue
+ *
+ * Each thread enqueues items tagged with its tid and a per-thread sequence
+ * number, alternated with dequeues. After all threads finish, the queue is
+ * drained and we check that:
+ * - Every item that was enqueued was dequeued exactly once (count and sum);
+ * - Each dequeuer saw the items of each enqueuer in the order they were
+ *   enqueued (per-producer FIFO, which is implied by linearizability);
+ *
+ * Each queue is tested in three modes:
+ * PerItem: items are enqueued and dequeued with enqueue() and dequeue();
+ * Batched: each burst is enqueued with one call to enqueueAll() and
+ *   dequeued with calls to dequeueInto(). Queues that don't override these
+ *   methods are skipped in this mode, because they use the IQueue defaults.
+ * Drain: the threads with an even tid dequeue with drain() while the others
+ *   use dequeue(), to check that drain() is linearizable with concurrent
+ *   dequeuers. Every 16 drains the sink throws halfway through, and the
+ *   items that were claimed but not passed to the sink must be handed back.
+ *   Only FAAArrayQueue, LazyIndexArrayQueue and Log2ArrayQueue have drain().
+ *
+ * For single-consumer queues with more than one thread, thread 0 is the
+ * only consumer and dequeues until it has seen all the items enqueued by
+ * the other threads, which are producers only. The producers don't go more
+ * than MAX_BACKLOG items ahead of the consumer. SPSCArrayQueue is skipped
+ * when there are more than two threads.
+ */
+public class StressTestQueues {
+
+    public enum TestKind {
+        PerItem,
+        Batched,
+        Drain,
+    }
+
+    private final static int NUM_ITEMS = 1000000;   // items enqueued by each thread
+    private final static int BURST_SIZE = 100;
+    private final static int MAX_BACKLOG = 64*1024;
+
+    private IQueue<Long> queue;
+    private volatile boolean fifoError = false;
+    // Number of items dequeued by the consumer of a single-consumer queue
+    private volatile long numConsumed = 0;
+
+
+    public boolean singleTest(int numThreads, TestCase type, TestKind kind) {
+        // If we see an error here just increase the number of spaces
+        String testName = type.toString() + "-" + kind.toString();
+        String indentedName = testName + "                                  ".substring(testName.length());
+        System.out.print("##### "+indentedName+" #####  ");
+        final int maxThreads = BenchmarkQueues.maxThreads(type);
+        if (maxThreads != 0 && numThreads > maxThreads) {
+            System.out.println("SKIPPED");
+            return true;
+        }
+        queue = BenchmarkQueues.createQueue(type);
+        if ((kind == TestKind.Batched && !overridesBatchMethods(queue)) || (kind == TestKind.Drain && !hasDrain(queue))) {
+            System.out.println("SKIPPED");
+            return true;
+        }
+        fifoError = false;
+        numConsumed = 0;
+
+        final boolean split = BenchmarkQueues.isSingleConsumer(type) && numThreads > 1;
+        final int numProducers = split ? numThreads-1 : numThreads;
+        final WorkerThread[] workerThreads = new WorkerThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final BenchmarkQueues.Role role = !split ? BenchmarkQueues.Role.Both :
+                (i == 0 ? BenchmarkQueues.Role.Consumer : BenchmarkQueues.Role.Producer);
+            workerThreads[i] = new WorkerThread(numThreads, numProducers, role, kind, i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numDeqs = 0;
+        long sum = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numDeqs += workerThreads[i].numDeqs;
+            sum += workerThreads[i].sum;
+        }
+        Long item;
+        while ((item = queue.dequeue()) != null) {
+            numDeqs++;
+            sum += item & 0xFFFFFFFFL;
+        }
+
+        final long expectedDeqs = (long)numProducers*NUM_ITEMS;
+        final long expectedSum = (long)numProducers*((long)NUM_ITEMS*(NUM_ITEMS-1)/2);
+        if (numDeqs != expectedDeqs || sum != expectedSum || fifoError) {
+            System.out.println("FAILED  numDeqs="+numDeqs+" (expected "+expectedDeqs+")  sumOk="+(sum == expectedSum)+"  fifoError="+fifoError);
+            return false;
+        }
+        System.out.println("PASSED");
+        return true;
+    }
+
+
+    /**
+     * Returns true if the queue has its own enqueueAll() or dequeueInto()
+     */
+    private static boolean overridesBatchMethods(IQueue<?> queue) {
+        try {
+            final Class<?> c = queue.getClass();
+            return c.getMethod("enqueueAll", Object[].class, int.class, int.class).getDeclaringClass() != IQueue.class ||
+                   c.getMethod("dequeueInto", Object[].class, int.class).getDeclaringClass() != IQueue.class;
+        } catch (NoSuchMethodException e) {
+            throw new Error(e);
+        }
+    }
+
+
+    private static boolean hasDrain(IQueue<?> queue) {
+        return queue instanceof FAAArrayQueue || queue instanceof LazyIndexArrayQueue || queue instanceof Log2ArrayQueue;
+    }
+
+
+    /**
+     * Thrown by the sink of drain() to check that no item is lost
+     */
+    static class SinkException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SinkException() {
+            super(null, null, false, false);
+        }
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does the stress tests
+     */
+    class WorkerThread extends Thread {
+        final int numThreads;
+        final int numProducers;
+        final BenchmarkQueues.Role role;
+        final TestKind kind;
+        final int tid;
+        long numDeqs = 0;
+        long sum = 0;
+        final long[] lastSeen;
+        final Long[] burst = new Long[BURST_SIZE];
+        final ArrayList<Long> undelivered = new ArrayList<Long>();
+        int numDrains = 0;
+        // When not zero, the sink throws after passing this many items to check()
+        int throwAfter = 0;
+        final Consumer<Long> sink = item -> {
+            check(item);
+            if (throwAfter != 0 && --throwAfter == 0) throw new SinkException();
+        };
+
+        public WorkerThread(int numThreads, int numProducers, BenchmarkQueues.Role role, TestKind kind, int tid) {
+            this.numThreads = numThreads;
+            this.numProducers = numProducers;
+            this.role = role;
+            this.kind = kind;
+            this.tid = tid;
+            lastSeen = new long[numThreads];
+            Arrays.fill(lastSeen, -1);
+        }
+
+        public void run() {
+            switch (role) {
+            case Both:     runBoth(); break;
+            case Producer: runProducer(); break;
+            case Consumer: runConsumer(); break;
+            }
+        }
+
+        private void check(Long item) {
+            final int enqTid = (int)(item >>> 32);
+            final long seq = item & 0xFFFFFFFFL;
+            if (seq <= lastSeen[enqTid]) fifoError = true;
+            lastSeen[enqTid] = seq;
+            numDeqs++;
+            sum += seq;
+        }
+
+        /**
+         * Enqueues the items with sequence numbers i to i+BURST_SIZE-1
+         */
+        private void enqueueBurst(int i) {
+            final int len = Math.min(BURST_SIZE, NUM_ITEMS-i);
+            if (kind == TestKind.Batched) {
+                for (int j = 0; j < len; j++) burst[j] = ((long)tid << 32) | (i+j);
+                queue.enqueueAll(burst, 0, len);
+                return;
+            }
+            for (int j = i; j < i+len; j++) queue.enqueue(((long)tid << 32) | j);
+        }
+
+        /**
+         * Dequeues up to BURST_SIZE items and checks them
+         *
+         * @return the number of items dequeued
+         */
+        private int dequeueBurst() {
+            if (kind == TestKind.Drain && tid % 2 == 0) return drainBurst();
+            if (kind == TestKind.Batched) {
+                final int n = queue.dequeueInto(burst, BURST_SIZE);
+                for (int j = 0; j < n; j++) check(burst[j]);
+                return n;
+            }
+            for (int j = 0; j < BURST_SIZE; j++) {
+                final Long item = queue.dequeue();
+                if (item == null) return j;
+                check(item);
+            }
+            return BURST_SIZE;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int drainBurst() {
+            final long startDeqs = numDeqs;
+            throwAfter = (++numDrains % 16 == 0) ? BURST_SIZE/2 : 0;
+            try {
+                if (queue instanceof FAAArrayQueue) {
+                    undelivered.clear();
+                    ((FAAArrayQueue<Long>)queue).drain(sink, BURST_SIZE, undelivered);
+                } else if (queue instanceof LazyIndexArrayQueue) {
+                    ((LazyIndexArrayQueue<Long>)queue).drain(sink, BURST_SIZE);
+                } else {
+                    ((Log2ArrayQueue<Long>)queue).drain(sink, BURST_SIZE);
+                }
+            } catch (SinkException e) {
+                // Only FAAArrayQueue claims items that it doesn't pass to the sink
+                for (Long item : undelivered) check(item);
+            }
+            return (int)(numDeqs - startDeqs);
+        }
+
+        private void runBoth() {
+            for (int i = 0; i < NUM_ITEMS; i += BURST_SIZE) {
+                enqueueBurst(i);
+                dequeueBurst();
+            }
+        }
+
+        private void runProducer() {
+            for (int i = 0; i < NUM_ITEMS; i += BURST_SIZE) {
+                // Assume the other producers are going at the same rate as this one
+                while ((long)i*numProducers - numConsumed > MAX_BACKLOG) Thread.yield();
+                enqueueBurst(i);
+            }
+        }
+
+        private void runConsumer() {
+            final long expectedDeqs = (long)numProducers*NUM_ITEMS;
+            while (numDeqs < expectedDeqs) {
+                if (dequeueBurst() == 0) {
+                    Thread.yield();
+                    continue;
+                }
+                numConsumed = numDeqs;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        final int[] threadList = { 1, 2, 4, 8, 16 };
+        final StressTestQueues tests = new StressTestQueues();
+        boolean passed = true;
+        for (int nThreads : threadList) {
+            System.out.println("----- Stress tests numThreads=" +nThreads+" -----");
+            for (TestKind kind : TestKind.values()) {
+                for (TestCase type : TestCase.values()) passed &= tests.singleTest(nThreads, type, kind);
+            }
+        }
+        System.out.println(passed ? "All stress tests PASSED" : "Some stress tests FAILED");
+    }
+}
@@ -0,0 +1,151 @@
+package com.concurrencyfreaks.queues.array;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+
+/**
+ * This is a benchmark that sweeps the node buffer size of the array queues,
+ * to find which one works best on the local machine
+ *
+ * For each queue and each buffer size from MIN_BUFFER_SIZE to MAX_BUFFER_SIZE
+ * (powers of two), each thread does a burst of enqueues followed by the same
+ * number of dequeues, always with the same pre-allocated items. Besides the
+ * throughput, it shows the bytes allocated per operation, measured with
+ * com.sun.management.ThreadMXBean, and at the end the best size for each queue.
+ * The queues are created with withBufferSize(), which returns a SizeN
+ * subclass when there is one for the buffer size.
+ *
+ * Usage: BenchmarkBufferSize [numThreads] [numMilis]
+ */
+public class BenchmarkBufferSize {
+
+    public enum TestCase {
+        FAAArrayQueue,
+        LinearArrayQueue,
+        LazyIndexArrayQueue,
+        Log2ArrayQueue,
+    }
+
+    private final static int MIN_BUFFER_SIZE = 16;
+    private final static int MAX_BUFFER_SIZE = 4096;
+    private final static int BURST_SIZE = 100;
+
+    private final int numMilis;
+    private final WorkerThread[] workerThreads;
+    private IQueue<Integer> queue;
+
+
+    public BenchmarkBufferSize(int numThreads, int numMilis) {
+        this.numMilis = numMilis;
+        workerThreads = new WorkerThread[numThreads];
+    }
+
+
+    static <T> IQueue<T> createQueue(TestCase type, int bufferSize) {
+        switch (type) {
+        case FAAArrayQueue:       return FAAArrayQueue.<T>withBufferSize(bufferSize, false);
+        case LinearArrayQueue:    return LinearArrayQueue.<T>withBufferSize(bufferSize, false);
+        case LazyIndexArrayQueue: return LazyIndexArrayQueue.<T>withBufferSize(bufferSize, false);
+        case Log2ArrayQueue:      return Log2ArrayQueue.<T>withBufferSize(bufferSize, false);
+        }
+        return null;
+    }
+
+
+    /**
+     * Runs all buffer sizes for one queue and returns the best one
+     */
+    public int sweep(TestCase type) {
+        System.out.println("----- "+type+"  numThreads=" +workerThreads.length+" -----");
+        int bestSize = 0;
+        long bestOps = -1;
+        for (int bufferSize = MIN_BUFFER_SIZE; bufferSize <= MAX_BUFFER_SIZE; bufferSize *= 2) {
+            final long opsPerSec = singleTest(type, bufferSize);
+            if (opsPerSec > bestOps) {
+                bestOps = opsPerSec;
+                bestSize = bufferSize;
+            }
+        }
+        System.out.println("Best bufferSize for "+type+" is "+bestSize);
+        System.out.println();
+        return bestSize;
+    }
+
+
+    public long singleTest(TestCase type, int bufferSize) {
+        System.out.print("##### bufferSize="+bufferSize+"                ".substring(Integer.toString(bufferSize).length())+" #####  ");
+        queue = createQueue(type, bufferSize);
+        final int numThreads = workerThreads.length;
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numOps += workerThreads[i].numOps;
+            allocatedBytes += workerThreads[i].allocatedBytes;
+        }
+        final long opsPerSec = numOps*1000/numMilis;
+        System.out.println("numOps/sec = "+opsPerSec+"  bytes/op = "+(numOps == 0 ? 0 : allocatedBytes/(double)numOps));
+        return opsPerSec;
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final int tid;
+        volatile boolean quit = false;
+        long numOps = 0;
+        long allocatedBytes = 0;
+
+        public WorkerThread(int tid) {
+            this.tid = tid;
+        }
+
+        public void run() {
+            final Integer[] items = new Integer[BURST_SIZE];
+            for (int i = 0; i < BURST_SIZE; i++) items[i] = new Integer(tid*BURST_SIZE+i);
+            final long startBytes = BenchmarkLongQueue.getAllocatedBytes();
+            while (!quit) {
+                for (int i = 0; i < BURST_SIZE; i++) queue.enqueue(items[i]);
+                for (int i = 0; i < BURST_SIZE; i++) {
+                    while (queue.dequeue() == null);
+                }
+                numOps += 2*BURST_SIZE;
+            }
+            allocatedBytes = BenchmarkLongQueue.getAllocatedBytes() - startBytes;
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        final int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int numMilis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        final BenchmarkBufferSize bench = new BenchmarkBufferSize(numThreads, numMilis);
+        for (TestCase type : TestCase.values()) {
+            bench.sweep(type);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+
+
+/**
+ * This is a performance benchmark of FAALongArrayQueue against FAAArrayQueue<Long>
+ *
+ * Each thread does a burst of enqueues of sequence numbers followed by the
+ * same number of dequeues. Sequence numbers are large enough to not be in
+ * the Long cache, which means that FAAArrayQueue<Long> has to box each one.
+ * Besides the throughput, it shows the bytes allocated per operation,
+ * measured with com.sun.management.ThreadMXBean.
+ */
+public class BenchmarkLongQueue {
+
+    public enum TestCase {
+        FAAArrayQueueBoxed,
+        FAALongArrayQueue,
+    }
+
+    private final static int BURST_SIZE = 100;
+
+    private final int numMilis;
+    private final WorkerThread[] workerThreads;
+    private FAAArrayQueue<Long> boxedQueue;
+    private FAALongArrayQueue longQueue;
+
+
+    public BenchmarkLongQueue(int numThreads, int numMilis) {
+        this.numMilis = numMilis;
+        workerThreads = new WorkerThread[numThreads];
+        System.out.println("----- Performance tests numThreads=" +numThreads+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numThreads, type);
+        System.out.println();
+    }
+
+
+    public void singleTest(int numThreads, TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        boxedQueue = new FAAArrayQueue<Long>();
+        longQueue = new FAALongArrayQueue();
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(type, i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numOps += workerThreads[i].numOps;
+            allocatedBytes += workerThreads[i].allocatedBytes;
+        }
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis)+"  bytes/op = "+(numOps == 0 ? 0 : allocatedBytes/(double)numOps));
+    }
+
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * or zero if the JVM doesn't support it
+     */
+    static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final TestCase type;
+        final int tid;
+        volatile boolean quit = false;
+        long numOps = 0;
+        long allocatedBytes = 0;
+
+        public WorkerThread(TestCase type, int tid) {
+            this.type = type;
+            this.tid = tid;
+        }
+
+        public void run() {
+            long seq = ((long)tid << 32) + 1000;
+            final long startBytes = getAllocatedBytes();
+            while (!quit) {
+                switch (type) {
+                case FAAArrayQueueBoxed:
+                    for (int i = 0; i < BURST_SIZE; i++) boxedQueue.enqueue(seq++);
+                    for (int i = 0; i < BURST_SIZE; i++) {
+                        while (boxedQueue.dequeue() == null);
+                    }
+                    break;
+                case FAALongArrayQueue:
+                    for (int i = 0; i < BURST_SIZE; i++) longQueue.enqueue(seq++);
+                    for (int i = 0; i < BURST_SIZE; i++) {
+                        while (longQueue.dequeueOrDefault(-1) == -1);
+                    }
+                    break;
+                }
+                numOps += 2*BURST_SIZE;
+            }
+            allocatedBytes = getAllocatedBytes() - startBytes;
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> threadList = new LinkedList<Integer>(Arrays.asList(1, 2, 4, 8, 16, 32));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        for (Integer nThreads : threadList) {
+            new BenchmarkLongQueue(nThreads, 10000);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+        }
+    }
+}
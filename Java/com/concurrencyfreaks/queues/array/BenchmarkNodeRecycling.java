@@ -0,0 +1,135 @@
+package com.concurrencyfreaks.queues.array;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+
+/**
+ * This is a performance benchmark of the array queues with and without node
+ * recycling (see NodePool)
+ *
+ * Each thread does a burst of enqueues followed by the same number of
+ * dequeues, always with the same pre-allocated items, which means that any
+ * allocation comes from the queue itself. Besides the throughput, it shows
+ * the bytes allocated per operation, measured with com.sun.management.ThreadMXBean.
+ */
+public class BenchmarkNodeRecycling {
+
+    public enum TestCase {
+        FAAArrayQueue,
+        FAAArrayQueueRecycled,
+        LinearArrayQueue,
+        LinearArrayQueueRecycled,
+        LazyIndexArrayQueue,
+        LazyIndexArrayQueueRecycled,
+        Log2ArrayQueue,
+        Log2ArrayQueueRecycled,
+    }
+
+    private final static int BURST_SIZE = 100;
+
+    private final int numMilis;
+    private final WorkerThread[] workerThreads;
+    private IQueue<Integer> queue;
+
+
+    public BenchmarkNodeRecycling(int numThreads, int numMilis) {
+        this.numMilis = numMilis;
+        workerThreads = new WorkerThread[numThreads];
+        System.out.println("----- Performance tests numThreads=" +numThreads+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numThreads, type);
+        System.out.println();
+    }
+
+
+    static <T> IQueue<T> createQueue(TestCase type) {
+        switch (type) {
+        case FAAArrayQueue:               return new FAAArrayQueue<T>(false);
+        case FAAArrayQueueRecycled:       return new FAAArrayQueue<T>(true);
+        case LinearArrayQueue:            return new LinearArrayQueue<T>(false);
+        case LinearArrayQueueRecycled:    return new LinearArrayQueue<T>(true);
+        case LazyIndexArrayQueue:         return new LazyIndexArrayQueue<T>(false);
+        case LazyIndexArrayQueueRecycled: return new LazyIndexArrayQueue<T>(true);
+        case Log2ArrayQueue:              return new Log2ArrayQueue<T>(false);
+        case Log2ArrayQueueRecycled:      return new Log2ArrayQueue<T>(true);
+        }
+        return null;
+    }
+
+
+    public void singleTest(int numThreads, TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        queue = createQueue(type);
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numOps += workerThreads[i].numOps;
+            allocatedBytes += workerThreads[i].allocatedBytes;
+        }
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis)+"  bytes/op = "+(numOps == 0 ? 0 : allocatedBytes/(double)numOps));
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final int tid;
+        volatile boolean quit = false;
+        long numOps = 0;
+        long allocatedBytes = 0;
+
+        public WorkerThread(int tid) {
+            this.tid = tid;
+        }
+
+        public void run() {
+            final Integer[] items = new Integer[BURST_SIZE];
+            for (int i = 0; i < BURST_SIZE; i++) items[i] = new Integer(tid*BURST_SIZE+i);
+            final long startBytes = BenchmarkLongQueue.getAllocatedBytes();
+            while (!quit) {
+                for (int i = 0; i < BURST_SIZE; i++) queue.enqueue(items[i]);
+                for (int i = 0; i < BURST_SIZE; i++) {
+                    while (queue.dequeue() == null);
+                }
+                numOps += 2*BURST_SIZE;
+            }
+            allocatedBytes = BenchmarkLongQueue.getAllocatedBytes() - startBytes;
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkedList<Integer> threadList = new LinkedList<Integer>(Arrays.asList(1, 2, 4, 8, 16, 32));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        for (Integer nThreads : threadList) {
+            new BenchmarkNodeRecycling(nThreads, 10000);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+        }
+    }
+}
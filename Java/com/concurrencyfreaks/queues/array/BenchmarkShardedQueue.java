@@ -0,0 +1,106 @@
+package com.concurrencyfreaks.queues.array;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+
+/**
+ * This is a scaling benchmark of ShardedQueue against a single FAAArrayQueue
+ *
+ * Each thread does enqueue/dequeue pairs, always with the same pre-allocated
+ * item, for numThreads from 1 up to the number of cores, doubling each time.
+ *
+ * Usage: BenchmarkShardedQueue [numLanes] [numMilis]
+ */
+public class BenchmarkShardedQueue {
+
+    public enum TestCase {
+        FAAArrayQueue,
+        ShardedQueue,
+    }
+
+    private final int numMilis;
+    private final int numLanes;
+    private final WorkerThread[] workerThreads;
+    private IQueue<Integer> queue;
+
+
+    public BenchmarkShardedQueue(int numThreads, int numLanes, int numMilis) {
+        this.numMilis = numMilis;
+        this.numLanes = numLanes;
+        workerThreads = new WorkerThread[numThreads];
+        System.out.println("----- Performance tests numThreads=" +numThreads+" numLanes="+numLanes+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numThreads, type);
+        System.out.println();
+    }
+
+
+    public void singleTest(int numThreads, TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        switch (type) {
+        case FAAArrayQueue: queue = new FAAArrayQueue<Integer>(); break;
+        case ShardedQueue:  queue = new ShardedQueue<Integer>(numLanes); break;
+        }
+
+        // Create the threads and then start them all in one go
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(i);
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+
+        try {
+            Thread.sleep(numMilis);
+        } catch(InterruptedException e){
+            System.out.println("InterruptedException");
+        }
+        for (int i = 0; i < numThreads; i++) workerThreads[i].quit = true;
+
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numOps = 0;
+        for (int i = 0; i < numThreads; i++) numOps += workerThreads[i].numOps;
+        System.out.println("numOps/sec = "+(numOps*1000/numMilis));
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does performance tests
+     */
+    class WorkerThread extends Thread {
+        final Integer item;
+        volatile boolean quit = false;
+        long numOps = 0;
+
+        public WorkerThread(int tid) {
+            this.item = new Integer(tid);
+        }
+
+        public void run() {
+            while (!quit) {
+                queue.enqueue(item);
+                while (queue.dequeue() == null);
+                numOps += 2;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws InterruptedException {
+        final int numCores = Runtime.getRuntime().availableProcessors();
+        final int numLanes = args.length > 0 ? Integer.parseInt(args[0]) : ShardedQueue.NUM_LANES;
+        final int numMilis = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        System.out.println("This system has " + numCores + " cores");
+        for (int nThreads = 1; ; nThreads *= 2) {
+            if (nThreads > numCores) nThreads = numCores;
+            new BenchmarkShardedQueue(nThreads, numLanes, numMilis);
+            Thread.sleep(1000); // sleep for 1 second to allow the GC to work a bit
+            if (nThreads == numCores) break;
+        }
+    }
+}
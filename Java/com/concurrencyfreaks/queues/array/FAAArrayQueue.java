@@ -28,8 +28,11 @@
 package com.concurrencyfreaks.queues.array;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 
 import com.concurrencyfreaks.queues.IQueue;
 
@@ -63,6 +66,39 @@ import com.concurrencyfreaks.queues.IQueue;
  * Uncontended enqueue: 1 FAA + 1 CAS + 1 HP
  * Uncontended dequeue: 1 FAA + 1 CAS + 1 HP
  *
+ * Batches:
+ * enqueueAll() and dequeueInto() claim a whole range of indexes in the
+ * current node with a single FAA of the number of items (capped at
+ * BUFFER_SIZE) and then do one CAS/getAndSet per entry in that range.
+ * When the range crosses the end of the node, the remaining items go to
+ * the next node, and a new node is created pre-filled with as many items
+ * as fit. Each item is linearizable on its own, but a batch is not atomic,
+ * i.e. items from other threads may be interleaved with the ones of a batch.
+ * The items of a batch keep their relative order.
+ * Uncontended enqueue of a batch of N (N <= BUFFER_SIZE): 1 FAA + N CAS
+ * Uncontended dequeue of a batch of N (N <= BUFFER_SIZE): 1 FAA + N CAS
+ *
+ * Draining:
+ * drain() passes the items straight to a Consumer instead of copying them
+ * to an array. It claims ranges of entries like dequeueInto() but keeps
+ * its own reference to the head node, and only reads head again when that
+ * node has been drained and head has to advance, which is done once per node.
+ * Each item is linearizable on its own, so concurrent calls to dequeue()
+ * take items that are not passed to the sink. The entries of a range
+ * belong to the drainer as soon as it does the FAA, so if the sink throws,
+ * the items that were claimed but not passed to the sink are no longer in
+ * the queue. They are handed back to the caller, either in a list passed to
+ * drain(), or in an UndeliveredItemsException added to the sink's exception
+ * as suppressed.
+ *
+ * Node recycling:
+ * When created with recycleNodes=true, each operation is wrapped in
+ * NodePool.enter()/exit(), and the dequeuer that advances head retires the
+ * drained node to the NodePool, from where it will be re-used by an
+ * enqueuer that needs a new node, once no other thread can access it.
+ * This removes nearly all allocation from the queue, at the cost of a
+ * volatile store and a ThreadLocal lookup on each operation.
+ *
  *
  * <p>
  * Lock-Free Linked List as described in Maged Michael and Michael Scott's paper:
@@ -79,17 +115,58 @@ import com.concurrencyfreaks.queues.IQueue;
  */
 public class FAAArrayQueue<E> implements IQueue<E> {
 
+    // Default number of items in each node
     static final int BUFFER_SIZE = 128;
+
+    /**
+     * Added as suppressed to an exception thrown by the sink of
+     * drain(sink, limit), with the items that drain() had claimed but not
+     * passed to the sink. A Throwable can't have type parameters, use
+     * drain(sink, limit, undelivered) to get the items in a typed list.
+     */
+    public static class UndeliveredItemsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final List<?> items;
+
+        UndeliveredItemsException(List<?> items) {
+            super(items.size()+" items claimed by drain() were not passed to the sink", null, false, false);
+            this.items = items;
+        }
+
+        /**
+         * Returns the undelivered items, in FIFO order
+         */
+        public List<?> getItems() {
+            return items;
+        }
+    }
     
     static class Node<E> {
         final AtomicInteger deqidx = new AtomicInteger(0);
-        final AtomicReferenceArray<E> items = new AtomicReferenceArray<E>(BUFFER_SIZE);
+        final AtomicReferenceArray<E> items;
         final AtomicInteger enqidx = new AtomicInteger(1);
         volatile Node<E> next = null;
         // Start with the first entry pre-filled and enqidx at 1        
-        Node (final E item) {
+        Node (final int size, final E item) {
+            items = new AtomicReferenceArray<E>(size);
             items.lazySet(0, item); 
         }
+
+        // Start with the first len entries pre-filled and enqidx at len
+        Node (final int size, final E[] src, final int off, final int len) {
+            items = new AtomicReferenceArray<E>(size);
+            for (int i = 0; i < len; i++) items.lazySet(i, src[off+i]);
+            enqidx.lazySet(len);
+        }
+
+        // Re-initialize a recycled node, same as Node(src, off, len)
+        void reset(final E[] src, final int off, final int len) {
+            for (int i = 0; i < len; i++) items.lazySet(i, src[off+i]);
+            for (int i = len; i < items.length(); i++) items.lazySet(i, null);
+            deqidx.lazySet(0);
+            enqidx.lazySet(len);
+            UNSAFE.putOrderedObject(this, nextOffset, null);
+        }
         
         /**
          * @param cmp Previous {@code next}
@@ -122,14 +199,111 @@ public class FAAArrayQueue<E> implements IQueue<E> {
     private volatile Node<E> tail;
 
     final E taken = (E)new Object(); // Muuuahahah !
+
+    // Only used when node recycling is enabled
+    private final NodePool<Node<E>> pool;
     
     
     public FAAArrayQueue() {
-        final Node<E> sentinelNode = new Node<E>(null);
+        this(BUFFER_SIZE, false);
+    }
+
+
+    /**
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    public FAAArrayQueue(boolean recycleNodes) {
+        this(BUFFER_SIZE, recycleNodes);
+    }
+
+
+    /**
+     * For the subclasses, whose bufferSize() must return bufferSize
+     *
+     * @param bufferSize number of items in each node
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    protected FAAArrayQueue(int bufferSize, boolean recycleNodes) {
+        if (bufferSize < 1) throw new IllegalArgumentException();
+        pool = recycleNodes ? new NodePool<Node<E>>() : null;
+        final Node<E> sentinelNode = new Node<E>(bufferSize, null);
         sentinelNode.enqidx.set(0);
         head = sentinelNode;
         tail = sentinelNode;
     }
+
+
+    /**
+     * Returns a queue with bufferSize items in each node, which is one of
+     * the SizeN subclasses if there is one for bufferSize
+     *
+     * @param bufferSize number of items in each node
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    public static <E> FAAArrayQueue<E> withBufferSize(int bufferSize, boolean recycleNodes) {
+        switch (bufferSize) {
+        case 32:   return new Size32<E>(recycleNodes);
+        case 128:  return new Size128<E>(recycleNodes);
+        case 1024: return new Size1024<E>(recycleNodes);
+        }
+        return new AnySize<E>(bufferSize, recycleNodes);
+    }
+
+
+    /**
+     * Returns the number of items in each node, which the queue's methods
+     * read once into a local variable. It is a constant unless this queue
+     * was created by withBufferSize() with a size that has no SizeN subclass.
+     */
+    public int bufferSize() {
+        return BUFFER_SIZE;
+    }
+
+
+    /**
+     * Subclasses with a fixed number of items in each node.
+     * <p>
+     * Their bufferSize() returns a constant, like the one of the base class
+     * returns BUFFER_SIZE. As long as a call site of the queue's methods
+     * sees only one of these classes, the JIT inlines bufferSize() and can
+     * fold the constant into the index checks and loop bounds, like it does
+     * with a static final. The same goes for the SizeN subclasses of
+     * LinearArrayQueue, LazyIndexArrayQueue and Log2ArrayQueue.
+     */
+    public static class Size32<E> extends FAAArrayQueue<E> {
+        public Size32() { this(false); }
+        public Size32(boolean recycleNodes) { super(32, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 32; }
+    }
+
+
+    public static class Size128<E> extends FAAArrayQueue<E> {
+        public Size128() { this(false); }
+        public Size128(boolean recycleNodes) { super(128, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 128; }
+    }
+
+
+    public static class Size1024<E> extends FAAArrayQueue<E> {
+        public Size1024() { this(false); }
+        public Size1024(boolean recycleNodes) { super(1024, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 1024; }
+    }
+
+
+    // Any other number of items in each node, created by withBufferSize()
+    static final class AnySize<E> extends FAAArrayQueue<E> {
+        private final int bufferSize;
+        AnySize(int bufferSize, boolean recycleNodes) {
+            super(bufferSize, recycleNodes);
+            this.bufferSize = bufferSize;
+        }
+        @Override
+        public int bufferSize() { return bufferSize; }
+    }
     
     
     /**
@@ -139,14 +313,26 @@ public class FAAArrayQueue<E> implements IQueue<E> {
      */
     public void enqueue(E item) {
         if (item == null) throw new NullPointerException();
+        if (pool == null) {
+            enqueueItem(item);
+            return;
+        }
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        enqueueItem(item);
+        pool.exit(state);
+    }
+
+
+    private void enqueueItem(E item) {
+        final int size = bufferSize();
         while (true) {
             final Node<E> ltail = tail;
             final int idx = ltail.enqidx.getAndIncrement();
-            if (idx > BUFFER_SIZE-1) { // This node is full
+            if (idx > size-1) { // This node is full
                 if (ltail != tail) continue;
                 final Node<E> lnext = ltail.next;
                 if (lnext == null) {
-                    final Node<E> newNode = new Node<E>(item);
+                    final Node<E> newNode = newNode(item);
                     if (ltail.casNext(null, newNode)) {
                         casTail(ltail, newNode);
                         return;
@@ -165,13 +351,24 @@ public class FAAArrayQueue<E> implements IQueue<E> {
      * Progress condition: lock-free
      */
     public E dequeue() {
+        if (pool == null) return dequeueItem();
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        final E item = dequeueItem();
+        pool.exit(state);
+        return item;
+    }
+
+
+    private E dequeueItem() {
+        final int size = bufferSize();
         while (true) {
             Node<E> lhead = head;
             if (lhead.deqidx.get() >= lhead.enqidx.get() && lhead.next == null) return null;
             final int idx = lhead.deqidx.getAndIncrement();
-            if (idx > BUFFER_SIZE-1) { // This node has been drained, check if there is another one
-                if (lhead.next == null) return null;  // No more nodes in the queue
-                casHead(lhead, lhead.next);
+            if (idx > size-1) { // This node has been drained, check if there is another one
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) return null;  // No more nodes in the queue
+                if (casHead(lhead, lnext) && pool != null) retire(lhead, lnext);
                 continue;
             }
             final E item = lhead.items.getAndSet(idx, taken); // We can use a CAS instead
@@ -180,6 +377,228 @@ public class FAAArrayQueue<E> implements IQueue<E> {
     }
         
     
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * Reserves a range of entries in the tail node with a single FAA and
+     * fills them in order. If a dequeuer has already marked one of the
+     * reserved entries as taken, the item goes to the next entry.
+     *
+     * @param items none of the items in [off, off+len) may be null
+     */
+    public void enqueueAll(E[] items, int off, int len) {
+        final int end = off+len;
+        for (int i = off; i < end; i++) if (items[i] == null) throw new NullPointerException();
+        if (pool == null) {
+            enqueueItems(items, off, end);
+            return;
+        }
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        enqueueItems(items, off, end);
+        pool.exit(state);
+    }
+
+
+    private void enqueueItems(E[] items, int off, int end) {
+        final int size = bufferSize();
+        int i = off;
+        while (i < end) {
+            final Node<E> ltail = tail;
+            final int want = Math.min(end-i, size);
+            final int idx = ltail.enqidx.getAndAdd(want);
+            if (idx > size-1) { // This node is full
+                if (ltail != tail) continue;
+                final Node<E> lnext = ltail.next;
+                if (lnext == null) {
+                    final Node<E> newNode = newNode(items, i, want);
+                    if (ltail.casNext(null, newNode)) {
+                        casTail(ltail, newNode);
+                        i += want;
+                    }
+                } else {
+                    casTail(ltail, lnext);
+                }
+                continue;
+            }
+            final int last = Math.min(idx+want, size);
+            for (int j = idx; j < last; j++) {
+                if (ltail.items.compareAndSet(j, null, items[i])) i++;
+            }
+        }
+    }
+
+
+    /**
+     * Progress condition: lock-free
+     *
+     * Claims with a single FAA as many entries as seem to be available in
+     * the head node (up to max) and takes them one by one.
+     *
+     * @return the number of items placed in {@code dst}, starting at index 0
+     */
+    public int dequeueInto(E[] dst, int max) {
+        if (pool == null) return dequeueItems(dst, max);
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        final int n = dequeueItems(dst, max);
+        pool.exit(state);
+        return n;
+    }
+
+
+    private int dequeueItems(E[] dst, int max) {
+        final int size = bufferSize();
+        int n = 0;
+        while (n < max) {
+            Node<E> lhead = head;
+            final int ldeqidx = lhead.deqidx.get();
+            final int lenqidx = lhead.enqidx.get();
+            if (ldeqidx >= lenqidx && lhead.next == null) break;
+            final int want = Math.max(1, Math.min(max-n, Math.min(lenqidx, size)-ldeqidx));
+            final int idx = lhead.deqidx.getAndAdd(want);
+            if (idx > size-1) { // This node has been drained, check if there is another one
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) break;  // No more nodes in the queue
+                if (casHead(lhead, lnext) && pool != null) retire(lhead, lnext);
+                continue;
+            }
+            final int last = Math.min(idx+want, size);
+            for (int j = idx; j < last; j++) {
+                final E item = lhead.items.getAndSet(j, taken);
+                if (item != null) dst[n++] = item;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * Progress condition: lock-free (not counting the calls to the sink)
+     *
+     * Takes up to {@code limit} items from the queue and passes each one to
+     * {@code sink}, in FIFO order. If the sink throws an exception, the items
+     * that were claimed from the same node but not yet passed to the sink
+     * have been removed from the queue. They are added (in FIFO order) to an
+     * {@link UndeliveredItemsException} that is added to the exception with
+     * addSuppressed(), and the exception is re-thrown.
+     * When node recycling is enabled, the sink is called while this thread
+     * is in the middle of an operation, so a slow sink delays the re-use of
+     * nodes by other threads.
+     *
+     * @return the number of items passed to {@code sink}
+     */
+    public int drain(Consumer<? super E> sink, int limit) {
+        if (sink == null) throw new NullPointerException();
+        if (pool == null) return drainItems(sink, limit, null);
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        try {
+            return drainItems(sink, limit, null);
+        } finally {
+            pool.exit(state);
+        }
+    }
+
+
+    /**
+     * Progress condition: lock-free (not counting the calls to the sink)
+     *
+     * Same as drain(sink, limit), but if the sink throws an exception, the
+     * items that were claimed but not passed to the sink are added (in FIFO
+     * order) to {@code undelivered} before the exception is re-thrown, and
+     * no UndeliveredItemsException is created.
+     *
+     * @return the number of items passed to {@code sink}
+     */
+    public int drain(Consumer<? super E> sink, int limit, List<? super E> undelivered) {
+        if (sink == null || undelivered == null) throw new NullPointerException();
+        if (pool == null) return drainItems(sink, limit, undelivered);
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        try {
+            return drainItems(sink, limit, undelivered);
+        } finally {
+            pool.exit(state);
+        }
+    }
+
+
+    // If undelivered is null, the undelivered items go in an UndeliveredItemsException
+    private int drainItems(Consumer<? super E> sink, int limit, List<? super E> undelivered) {
+        final int size = bufferSize();
+        int n = 0;
+        Node<E> lhead = head;
+        while (n < limit) {
+            final int ldeqidx = lhead.deqidx.get();
+            final int lenqidx = lhead.enqidx.get();
+            if (ldeqidx >= lenqidx && lhead.next == null) break;
+            final int want = Math.max(1, Math.min(limit-n, Math.min(lenqidx, size)-ldeqidx));
+            final int idx = lhead.deqidx.getAndAdd(want);
+            if (idx > size-1) { // This node has been drained, check if there is another one
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) break;  // No more nodes in the queue
+                if (casHead(lhead, lnext) && pool != null) retire(lhead, lnext);
+                lhead = head;
+                continue;
+            }
+            final int last = Math.min(idx+want, size);
+            int j = idx;
+            try {
+                while (j < last) {
+                    final E item = lhead.items.getAndSet(j++, taken);
+                    if (item != null) {
+                        n++;
+                        sink.accept(item);
+                    }
+                }
+            } catch (Throwable e) {
+                // No other dequeuer will look at these entries, give their items to the caller
+                final List<? super E> items = (undelivered != null) ? undelivered : new ArrayList<E>();
+                while (j < last) {
+                    final E item = lhead.items.getAndSet(j++, taken);
+                    if (item != null) items.add(item);
+                }
+                if (undelivered == null && !items.isEmpty()) e.addSuppressed(new UndeliveredItemsException(items));
+                throw e;
+            }
+        }
+        return n;
+    }
+
+
+    private Node<E> newNode(E item) {
+        if (pool != null) {
+            final Node<E> node = pool.poll();
+            if (node != null) {
+                node.reset(null, 0, 0);
+                node.items.lazySet(0, item);
+                node.enqidx.lazySet(1);
+                return node;
+            }
+        }
+        return new Node<E>(bufferSize(), item);
+    }
+
+
+    private Node<E> newNode(E[] src, int off, int len) {
+        if (pool != null) {
+            final Node<E> node = pool.poll();
+            if (node != null) {
+                node.reset(src, off, len);
+                return node;
+            }
+        }
+        return new Node<E>(bufferSize(), src, off, len);
+    }
+
+
+    /**
+     * Called by the thread that advanced head from lhead to lnext. Before
+     * retiring lhead we must make sure that tail is no longer pointing to it.
+     */
+    private void retire(Node<E> lhead, Node<E> lnext) {
+        if (tail == lhead) casTail(lhead, lnext);
+        pool.retire(lhead);
+    }
+
+
     private boolean casTail(Node<E> cmp, Node<E> val) {
         return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
     }
@@ -0,0 +1,277 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> Fetch-And-Add Bounded Array Queue </h1>
+ *
+ * A bounded queue with a single pre-allocated ring of capacity entries
+ * (rounded up to a power of two), where enqueuers and dequeuers use FAA to
+ * obtain an index in the ring, like in FAAArrayQueue.
+ * Unlike FAAArrayQueue, the entries are re-used on every lap around the ring,
+ * so each entry can't just go from null to item to taken. Instead, each
+ * entry has a word with its index, which is the ticket of the enqueuer and
+ * dequeuer allowed to use it on the current lap, plus a full bit and an
+ * unsafe bit, with the same state transitions as a CRQ ring in LCRQueue.
+ * The queue never allocates after construction.
+ *
+ * offer() returns false if the queue is full, i.e. if there are capacity
+ * tickets between head and tail. An enqueuer that loses its entry to a
+ * dequeuer takes a new ticket, so under contention offer() may see the
+ * queue as full slightly before it holds capacity items.
+ * The timed offer() and poll(), and enqueue(), which waits until there is
+ * room, use a spin-then-park wait strategy: they retry MAX_SPINS times and
+ * then park for PARK_NANOS between retries.
+ *
+ * Enqueue algorithm: FAA + CRQ enqueue on the cell
+ * Dequeue algorithm: FAA + CRQ dequeue on the cell
+ * Consistency: Linearizable
+ * offer() progress: lock-free
+ * poll() progress: lock-free
+ * Uncontended offer: 1 FAA + 2 CAS
+ * Uncontended poll: 1 FAA + 1 CAS
+ *
+ * <p>
+ * LCRQ by Adam Morrison and Yehuda Afek:
+ * http://www.cs.tau.ac.il/~mad/publications/ppopp2013-x86queues.pdf
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class FAABoundedArrayQueue<E> implements IQueue<E> {
+
+    static final int MAX_SPINS = 1000;
+    static final long PARK_NANOS = 50*1000;
+
+    // Bits of the cell word
+    private static final long UNSAFE_BIT = 1L << 63;
+    private static final long FULL_BIT   = 1L << 62;
+    private static final long INDEX_MASK = FULL_BIT - 1;
+
+    @sun.misc.Contended
+    private final AtomicLong head = new AtomicLong(0);
+    @sun.misc.Contended
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLongArray cells;
+    private final AtomicReferenceArray<E> items;
+    private final int capacity;
+    private final int mask;
+
+
+    /**
+     * @param capacity maximum number of items in the queue, will be rounded
+     * up to the next power of two
+     */
+    public FAABoundedArrayQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException();
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity-1) << 1;
+        this.mask = this.capacity-1;
+        cells = new AtomicLongArray(this.capacity);
+        items = new AtomicReferenceArray<E>(this.capacity);
+        for (int i = 0; i < this.capacity; i++) cells.lazySet(i, i);
+    }
+
+
+    public int capacity() {
+        return capacity;
+    }
+
+
+    private static long nodeIndex(long w)    { return w & INDEX_MASK; }
+    private static boolean isUnsafe(long w)  { return (w & UNSAFE_BIT) != 0; }
+    private static boolean isFull(long w)    { return (w & FULL_BIT) != 0; }
+
+
+    private void fixState() {
+        while (true) {
+            final long t = tail.get();
+            final long h = head.get();
+            if (tail.get() != t) continue;
+            if (h > t) {
+                if (tail.compareAndSet(t, h)) break;
+                continue;
+            }
+            break;
+        }
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     * @return {@code false} if the queue is full
+     */
+    public boolean offer(E item) {
+        if (item == null) throw new NullPointerException();
+        while (true) {
+            if (tail.get() - head.get() >= capacity) return false;
+            final long tailticket = tail.getAndIncrement();
+            final int j = (int)(tailticket & mask);
+            final long w = cells.get(j);
+            if (!isFull(w) && nodeIndex(w) <= tailticket && (!isUnsafe(w) || head.get() <= tailticket)) {
+                // Reserve the entry, then publish it on the cell word
+                if (items.compareAndSet(j, null, item)) {
+                    if (cells.compareAndSet(j, w, FULL_BIT | tailticket)) return true;
+                    items.lazySet(j, null);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Progress Condition: Blocking (spin-then-park while the queue is full)
+     *
+     * @param item must not be null
+     * @return {@code false} if the queue was still full after timeout
+     */
+    public boolean offer(E item, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(item)) return true;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int spins = 0;
+        while (!offer(item)) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            if (spins < MAX_SPINS) {
+                spins++;
+            } else {
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NANOS));
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Waits (spin-then-park) until there is room in the queue.
+     *
+     * Progress Condition: Blocking
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        int spins = 0;
+        while (!offer(item)) {
+            if (spins < MAX_SPINS) {
+                spins++;
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+
+    /**
+     * Progress condition: lock-free
+     *
+     * @return the item at the head of the queue or {@code null} if the queue is empty
+     */
+    public E poll() {
+        while (true) {
+            if (head.get() >= tail.get()) return null;
+            final long headticket = head.getAndIncrement();
+            final int j = (int)(headticket & mask);
+            int r = 0;
+            long t = 0;
+
+            while (true) {
+                final long w = cells.get(j);
+                final long unsafe = w & UNSAFE_BIT;
+                final long idx = nodeIndex(w);
+                if (idx > headticket) break;
+
+                if (isFull(w)) {
+                    if (idx == headticket) {
+                        final E item = items.get(j);
+                        if (cells.compareAndSet(j, w, unsafe | (headticket + capacity))) {
+                            items.lazySet(j, null);
+                            return item;
+                        }
+                    } else {
+                        if (cells.compareAndSet(j, w, w | UNSAFE_BIT)) break;
+                    }
+                } else {
+                    if ((r & ((1 << 10) - 1)) == 0) t = tail.get();
+                    if (unsafe != 0) { // Nothing to do, move along
+                        if (cells.compareAndSet(j, w, unsafe | (headticket + capacity))) break;
+                    } else if (t < headticket + 1 || r > 200000) {
+                        if (cells.compareAndSet(j, w, headticket + capacity)) break;
+                    } else {
+                        ++r;
+                    }
+                }
+            }
+
+            if (tail.get() <= headticket + 1) {
+                fixState();
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * Progress Condition: Blocking (spin-then-park while the queue is empty)
+     *
+     * @return the item at the head of the queue or {@code null} if the queue
+     * was still empty after timeout
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E item = poll();
+        if (item != null) return item;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int spins = 0;
+        while ((item = poll()) == null) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            if (spins < MAX_SPINS) {
+                spins++;
+            } else {
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NANOS));
+            }
+        }
+        return item;
+    }
+
+
+    public E dequeue() {
+        return poll();
+    }
+}
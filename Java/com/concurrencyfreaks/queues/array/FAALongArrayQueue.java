@@ -0,0 +1,235 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> Fetch-And-Add Long Array Queue </h1>
+ *
+ * Same as FAAArrayQueue but specialized for primitive long values, so that
+ * enqueue(long) and dequeueOrDefault(long) don't box.
+ *
+ * Each node has a plain long[] with the values and a parallel array with the
+ * state of each entry, which plays the role of the item reference and of
+ * "taken" in FAAArrayQueue:
+ * - EMPTY, which means no value has yet been enqueued in that position;
+ * - FULL, which means a valid value has been enqueued;
+ * - TAKEN, which means there was a value but it has been dequeued, or that
+ *   a dequeuer got there first and the enqueuer must try another position;
+ * The enqueuer writes the value with a plain store before the CAS on the
+ * state, and the dequeuer reads it after the getAndSet() on the state, so
+ * the value doesn't need to be volatile.
+ *
+ * Implements IQueue<Long> so that it can be used in the same benchmarks and
+ * tests as the other queues, but enqueue(Long) and dequeue() box.
+ *
+ * Enqueue algorithm: FAA + CAS(EMPTY,FULL)
+ * Dequeue algorithm: FAA + getAndSet(TAKEN)
+ * Consistency: Linearizable
+ * enqueue() progress: lock-free
+ * dequeue() progress: lock-free
+ * Uncontended enqueue: 1 FAA + 1 CAS
+ * Uncontended dequeue: 1 FAA + 1 CAS
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class FAALongArrayQueue implements IQueue<Long> {
+
+    static final int BUFFER_SIZE = 128;
+
+    // States of each entry
+    static final int EMPTY = 0;
+    static final int FULL  = 1;
+    static final int TAKEN = 2;
+
+    static class Node {
+        final AtomicInteger deqidx = new AtomicInteger(0);
+        final long[] values = new long[BUFFER_SIZE];
+        final AtomicIntegerArray states = new AtomicIntegerArray(BUFFER_SIZE);
+        final AtomicInteger enqidx = new AtomicInteger(1);
+        volatile Node next = null;
+        // Start with the first entry pre-filled and enqidx at 1
+        Node (final long value) {
+            values[0] = value;
+            states.lazySet(0, FULL);
+        }
+
+        // Sentinel node, with no entry pre-filled and enqidx at 0
+        Node () {
+            enqidx.lazySet(0);
+        }
+
+        /**
+         * @param cmp Previous {@code next}
+         * @param val New {@code next}
+         * @return {@code true} if CAS was successful
+         */
+        boolean casNext(Node cmp, Node val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    @sun.misc.Contended
+    private volatile Node head;
+    @sun.misc.Contended
+    private volatile Node tail;
+
+
+    public FAALongArrayQueue() {
+        final Node sentinelNode = new Node();
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     */
+    public void enqueue(long value) {
+        while (true) {
+            final Node ltail = tail;
+            final int idx = ltail.enqidx.getAndIncrement();
+            if (idx > BUFFER_SIZE-1) { // This node is full
+                if (ltail != tail) continue;
+                final Node lnext = ltail.next;
+                if (lnext == null) {
+                    final Node newNode = new Node(value);
+                    if (ltail.casNext(null, newNode)) {
+                        casTail(ltail, newNode);
+                        return;
+                    }
+                } else {
+                    casTail(ltail, lnext);
+                }
+                continue;
+            }
+            ltail.values[idx] = value;
+            if (ltail.states.compareAndSet(idx, EMPTY, FULL)) return;
+        }
+    }
+
+
+    /**
+     * Progress condition: lock-free
+     *
+     * @return the value at the head of the queue or {@code defaultValue} if the queue is empty
+     */
+    public long dequeueOrDefault(long defaultValue) {
+        return dequeueValue(defaultValue, null);
+    }
+
+
+    /**
+     * @param item must not be null
+     */
+    public void enqueue(Long item) {
+        enqueue(item.longValue());
+    }
+
+
+    /**
+     * Progress condition: lock-free
+     *
+     * Same as dequeueOrDefault() but boxes the value and returns null if the queue is empty
+     */
+    public Long dequeue() {
+        // Any long can be in the queue, so there is no defaultValue that means empty
+        final boolean[] found = new boolean[1];
+        final long value = dequeueValue(0, found);
+        return found[0] ? value : null;
+    }
+
+
+    /**
+     * Returns the value at the head of the queue and sets found[0] to true
+     * (if found isn't null), or returns defaultValue if the queue is empty
+     */
+    private long dequeueValue(long defaultValue, boolean[] found) {
+        while (true) {
+            Node lhead = head;
+            if (lhead.deqidx.get() >= lhead.enqidx.get() && lhead.next == null) return defaultValue;
+            final int idx = lhead.deqidx.getAndIncrement();
+            if (idx > BUFFER_SIZE-1) { // This node has been drained, check if there is another one
+                if (lhead.next == null) return defaultValue;  // No more nodes in the queue
+                casHead(lhead, lhead.next);
+                continue;
+            }
+            if (lhead.states.getAndSet(idx, TAKEN) == FULL) {
+                if (found != null) found[0] = true;
+                return lhead.values[idx];
+            }
+        }
+    }
+
+
+    private boolean casTail(Node cmp, Node val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    private boolean casHead(Node cmp, Node val) {
+        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    private static final long headOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(FAALongArrayQueue.class.getDeclaredField("tail"));
+            headOffset = UNSAFE.objectFieldOffset(FAALongArrayQueue.class.getDeclaredField("head"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.function.Consumer;
+
+
+/**
+ * <h1> Fetch-And-Add Mapped Record Queue </h1>
+ *
+ * A bounded multi-producer multi-consumer queue of fixed-size binary records,
+ * kept in a memory-mapped file, so that it can be shared by several
+ * processes on the same host, without serialization and without anything
+ * being allocated on the Java heap.
+ *
+ * The file has a header with the capacity, the record size, head and tail,
+ * followed by a ring of capacity slots (rounded up to a power of two). Each
+ * slot is a 64 bit cell word followed by recordSize bytes of payload.
+ * Producers and consumers use FAA on tail and head to obtain a ticket, which
+ * gives them a slot in the ring, like in FAAArrayQueue. Because the slots
+ * are re-used on every lap, the cell word has the ticket of the current lap
+ * plus a full bit and an unsafe bit, with the same state transitions as in
+ * FAABoundedArrayQueue (and the CRQ ring of LCRQueue), plus a reserved bit
+ * for the time between claim() and commit():
+ * - claim() takes a ticket and CASes the cell from empty to reserved. It
+ *   then returns a view of the payload where the producer writes the record
+ *   in place, and commit() sets the full bit with a release store;
+ * - poll() takes a ticket and, if the cell is full with that ticket, passes
+ *   a view of the payload to the consumer and then releases the cell for
+ *   the next lap;
+ * If an enqueuer finds its cell used by a previous lap, or a dequeuer finds
+ * its cell empty, they take a new ticket, so neither waits for the other.
+ * The exception is a dequeuer that finds its cell reserved with its own
+ * ticket: the record is being written, so it waits for commit().
+ *
+ * claim() returns null if the queue is full, i.e. if there are capacity
+ * tickets between head and tail. Under contention it may see the queue as
+ * full slightly before it holds capacity records.
+ *
+ * The views returned by claim() and passed to poll()'s consumer are owned
+ * by the calling thread, have native byte order, position at the start of
+ * the record and limit at its end, and are only valid until commit() or
+ * until the consumer returns. Each thread can have at most one record
+ * claimed at a time.
+ *
+ * Sharing between processes:
+ * All processes must open the same file with the same capacity and
+ * recordSize. The first one to open it initializes the header, holding a
+ * FileLock so that the others wait for the initialization to complete.
+ * Within one JVM create a single instance per file and share it between
+ * threads, because FileLock is per process.
+ * If a process dies between claim() and commit(), the consumer with that
+ * ticket will wait forever, so this queue is only as robust as its
+ * producers.
+ * The mapping is released only when the instance is garbage collected.
+ *
+ * Enqueue algorithm: FAA + CRQ enqueue on the cell + release store
+ * Dequeue algorithm: FAA + CRQ dequeue on the cell
+ * Consistency: Linearizable
+ * claim() progress: lock-free
+ * commit() progress: lock-free
+ * poll() progress: blocking (only on a record that is being written)
+ * Uncontended claim+commit: 1 FAA + 2 CAS
+ * Uncontended poll: 1 FAA + 1 CAS
+ *
+ * <p>
+ * LCRQ by Adam Morrison and Yehuda Afek:
+ * http://www.cs.tau.ac.il/~mad/publications/ppopp2013-x86queues.pdf
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class FAAMappedRecordQueue {
+
+    static final int MAX_SPINS = 1000;
+
+    // Layout of the header, head and tail are on their own cache lines
+    private static final long MAGIC = 0x4641414D52513031L;    // "FAAMRQ01"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int RECORD_SIZE_OFFSET = 12;
+    private static final int HEAD_OFFSET = 128;
+    private static final int TAIL_OFFSET = 256;
+    private static final int RING_OFFSET = 384;
+    private static final int CELL_SIZE = 8;
+
+    // Bits of the cell word
+    private static final long UNSAFE_BIT   = 1L << 63;
+    private static final long FULL_BIT     = 1L << 62;
+    private static final long RESERVED_BIT = 1L << 61;
+    private static final long INDEX_MASK   = RESERVED_BIT - 1;
+
+    /**
+     * A view of the mapped file owned by a single thread
+     */
+    static final class View {
+        final ByteBuffer buf;
+        long cellAddr = 0;
+
+        View(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    private final MappedByteBuffer mapped;
+    private final long baseAddr;
+    private final long headAddr;
+    private final long tailAddr;
+    private final int capacity;
+    private final int mask;
+    private final int recordSize;
+    private final int slotSize;
+    private final ThreadLocal<View> claimView = new ThreadLocal<View>();
+    private final ThreadLocal<View> pollView = new ThreadLocal<View>();
+
+
+    /**
+     * Opens the queue in file, creating and initializing it if needed.
+     *
+     * @param capacity maximum number of records in the queue, will be
+     * rounded up to the next power of two
+     * @param recordSize number of bytes in each record
+     * @throws IllegalArgumentException if the file already has a queue with
+     * a different capacity or recordSize, or something else in it
+     */
+    public FAAMappedRecordQueue(File file, int capacity, int recordSize) throws IOException {
+        if (capacity <= 0 || capacity > (1 << 30) || recordSize <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity-1) << 1;
+        this.mask = this.capacity-1;
+        this.recordSize = recordSize;
+        // Keep the cell words aligned on 8 bytes
+        this.slotSize = (CELL_SIZE + recordSize + 7) & ~7;
+        final long fileSize = RING_OFFSET + (long)this.capacity*slotSize;
+        if (fileSize > Integer.MAX_VALUE) throw new IllegalArgumentException("capacity*recordSize is too large to be mapped");
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final FileLock lock = channel.lock();
+            try {
+                final long oldSize = channel.size();
+                if (oldSize != 0 && oldSize != fileSize) {
+                    throw new IllegalArgumentException("File has "+oldSize+" bytes but the queue needs "+fileSize);
+                }
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                baseAddr = UNSAFE.getLong(mapped, addressOffset);
+                headAddr = baseAddr + HEAD_OFFSET;
+                tailAddr = baseAddr + TAIL_OFFSET;
+                if (oldSize == 0) {
+                    initialize();
+                } else {
+                    if (UNSAFE.getLongVolatile(null, baseAddr + MAGIC_OFFSET) != MAGIC) {
+                        throw new IllegalArgumentException("File doesn't have a queue");
+                    }
+                    if (UNSAFE.getInt(baseAddr + CAPACITY_OFFSET) != this.capacity ||
+                        UNSAFE.getInt(baseAddr + RECORD_SIZE_OFFSET) != recordSize) {
+                        throw new IllegalArgumentException("File has a queue with a different capacity or recordSize");
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            // The mapping remains valid after the channel is closed
+            raf.close();
+        }
+    }
+
+
+    private void initialize() {
+        UNSAFE.putInt(baseAddr + CAPACITY_OFFSET, capacity);
+        UNSAFE.putInt(baseAddr + RECORD_SIZE_OFFSET, recordSize);
+        UNSAFE.putLong(headAddr, 0);
+        UNSAFE.putLong(tailAddr, 0);
+        for (int i = 0; i < capacity; i++) UNSAFE.putLong(cellAddress(i), i);
+        UNSAFE.putLongVolatile(null, baseAddr + MAGIC_OFFSET, MAGIC);
+    }
+
+
+    public int capacity() {
+        return capacity;
+    }
+
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+
+    private long cellAddress(long ticket) {
+        return baseAddr + RING_OFFSET + (ticket & mask)*slotSize;
+    }
+
+    private static long nodeIndex(long w)      { return w & INDEX_MASK; }
+    private static boolean isUnsafe(long w)    { return (w & UNSAFE_BIT) != 0; }
+    private static boolean isFull(long w)      { return (w & FULL_BIT) != 0; }
+    private static boolean isReserved(long w)  { return (w & RESERVED_BIT) != 0; }
+
+    private long head() { return UNSAFE.getLongVolatile(null, headAddr); }
+    private long tail() { return UNSAFE.getLongVolatile(null, tailAddr); }
+
+    private boolean casCell(long addr, long cmp, long val) {
+        return UNSAFE.compareAndSwapLong(null, addr, cmp, val);
+    }
+
+
+    private View getView(ThreadLocal<View> tl) {
+        View view = tl.get();
+        if (view == null) {
+            view = new View(mapped.duplicate().order(ByteOrder.nativeOrder()));
+            tl.set(view);
+        }
+        return view;
+    }
+
+
+    private ByteBuffer positionView(View view, long cellAddr) {
+        final int offset = (int)(cellAddr - baseAddr) + CELL_SIZE;
+        view.cellAddr = cellAddr;
+        view.buf.clear();
+        view.buf.position(offset);
+        view.buf.limit(offset + recordSize);
+        return view.buf;
+    }
+
+
+    private void fixState() {
+        while (true) {
+            final long t = tail();
+            final long h = head();
+            if (tail() != t) continue;
+            if (h > t) {
+                if (casCell(tailAddr, t, h)) break;
+                continue;
+            }
+            break;
+        }
+    }
+
+
+    /**
+     * Reserves a slot for a record. The caller must write the record in the
+     * returned view and then call commit().
+     *
+     * Progress Condition: Lock-Free
+     *
+     * @return a view of the record's payload, or {@code null} if the queue is full
+     */
+    public ByteBuffer claim() {
+        final View view = getView(claimView);
+        if (view.cellAddr != 0) throw new IllegalStateException("This thread already has a claimed record");
+        while (true) {
+            if (tail() - head() >= capacity) return null;
+            final long tailticket = UNSAFE.getAndAddLong(null, tailAddr, 1);
+            final long addr = cellAddress(tailticket);
+            final long w = UNSAFE.getLongVolatile(null, addr);
+            if (!isFull(w) && !isReserved(w) && nodeIndex(w) <= tailticket &&
+                (!isUnsafe(w) || head() <= tailticket)) {
+                if (casCell(addr, w, RESERVED_BIT | tailticket)) return positionView(view, addr);
+            }
+        }
+    }
+
+
+    /**
+     * Publishes the record claimed by the current thread.
+     *
+     * Progress Condition: Lock-Free
+     */
+    public void commit() {
+        final View view = getView(claimView);
+        final long addr = view.cellAddr;
+        if (addr == 0) throw new IllegalStateException("This thread has no claimed record");
+        view.cellAddr = 0;
+        while (true) {
+            // A dequeuer from a later lap may have set the unsafe bit
+            final long w = UNSAFE.getLongVolatile(null, addr);
+            if (casCell(addr, w, (w & ~RESERVED_BIT) | FULL_BIT)) return;
+        }
+    }
+
+
+    /**
+     * Copies the record in src (from its position, up to recordSize bytes)
+     * to the queue.
+     *
+     * @return {@code false} if the queue is full
+     */
+    public boolean offer(ByteBuffer src) {
+        if (src.remaining() > recordSize) throw new IllegalArgumentException();
+        final ByteBuffer dst = claim();
+        if (dst == null) return false;
+        dst.put(src);
+        commit();
+        return true;
+    }
+
+
+    /**
+     * Removes the record at the head of the queue, after passing a view of
+     * it to consumer. The consumer must not keep a reference to the view.
+     *
+     * Progress Condition: Blocking (only while the record is being written)
+     *
+     * @return {@code false} if the queue is empty
+     */
+    public boolean poll(Consumer<ByteBuffer> consumer) {
+        while (true) {
+            if (head() >= tail()) return false;
+            final long headticket = UNSAFE.getAndAddLong(null, headAddr, 1);
+            final long addr = cellAddress(headticket);
+            int r = 0;
+            long t = 0;
+
+            while (true) {
+                final long w = UNSAFE.getLongVolatile(null, addr);
+                final long unsafe = w & UNSAFE_BIT;
+                final long idx = nodeIndex(w);
+                if (idx > headticket) break;
+
+                if (isFull(w) || isReserved(w)) {
+                    if (idx == headticket) {
+                        if (isReserved(w)) {
+                            // The record is being written, wait for commit()
+                            if (++r > MAX_SPINS) Thread.yield();
+                            continue;
+                        }
+                        final View view = getView(pollView);
+                        try {
+                            consumer.accept(positionView(view, addr));
+                        } finally {
+                            view.cellAddr = 0;
+                            releaseCell(addr, headticket);
+                        }
+                        return true;
+                    } else {
+                        if (casCell(addr, w, w | UNSAFE_BIT)) break;
+                    }
+                } else {
+                    if ((r & ((1 << 10) - 1)) == 0) t = tail();
+                    if (unsafe != 0) { // Nothing to do, move along
+                        if (casCell(addr, w, unsafe | (headticket + capacity))) break;
+                    } else if (t < headticket + 1 || r > 200000) {
+                        if (casCell(addr, w, headticket + capacity)) break;
+                    } else {
+                        // An enqueuer has our ticket, give it a chance to run
+                        if ((++r & ((1 << 10) - 1)) == 0) Thread.yield();
+                    }
+                }
+            }
+
+            if (tail() <= headticket + 1) {
+                fixState();
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Makes the cell available to the next lap, keeping the unsafe bit
+     */
+    private void releaseCell(long addr, long headticket) {
+        while (true) {
+            final long w = UNSAFE.getLongVolatile(null, addr);
+            if (casCell(addr, w, (w & UNSAFE_BIT) | (headticket + capacity))) return;
+        }
+    }
+
+
+    /**
+     * Writes the changes to the storage device, see MappedByteBuffer.force()
+     */
+    public void force() {
+        mapped.force();
+    }
+
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long addressOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            addressOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/******************************************************************************
+ * Copyright (c) 2014-2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> LCRQ Queue </h1>
+ *
+ * This is LCRQ by Adam Morrison and Yehuda Afek
+ * http://www.cs.tau.ac.il/~mad/publications/ppopp2013-x86queues.pdf
+ *
+ * Each node is a ring (CRQ) of RING_SIZE cells which is re-used on every lap
+ * around the ring, with FAA on the head and tail tickets. Only when a ring
+ * becomes full (or an enqueuer starves) is the ring closed and a new one
+ * is appended to the list of rings with Michael-Scott's algorithm, which
+ * means that as long as the queue holds fewer than RING_SIZE items, no
+ * allocation is done.
+ *
+ * The C++ version does a CAS2 (cmpxchg16b) on the pair (val,idx) of each cell.
+ * Java has no double-width CAS, so in this port each cell has a single
+ * 64 bit word with the unsafe bit, a full bit and the index, and the
+ * state transitions are done with a CAS on that word. The item is kept
+ * on a separate array, where an enqueuer first reserves the entry with
+ * CAS(null,item) and then publishes it with a CAS on the cell word. If
+ * the publishing fails, the enqueuer gives back the entry and tries
+ * again with a new ticket. Dequeuers look only at the cell word, so they
+ * never wait for an enqueuer.
+ *
+ * Enqueue algorithm: MS enqueue + CRQ enqueue with re-usage
+ * Dequeue algorithm: MS dequeue + CRQ dequeue with re-usage
+ * Consistency: Linearizable
+ * enqueue() progress: lock-free
+ * dequeue() progress: lock-free
+ * Memory Reclamation: GC (rings are re-used while they're not closed)
+ * Uncontended enqueue: 1 FAA + 2 CAS
+ * Uncontended dequeue: 1 FAA + 1 CAS
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class LCRQueue<E> implements IQueue<E> {
+
+    static final int RING_POW = 10;
+    static final int RING_SIZE = 1 << RING_POW;
+
+    // Bits of the tail ticket and of the cell word
+    private static final long CLOSED_BIT = 1L << 63;
+    private static final long UNSAFE_BIT = 1L << 63;
+    private static final long FULL_BIT   = 1L << 62;
+    private static final long INDEX_MASK = FULL_BIT - 1;
+
+    static class Node<E> {
+        @sun.misc.Contended
+        final AtomicLong head = new AtomicLong(0);
+        @sun.misc.Contended
+        final AtomicLong tail = new AtomicLong(0);
+        final AtomicLongArray cells = new AtomicLongArray(RING_SIZE);
+        final AtomicReferenceArray<E> items = new AtomicReferenceArray<E>(RING_SIZE);
+        volatile Node<E> next = null;
+
+        Node() {
+            for (int i = 0; i < RING_SIZE; i++) cells.lazySet(i, i);
+        }
+
+        // Start with the first entry pre-filled and tail at 1
+        Node(final E item) {
+            this();
+            items.lazySet(0, item);
+            cells.lazySet(0, FULL_BIT);
+            tail.lazySet(1);
+        }
+
+        /**
+         * @param cmp Previous {@code next}
+         * @param val New {@code next}
+         * @return {@code true} if CAS was successful
+         */
+        boolean casNext(Node<E> cmp, Node<E> val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    @sun.misc.Contended
+    private volatile Node<E> head;
+    @sun.misc.Contended
+    private volatile Node<E> tail;
+
+
+    public LCRQueue() {
+        final Node<E> sentinelNode = new Node<E>();
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    private static long nodeIndex(long w)    { return w & INDEX_MASK; }
+    private static boolean isUnsafe(long w)  { return (w & UNSAFE_BIT) != 0; }
+    private static boolean isFull(long w)    { return (w & FULL_BIT) != 0; }
+    private static long tailIndex(long t)    { return t & ~CLOSED_BIT; }
+    private static boolean isClosed(long t)  { return (t & CLOSED_BIT) != 0; }
+
+
+    private void fixState(Node<E> lhead) {
+        while (true) {
+            final long t = lhead.tail.get();
+            final long h = lhead.head.get();
+            if (lhead.tail.get() != t) continue;
+            // The C++ version compares unsigned, so a closed tail is never below h
+            if (!isClosed(t) && h > t) {
+                if (lhead.tail.compareAndSet(t, h)) break;
+                continue;
+            }
+            break;
+        }
+    }
+
+
+    private boolean closeRing(Node<E> ring, final long tailticket, final int tries) {
+        if (tries < 10) return ring.tail.compareAndSet(tailticket+1, (tailticket+1)|CLOSED_BIT);
+        return setClosed(ring);
+    }
+
+
+    // Equivalent to the BIT_TEST_AND_SET() on bit 63 of the C++ version
+    private boolean setClosed(Node<E> ring) {
+        while (true) {
+            final long t = ring.tail.get();
+            if (isClosed(t)) return false;
+            if (ring.tail.compareAndSet(t, t|CLOSED_BIT)) return true;
+        }
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        int tryClose = 0;
+        while (true) {
+            final Node<E> ltail = tail;
+            final Node<E> lnext = ltail.next;
+            if (lnext != null) {  // Help advance the tail
+                casTail(ltail, lnext);
+                continue;
+            }
+            final long tailticket = ltail.tail.getAndIncrement();
+            if (isClosed(tailticket)) {
+                final Node<E> newNode = new Node<E>(item);
+                if (ltail.casNext(null, newNode)) { // Insert new ring
+                    casTail(ltail, newNode);
+                    return;
+                }
+                continue;
+            }
+            final int j = (int)(tailticket & (RING_SIZE-1));
+            final long w = ltail.cells.get(j);
+            if (!isFull(w) && nodeIndex(w) <= tailticket && (!isUnsafe(w) || ltail.head.get() <= tailticket)) {
+                // Reserve the entry, then publish it on the cell word
+                if (ltail.items.compareAndSet(j, null, item)) {
+                    if (ltail.cells.compareAndSet(j, w, FULL_BIT | tailticket)) return;
+                    ltail.items.lazySet(j, null);
+                }
+            }
+            if (tailticket - ltail.head.get() >= RING_SIZE && closeRing(ltail, tailticket, ++tryClose)) continue;
+        }
+    }
+
+
+    /**
+     * Progress condition: lock-free
+     */
+    public E dequeue() {
+        while (true) {
+            final Node<E> lhead = head;
+            final long headticket = lhead.head.getAndIncrement();
+            final int j = (int)(headticket & (RING_SIZE-1));
+            int r = 0;
+            long tt = 0;
+
+            while (true) {
+                final long w = lhead.cells.get(j);
+                final long unsafe = w & UNSAFE_BIT;
+                final long idx = nodeIndex(w);
+                if (idx > headticket) break;
+
+                if (isFull(w)) {
+                    if (idx == headticket) {
+                        final E item = lhead.items.get(j);
+                        if (lhead.cells.compareAndSet(j, w, unsafe | (headticket + RING_SIZE))) {
+                            lhead.items.lazySet(j, null);
+                            return item;
+                        }
+                    } else {
+                        if (lhead.cells.compareAndSet(j, w, w | UNSAFE_BIT)) break;
+                    }
+                } else {
+                    if ((r & ((1 << 10) - 1)) == 0) tt = lhead.tail.get();
+                    // Optimization: try to bail quickly if the ring is closed
+                    final boolean closed = isClosed(tt);
+                    final long t = tailIndex(tt);
+                    if (unsafe != 0) { // Nothing to do, move along
+                        if (lhead.cells.compareAndSet(j, w, unsafe | (headticket + RING_SIZE))) break;
+                    } else if (t < headticket + 1 || r > 200000 || closed) {
+                        if (lhead.cells.compareAndSet(j, w, headticket + RING_SIZE)) {
+                            if (r > 200000 && t > RING_SIZE) setClosed(lhead);
+                            break;
+                        }
+                    } else {
+                        ++r;
+                    }
+                }
+            }
+
+            if (tailIndex(lhead.tail.get()) <= headticket + 1) {
+                fixState(lhead);
+                // Try to return empty
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) return null;  // Queue is empty
+                if (tailIndex(lhead.tail.get()) <= headticket + 1) casHead(lhead, lnext);
+            }
+        }
+    }
+
+
+    private boolean casTail(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    private boolean casHead(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    private static final long headOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(LCRQueue.class.getDeclaredField("tail"));
+            headOffset = UNSAFE.objectFieldOffset(LCRQueue.class.getDeclaredField("head"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
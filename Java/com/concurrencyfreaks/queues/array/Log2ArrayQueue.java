@@ -29,6 +29,7 @@ package com.concurrencyfreaks.queues.array;
 
 import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 
 import com.concurrencyfreaks.queues.IQueue;
 
@@ -69,6 +70,19 @@ import com.concurrencyfreaks.queues.IQueue;
  *   The store can be memory_order_release.
  *
  *
+ * Draining:
+ * drain() passes the items straight to a Consumer. It keeps its own
+ * reference to the current node and sweeps it from the result of a single binary search,
+ * taking each item with a CAS like dequeue() does, which means each item is
+ * linearizable on its own and concurrent calls to dequeue() are safe.
+ * Head is advanced (at most) once per node, instead of being re-read for
+ * each item.
+ *
+ * Node recycling:
+ * When created with recycleNodes=true, drained nodes are re-used through a
+ * NodePool, like in FAAArrayQueue. Here head may skip over several drained
+ * nodes at once, and all of them are retired by the dequeuer that advanced it.
+ *
  * <p>
  * Lock-Free Linked List as described in Maged Michael and Michael Scott's paper:
  * {@link http://www.cs.rochester.edu/~scott/papers/1996_PODC_queues.pdf}
@@ -81,14 +95,23 @@ import com.concurrencyfreaks.queues.IQueue;
 
 public class Log2ArrayQueue<E> implements IQueue<E> {
 
+    // Default number of items in each node
     static final int BUFFER_SIZE = 128;
     
     static class Node<E> {
-        final AtomicReferenceArray<E> items = new AtomicReferenceArray<E>(BUFFER_SIZE);
+        final AtomicReferenceArray<E> items;
         volatile Node<E> next = null;
         
-        Node (final E item) {
+        Node (final int size, final E item) {
+            items = new AtomicReferenceArray<E>(size);
+            items.lazySet(0, item);
+        }
+
+        // Re-initialize a recycled node, same as Node(item)
+        void reset(final E item) {
             items.lazySet(0, item);
+            for (int i = 1; i < items.length(); i++) items.lazySet(i, null);
+            UNSAFE.putOrderedObject(this, nextOffset, null);
         }
         
         /**
@@ -123,18 +146,107 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
 
 
     final E taken = (E)new Object(); // Muuuahahah !
+
+    // Only used when node recycling is enabled
+    private final NodePool<Node<E>> pool;
     
     
     public Log2ArrayQueue() {
-        final Node<E> startSentinel = new Node<E>(null);
+        this(BUFFER_SIZE, false);
+    }
+
+
+    /**
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    public Log2ArrayQueue(boolean recycleNodes) {
+        this(BUFFER_SIZE, recycleNodes);
+    }
+
+
+    /**
+     * For the subclasses, whose bufferSize() must return bufferSize
+     *
+     * @param bufferSize number of items in each node
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    protected Log2ArrayQueue(int bufferSize, boolean recycleNodes) {
+        if (bufferSize < 4) throw new IllegalArgumentException();
+        pool = recycleNodes ? new NodePool<Node<E>>() : null;
+        final Node<E> startSentinel = new Node<E>(bufferSize, null);
         head = startSentinel;
         tail = startSentinel;
     }
+
+
+    /**
+     * Returns a queue with bufferSize items in each node, which is one of
+     * the SizeN subclasses if there is one for bufferSize
+     *
+     * @param bufferSize number of items in each node
+     * @param recycleNodes if true, drained nodes are re-used instead of being left for the GC
+     */
+    public static <E> Log2ArrayQueue<E> withBufferSize(int bufferSize, boolean recycleNodes) {
+        switch (bufferSize) {
+        case 32:   return new Size32<E>(recycleNodes);
+        case 128:  return new Size128<E>(recycleNodes);
+        case 1024: return new Size1024<E>(recycleNodes);
+        }
+        return new AnySize<E>(bufferSize, recycleNodes);
+    }
+
+
+    /**
+     * Returns the number of items in each node, which the queue's methods
+     * read once into a local variable. It is a constant unless this queue
+     * was created by withBufferSize() with a size that has no SizeN subclass.
+     */
+    public int bufferSize() {
+        return BUFFER_SIZE;
+    }
+
+
+    // Subclasses with a fixed number of items in each node, see FAAArrayQueue.Size32
+    public static class Size32<E> extends Log2ArrayQueue<E> {
+        public Size32() { this(false); }
+        public Size32(boolean recycleNodes) { super(32, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 32; }
+    }
+
+
+    public static class Size128<E> extends Log2ArrayQueue<E> {
+        public Size128() { this(false); }
+        public Size128(boolean recycleNodes) { super(128, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 128; }
+    }
+
+
+    public static class Size1024<E> extends Log2ArrayQueue<E> {
+        public Size1024() { this(false); }
+        public Size1024(boolean recycleNodes) { super(1024, recycleNodes); }
+        @Override
+        public final int bufferSize() { return 1024; }
+    }
+
+
+    // Any other number of items in each node, created by withBufferSize()
+    static final class AnySize<E> extends Log2ArrayQueue<E> {
+        private final int bufferSize;
+        AnySize(int bufferSize, boolean recycleNodes) {
+            super(bufferSize, recycleNodes);
+            this.bufferSize = bufferSize;
+        }
+        @Override
+        public int bufferSize() { return bufferSize; }
+    }
     
     private int findFirstNull(Node<E> node) {
+        final int size = bufferSize();
         if (node.items.get(0) == null) return 0;
         int minPos = 0;
-        int maxPos = BUFFER_SIZE-1;
+        int maxPos = size-1;
         while (true) {
             int pos = (maxPos-minPos)/2 + minPos;
             if (node.items.get(pos) == null) {
@@ -147,9 +259,10 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
     }
 
     private int findLastTaken(Node<E> node) {
-        if (node.items.get(BUFFER_SIZE-1) == taken) return BUFFER_SIZE-1;
+        final int size = bufferSize();
+        if (node.items.get(size-1) == taken) return size-1;
         int minPos = 0;
-        int maxPos = BUFFER_SIZE-1;
+        int maxPos = size-1;
         while (true) {
             int pos = (maxPos-minPos)/2 + minPos;
             if (node.items.get(pos) == taken) {
@@ -170,13 +283,25 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
      */
     public void enqueue(E item) {
         if (item == null) throw new NullPointerException();
+        if (pool == null) {
+            enqueueItem(item);
+            return;
+        }
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        enqueueItem(item);
+        pool.exit(state);
+    }
+
+
+    private void enqueueItem(E item) {
+        final int size = bufferSize();
         while (true) {
             final Node<E> ltail = tail;
-            if (ltail.items.get(BUFFER_SIZE-1) != null) { // This node is full
+            if (ltail.items.get(size-1) != null) { // This node is full
                 if (ltail != tail) continue;
                 final Node<E> lnext = ltail.next;
                 if (lnext == null) {
-                    final Node<E> newNode = new Node<E>(item);
+                    final Node<E> newNode = newNode(item);
                     if (ltail.casNext(null, newNode)) {
                         casTail(ltail, newNode);
                         return;
@@ -187,7 +312,7 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
                 continue;
             }
             // Find the first null entry in items[] and try to CAS from null to item
-            for (int i = findFirstNull(ltail); i < BUFFER_SIZE; i++) {
+            for (int i = findFirstNull(ltail); i < size; i++) {
                 if (ltail.items.get(i) != null) continue;
                 if (ltail.items.compareAndSet(i, null, item)) return;
                 if (ltail != tail) break;
@@ -199,21 +324,31 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
      * Progress condition: lock-free
      */
     public E dequeue() {
+        if (pool == null) return dequeueItem();
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        final E item = dequeueItem();
+        pool.exit(state);
+        return item;
+    }
+
+
+    private E dequeueItem() {
+        final int size = bufferSize();
         Node<E> lhead = head;
         Node<E> node = lhead;
         while (node != null) {
             if (node.items.get(0) == null) return null;   // This node is empty
-            if (node.items.get(BUFFER_SIZE-1) == taken) { // This node has been drained, check if there is another one
+            if (node.items.get(size-1) == taken) { // This node has been drained, check if there is another one
                 node = node.next;
                 continue;
             }            
             // Find the first non taken entry in items[] and try to CAS from item to taken
-            for (int i = findLastTaken(node); i < BUFFER_SIZE; i++) {
+            for (int i = findLastTaken(node); i < size; i++) {
                 final E item = node.items.get(i);
                 if (item == null) return null;            // This node is empty
                 if (item == taken) continue;
                 if (node.items.compareAndSet(i, item, taken)) {
-                    if (node != lhead && head == lhead) casHead(lhead, node);
+                    if (node != lhead && head == lhead && casHead(lhead, node) && pool != null) retire(lhead, node);
                     //lhead.next = lhead;                   // Do self-linking to help the GC
                     return item;
                 }
@@ -223,6 +358,86 @@ public class Log2ArrayQueue<E> implements IQueue<E> {
         return null;                                      // Queue is empty
     }
         
+    /**
+     * Progress condition: lock-free (not counting the calls to the sink)
+     *
+     * Takes up to {@code limit} items from the queue and passes each one to
+     * {@code sink}, in FIFO order. If the sink throws an exception, the item
+     * that was passed to it has been removed from the queue, and the
+     * exception is re-thrown.
+     *
+     * @return the number of items passed to {@code sink}
+     */
+    public int drain(Consumer<? super E> sink, int limit) {
+        if (sink == null) throw new NullPointerException();
+        if (pool == null) return drainItems(sink, limit);
+        final NodePool.ThreadState<Node<E>> state = pool.enter();
+        try {
+            return drainItems(sink, limit);
+        } finally {
+            pool.exit(state);
+        }
+    }
+
+
+    private int drainItems(Consumer<? super E> sink, int limit) {
+        final int size = bufferSize();
+        int n = 0;
+        Node<E> lhead = head;
+        Node<E> node = lhead;
+        while (node != null && n < limit) {
+            if (node.items.get(0) == null) break;         // This node is empty
+            if (node.items.get(size-1) == taken) { // This node has been drained, check if there is another one
+                node = node.next;
+                continue;
+            }
+            int i = findLastTaken(node);
+            for (; i < size && n < limit; i++) {
+                final E item = node.items.get(i);
+                if (item == null) break;                  // This node is empty from here on
+                if (item == taken) continue;
+                if (!node.items.compareAndSet(i, item, taken)) continue;
+                if (node != lhead) {
+                    // First item taken from this node, advance head to it
+                    if (head == lhead && casHead(lhead, node) && pool != null) retire(lhead, node);
+                    lhead = node;
+                }
+                n++;
+                sink.accept(item);
+            }
+            if (i < size) break;   // Either the queue is empty or we reached the limit
+        }
+        return n;
+    }
+
+
+    private Node<E> newNode(E item) {
+        if (pool != null) {
+            final Node<E> node = pool.poll();
+            if (node != null) {
+                node.reset(item);
+                return node;
+            }
+        }
+        return new Node<E>(bufferSize(), item);
+    }
+
+
+    /**
+     * Called by the thread that advanced head from first to last. Retires
+     * all the nodes in between, except last, after making sure that tail is
+     * no longer pointing to any of them.
+     */
+    private void retire(Node<E> first, Node<E> last) {
+        for (Node<E> node = first; node != last; ) {
+            final Node<E> lnext = node.next;
+            if (tail == node) casTail(node, lnext);
+            pool.retire(node);
+            node = lnext;
+        }
+    }
+
+
     private boolean casTail(Node<E> cmp, Node<E> val) {
         return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
     }
@@ -0,0 +1,234 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> Multi-Producer Single-Consumer Array Queue </h1>
+ *
+ * An unbounded queue made of a linked list of nodes, each with an array of
+ * items, like FAAArrayQueue, but where at most one thread calls dequeue()
+ * at any given time.
+ *
+ * Enqueuers use FAA on the enqidx of the tail node to obtain an entry, like
+ * in FAAArrayQueue, and when the node is full they add a new node with the
+ * item pre-filled using Michael-Scott's algorithm.
+ * Because the consumer never gives up on an entry (there is no "taken"),
+ * an enqueuer that got an entry is the only one that will ever write to it,
+ * so it can store the item with a release store (lazySet) instead of a CAS,
+ * and the consumer doesn't need a getAndSet() or a FAA of deqidx.
+ * The fields of the consumer (head, deqidx) are plain and only accessed by
+ * the consumer. It keeps a cached copy of the enqidx of the head node, and
+ * only reads enqidx again when it has dequeued all the items up to the
+ * cached value.
+ * An enqueuer that did the FAA but hasn't yet stored the item makes the
+ * consumer wait for it, because the items of the enqueuers that got the next
+ * entries may already be there. This is the same trade-off made by most
+ * MPSC queues, and the window is just the FAA and the store.
+ *
+ * Enqueue algorithm: FAA + release store
+ * Dequeue algorithm: plain load of enqidx cache + acquire load of the item
+ * Consistency: Linearizable (with one consumer)
+ * enqueue() progress: lock-free
+ * dequeue() progress: blocking (only on an enqueuer that is between its FAA and its store)
+ * Uncontended enqueue: 1 FAA
+ * Uncontended dequeue: no atomic instructions
+ *
+ * <p>
+ * Lock-Free Linked List as described in Maged Michael and Michael Scott's paper:
+ * <a href="http://www.cs.rochester.edu/~scott/papers/1996_PODC_queues.pdf">
+ * Simple, Fast, and Practical Non-Blocking and Blocking Concurrent Queue Algorithms</a>
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class MPSCArrayQueue<E> implements IQueue<E> {
+
+    // Default number of items in each node
+    static final int BUFFER_SIZE = 1024;
+
+    static class Node<E> {
+        final AtomicReferenceArray<E> items;
+        final AtomicInteger enqidx;
+        volatile Node<E> next = null;
+
+        // Start with the first entry pre-filled and enqidx at 1
+        Node(final int size, final E item) {
+            items = new AtomicReferenceArray<E>(size);
+            items.lazySet(0, item);
+            enqidx = new AtomicInteger(item == null ? 0 : 1);
+        }
+
+        boolean casNext(Node<E> cmp, Node<E> val) {
+            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long nextOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                nextOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("next"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    @sun.misc.Contended
+    private volatile Node<E> tail;
+
+    // Only accessed by the consumer
+    @sun.misc.Contended("consumer")
+    private Node<E> head;
+    @sun.misc.Contended("consumer")
+    private int deqidx = 0;
+    @sun.misc.Contended("consumer")
+    private int cachedEnqidx = 0;
+
+    private final int bufferSize;
+
+
+    public MPSCArrayQueue() {
+        this(BUFFER_SIZE);
+    }
+
+
+    /**
+     * @param bufferSize number of items in each node
+     */
+    public MPSCArrayQueue(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException();
+        this.bufferSize = bufferSize;
+        final Node<E> sentinelNode = new Node<E>(bufferSize, null);
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        final int size = bufferSize;
+        while (true) {
+            final Node<E> ltail = tail;
+            final int idx = ltail.enqidx.getAndIncrement();
+            if (idx > size-1) { // This node is full
+                if (ltail != tail) continue;
+                final Node<E> lnext = ltail.next;
+                if (lnext == null) {
+                    final Node<E> newNode = new Node<E>(size, item);
+                    if (ltail.casNext(null, newNode)) {
+                        casTail(ltail, newNode);
+                        return;
+                    }
+                } else {
+                    casTail(ltail, lnext);
+                }
+                continue;
+            }
+            // Nobody else will write on this entry
+            ltail.items.lazySet(idx, item);
+            return;
+        }
+    }
+
+
+    /**
+     * Must be called by a single thread at a time.
+     *
+     * Progress Condition: Blocking (only on an enqueuer that is between its FAA and its store)
+     *
+     * @return the item at the head of the queue or {@code null} if the queue is empty
+     */
+    public E dequeue() {
+        final int size = bufferSize;
+        Node<E> lhead = head;
+        int idx = deqidx;
+        if (idx == cachedEnqidx) {
+            if (idx < size) {
+                cachedEnqidx = Math.min(lhead.enqidx.get(), size);
+                if (idx == cachedEnqidx) return null;
+            } else {
+                // This node has been drained, check if there is another one
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) return null;
+                lhead = lnext;
+                head = lnext;
+                idx = 0;
+                cachedEnqidx = Math.min(lnext.enqidx.get(), size);
+            }
+        }
+        E item;
+        while ((item = lhead.items.get(idx)) == null) {
+            // The enqueuer that got this entry hasn't stored the item yet
+            Thread.yield();
+        }
+        lhead.items.lazySet(idx, null);   // No enqueuer will write this entry again
+        deqidx = idx+1;
+        return item;
+    }
+
+
+    private boolean casTail(Node<E> cmp, Node<E> val) {
+        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long tailOffset;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (sun.misc.Unsafe) f.get(null);
+            tailOffset = UNSAFE.objectFieldOffset(MPSCArrayQueue.class.getDeclaredField("tail"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.concurrencyfreaks.readindicators.ReaderRegistry;
+
+
+/**
+ * <h1> Node Pool </h1>
+ *
+ * A per-queue pool of drained nodes, used by the array queues when they're
+ * created with node recycling enabled.
+ *
+ * Drained nodes are retired with retire() by the thread that unlinked them
+ * from the queue, and they are only handed out again by poll() once no
+ * thread can still have a reference to them. To know when that happens we
+ * use Epoch Based Reclamation:
+ * - Each operation on the queue is wrapped in enter()/exit(), where enter()
+ *   publishes the current global epoch on the thread's state and exit()
+ *   publishes IDLE;
+ * - Retired nodes go to one of three thread-local limbo lists, tagged with
+ *   the global epoch at the time of retirement;
+ * - The global epoch advances from E to E+1 only when all threads that are
+ *   not IDLE have published E;
+ * - A node retired in epoch E is safe to re-use once the global epoch is E+2,
+ *   at which point it is moved to the shared array of free nodes;
+ * The array of free nodes has FREE_SIZE entries, where putting a node is a
+ * CAS(null,node) and taking a node is a getAndSet(null), so it has no ABA
+ * issues. If it's full, the node is left for the GC.
+ * A thread that is preempted in the middle of an operation prevents the
+ * epoch from advancing, so each limbo list holds at most FREE_SIZE nodes
+ * and any extra retired nodes are also left for the GC. Unlike in C++, not
+ * recycling a node is always safe, which keeps the memory usage bounded.
+ *
+ * The caller must make sure that a retired node is no longer reachable from
+ * the queue's head or tail, and it must reset the node after poll().
+ *
+ * Threads attempting to use the pool for the first time are added to a
+ * ReaderRegistry and removed when the thread terminates, like the Readers
+ * of ScalableRWLock.
+ *
+ * enter()/exit() progress: wait-free population oblivious
+ * retire() progress: lock-free
+ * poll() progress: wait-free bounded by FREE_SIZE
+ *
+ * <p>
+ * Epoch Based Reclamation is described in Keir Fraser's thesis
+ * "Practical lock-freedom":
+ * http://www.cl.cam.ac.uk/techreports/UCAM-CL-TR-579.pdf
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+class NodePool<N> {
+
+    static final int FREE_SIZE = 64;
+
+    private static final long IDLE = -1;
+
+    static final class ThreadState<N> {
+        volatile long epoch = IDLE;
+        // Limbo lists and the epoch at which their nodes were retired
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayList<N>[] limbo = new ArrayList[3];
+        final long[] limboEpoch = new long[3];
+        // Where to start searching in freeNodes
+        final int hint;
+
+        ThreadState(int hint) {
+            this.hint = hint;
+            for (int i = 0; i < 3; i++) limbo[i] = new ArrayList<N>();
+        }
+
+        void putOrderedEpoch(long val) {
+            UNSAFE.putOrderedLong(this, epochOffset, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long epochOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                epochOffset = UNSAFE.objectFieldOffset(ThreadState.class.getDeclaredField("epoch"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    @sun.misc.Contended
+    private final AtomicLong globalEpoch = new AtomicLong(0);
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ReaderRegistry<ThreadState<N>> states = new ReaderRegistry<ThreadState<N>>(new ThreadState[0]);
+    private final AtomicReferenceArray<N> freeNodes = new AtomicReferenceArray<N>(FREE_SIZE);
+
+
+    private ThreadState<N> getState() {
+        final ThreadState<N> state = states.get();
+        if (state != null) return state;
+        return states.register(new ThreadState<N>((int)(Thread.currentThread().getId() % FREE_SIZE)));
+    }
+
+
+    /**
+     * Must be called at the start of each operation on the queue.
+     *
+     * @return the state of the current thread, to pass to exit()
+     */
+    ThreadState<N> enter() {
+        final ThreadState<N> state = getState();
+        state.epoch = globalEpoch.get();  // volatile store, so it's visible before we read head or tail
+        return state;
+    }
+
+
+    /**
+     * Must be called at the end of each operation on the queue.
+     */
+    void exit(ThreadState<N> state) {
+        state.putOrderedEpoch(IDLE);
+    }
+
+
+    /**
+     * Must be called between enter() and exit(), by the thread that
+     * unlinked the node from the queue
+     */
+    void retire(N node) {
+        final ThreadState<N> state = getState();
+        final long epoch = globalEpoch.get();
+        // Move the nodes that were retired at least two epochs ago to freeNodes
+        for (int i = 0; i < 3; i++) {
+            if (state.limboEpoch[i] > epoch-2 || state.limbo[i].isEmpty()) continue;
+            final ArrayList<N> list = state.limbo[i];
+            for (int j = 0; j < list.size(); j++) putFree(state, list.get(j));
+            list.clear();
+        }
+        final int idx = (int)(epoch % 3);
+        if (state.limbo[idx].size() < FREE_SIZE) state.limbo[idx].add(node);
+        state.limboEpoch[idx] = epoch;
+        tryAdvance(epoch);
+    }
+
+
+    /**
+     * Returns a node that no other thread can have a reference to, or null
+     * if there is none available.
+     */
+    N poll() {
+        final ThreadState<N> state = getState();
+        for (int i = 0; i < FREE_SIZE; i++) {
+            final int idx = (state.hint + i) % FREE_SIZE;
+            if (freeNodes.get(idx) == null) continue;
+            final N node = freeNodes.getAndSet(idx, null);
+            if (node != null) return node;
+        }
+        return null;
+    }
+
+
+    private void putFree(ThreadState<N> state, N node) {
+        for (int i = 0; i < FREE_SIZE; i++) {
+            final int idx = (state.hint + i) % FREE_SIZE;
+            if (freeNodes.get(idx) != null) continue;
+            if (freeNodes.compareAndSet(idx, null, node)) return;
+        }
+        // freeNodes is full, leave this node for the GC
+    }
+
+
+    private void tryAdvance(long epoch) {
+        for (ThreadState<N> state : states.getStates()) {
+            final long lepoch = state.epoch;
+            if (lepoch != IDLE && lepoch != epoch) return;
+        }
+        globalEpoch.compareAndSet(epoch, epoch+1);
+    }
+}
@@ -0,0 +1,193 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.lang.reflect.Field;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> Single-Producer Single-Consumer Array Queue </h1>
+ *
+ * An unbounded queue made of a linked list of nodes, each with an array of
+ * items, like FAAArrayQueue, but where at most one thread calls enqueue()
+ * and at most one thread calls dequeue() at any given time (it may be the
+ * same thread).
+ *
+ * Because there is a single producer, it can use plain stores to write
+ * the items and then publish them with a release store (putOrderedInt) of
+ * the node's enqidx, and a volatile store of next when it needs a new node.
+ * The fields of the producer (tail) and of the consumer (head, deqidx) are
+ * plain and only accessed by their own thread.
+ * The consumer keeps a cached copy of the enqidx of the head node, and only
+ * reads the (volatile) enqidx again when it has dequeued all the items up
+ * to the cached value. As long as the consumer is behind the producer,
+ * dequeue() is a plain load and a plain store, and the consumer doesn't
+ * touch the cache line where enqidx is.
+ *
+ * Enqueue algorithm: plain store + release store of enqidx
+ * Dequeue algorithm: plain load (acquire load of enqidx when the cache runs out)
+ * Consistency: Linearizable (with one producer and one consumer)
+ * enqueue() progress: wait-free population oblivious (except new node allocation)
+ * dequeue() progress: wait-free population oblivious
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class SPSCArrayQueue<E> implements IQueue<E> {
+
+    // Default number of items in each node
+    static final int BUFFER_SIZE = 1024;
+
+    static class Node<E> {
+        final E[] items;
+        volatile int enqidx;
+        volatile Node<E> next = null;
+
+        @SuppressWarnings("unchecked")
+        Node(final int size, final E item, final int enqidx) {
+            items = (E[])new Object[size];
+            items[0] = item;
+            this.enqidx = enqidx;
+        }
+
+        void putOrderedEnqidx(int val) {
+            UNSAFE.putOrderedInt(this, enqidxOffset, val);
+        }
+
+        // Unsafe mechanics
+        private static final sun.misc.Unsafe UNSAFE;
+        private static final long enqidxOffset;
+
+        static {
+            try {
+                Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                UNSAFE = (sun.misc.Unsafe) f.get(null);
+                enqidxOffset = UNSAFE.objectFieldOffset(Node.class.getDeclaredField("enqidx"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    // Only accessed by the producer
+    @sun.misc.Contended("producer")
+    private Node<E> tail;
+    @sun.misc.Contended("producer")
+    private int enqidx = 0;
+
+    // Only accessed by the consumer
+    @sun.misc.Contended("consumer")
+    private Node<E> head;
+    @sun.misc.Contended("consumer")
+    private int deqidx = 0;
+    @sun.misc.Contended("consumer")
+    private int cachedEnqidx = 0;
+
+    private final int bufferSize;
+
+
+    public SPSCArrayQueue() {
+        this(BUFFER_SIZE);
+    }
+
+
+    /**
+     * @param bufferSize number of items in each node
+     */
+    public SPSCArrayQueue(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException();
+        this.bufferSize = bufferSize;
+        final Node<E> sentinelNode = new Node<E>(bufferSize, null, 0);
+        head = sentinelNode;
+        tail = sentinelNode;
+    }
+
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+
+    /**
+     * Must be called by a single thread at a time.
+     *
+     * Progress Condition: Wait-Free Population Oblivious
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        if (item == null) throw new NullPointerException();
+        final Node<E> ltail = tail;
+        final int idx = enqidx;
+        if (idx == bufferSize) {
+            // This node is full, the new node is published with a volatile store
+            final Node<E> newNode = new Node<E>(bufferSize, item, 1);
+            ltail.next = newNode;
+            tail = newNode;
+            enqidx = 1;
+            return;
+        }
+        ltail.items[idx] = item;
+        ltail.putOrderedEnqidx(idx+1);
+        enqidx = idx+1;
+    }
+
+
+    /**
+     * Must be called by a single thread at a time.
+     *
+     * Progress Condition: Wait-Free Population Oblivious
+     *
+     * @return the item at the head of the queue or {@code null} if the queue is empty
+     */
+    public E dequeue() {
+        Node<E> lhead = head;
+        int idx = deqidx;
+        if (idx == cachedEnqidx) {
+            if (idx < bufferSize) {
+                cachedEnqidx = lhead.enqidx;
+                if (idx == cachedEnqidx) return null;
+            } else {
+                // This node has been drained, check if there is another one
+                final Node<E> lnext = lhead.next;
+                if (lnext == null) return null;
+                lhead = lnext;
+                head = lnext;
+                idx = 0;
+                cachedEnqidx = lnext.enqidx;
+            }
+        }
+        final E item = lhead.items[idx];
+        lhead.items[idx] = null;   // The producer will not write this entry again
+        deqidx = idx+1;
+        return item;
+    }
+}
@@ -0,0 +1,180 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.queues.array;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.concurrencyfreaks.queues.IQueue;
+
+
+/**
+ * <h1> Sharded Queue </h1>
+ *
+ * A queue made of numLanes FAAArrayQueue instances (lanes), to spread the
+ * contention on the enqidx of the tail node when there are many producers.
+ *
+ * The first time a thread uses the queue it gets a home lane, assigned
+ * round-robin, which it keeps in a ThreadLocal. enqueue() always goes to
+ * the home lane of the calling thread. dequeue() starts at the lane where
+ * the calling thread last found an item (initially its home lane) and, if
+ * that lane is empty, it steals from the other lanes in round-robin order.
+ *
+ * Ordering:
+ * This queue is NOT linearizable as a FIFO queue. Items enqueued by the same
+ * thread go to the same lane and are dequeued in the order they were
+ * enqueued (per-producer FIFO), but there is no order between items enqueued
+ * by different threads in different lanes.
+ * dequeue() returns null only after it has seen all lanes empty, but not
+ * all at the same time, so it may return null while there is an item in a
+ * lane it has already looked at.
+ * Batches from enqueueAll() go to a single lane, so the items of a batch
+ * keep their relative order, and dequeueInto() takes its items from a
+ * single lane.
+ *
+ * With numLanes=1 this is just an FAAArrayQueue plus a ThreadLocal lookup.
+ *
+ * enqueue() progress: lock-free
+ * dequeue() progress: lock-free
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class ShardedQueue<E> implements IQueue<E> {
+
+    // Default number of lanes
+    static final int NUM_LANES = 8;
+
+    /**
+     * Per-thread lane affinity
+     */
+    static final class Affinity {
+        final int homeLane;
+        int deqLane;
+
+        Affinity(int homeLane) {
+            this.homeLane = homeLane;
+            this.deqLane = homeLane;
+        }
+    }
+
+    private final FAAArrayQueue<E>[] lanes;
+    private final int numLanes;
+    private final AtomicInteger nextLane = new AtomicInteger(0);
+    private final ThreadLocal<Affinity> affinity = new ThreadLocal<Affinity>();
+
+
+    public ShardedQueue() {
+        this(NUM_LANES);
+    }
+
+
+    /**
+     * @param numLanes number of FAAArrayQueue instances
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedQueue(int numLanes) {
+        if (numLanes < 1) throw new IllegalArgumentException();
+        this.numLanes = numLanes;
+        lanes = new FAAArrayQueue[numLanes];
+        for (int i = 0; i < numLanes; i++) lanes[i] = new FAAArrayQueue<E>();
+    }
+
+
+    public int numLanes() {
+        return numLanes;
+    }
+
+
+    private Affinity getAffinity() {
+        Affinity laff = affinity.get();
+        if (laff == null) {
+            laff = new Affinity((nextLane.getAndIncrement() & Integer.MAX_VALUE) % numLanes);
+            affinity.set(laff);
+        }
+        return laff;
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @param item must not be null
+     */
+    public void enqueue(E item) {
+        lanes[getAffinity().homeLane].enqueue(item);
+    }
+
+
+    public void enqueueAll(E[] items, int off, int len) {
+        lanes[getAffinity().homeLane].enqueueAll(items, off, len);
+    }
+
+
+    /**
+     * Progress Condition: Lock-Free
+     *
+     * @return an item from one of the lanes, or {@code null} if all lanes
+     * were seen empty
+     */
+    public E dequeue() {
+        final Affinity laff = getAffinity();
+        final int start = laff.deqLane;
+        for (int i = 0; i < numLanes; i++) {
+            int lane = start + i;
+            if (lane >= numLanes) lane -= numLanes;
+            final E item = lanes[lane].dequeue();
+            if (item != null) {
+                laff.deqLane = lane;
+                return item;
+            }
+        }
+        // Everything is empty, next time start at our home lane
+        laff.deqLane = laff.homeLane;
+        return null;
+    }
+
+
+    /**
+     * Takes up to max items from the first lane that isn't empty
+     */
+    public int dequeueInto(E[] dst, int max) {
+        final Affinity laff = getAffinity();
+        final int start = laff.deqLane;
+        for (int i = 0; i < numLanes; i++) {
+            int lane = start + i;
+            if (lane >= numLanes) lane -= numLanes;
+            final int n = lanes[lane].dequeueInto(dst, max);
+            if (n > 0) {
+                laff.deqLane = lane;
+                return n;
+            }
+        }
+        laff.deqLane = laff.homeLane;
+        return 0;
+    }
+}
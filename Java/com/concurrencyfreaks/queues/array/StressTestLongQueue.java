@@ -0,0 +1,138 @@
+package com.concurrencyfreaks.queues.array;
+
+import java.util.Arrays;
+
+
+
+/**
+ * This is a correctness stress test of FAALongArrayQueue, which can't be
+ * created by StressTestQueues because it only holds Long items.
+ *
+ * Each thread enqueues values with its tid in the upper 32 bits and a
+ * per-thread sequence number in the lower 32 bits, alternated with
+ * dequeues, in one of two modes:
+ * Primitive: enqueue(long) and dequeueOrDefault(long);
+ * Boxed: enqueue(Long) and dequeue();
+ * After all threads finish, the queue is drained and we check that:
+ * - Every value that was enqueued was dequeued exactly once (count and sum);
+ * - Each dequeuer saw the values of each enqueuer in the order they were
+ *   enqueued (per-producer FIFO);
+ */
+public class StressTestLongQueue {
+
+    public enum TestKind {
+        Primitive,
+        Boxed,
+    }
+
+    private final static int NUM_ITEMS = 1000000;   // values enqueued by each thread
+    private final static int BURST_SIZE = 100;
+    // Not a value that any thread enqueues
+    private final static long EMPTY = -1;
+
+    private FAALongArrayQueue queue;
+    private volatile boolean fifoError = false;
+
+
+    public boolean singleTest(int numThreads, TestKind kind) {
+        String indentedName = kind.toString() + "                  ".substring(kind.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        queue = new FAALongArrayQueue();
+        fifoError = false;
+
+        final WorkerThread[] workerThreads = new WorkerThread[numThreads];
+        for (int i = 0; i < numThreads; i++) workerThreads[i] = new WorkerThread(numThreads, kind, i);
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long numDeqs = 0;
+        long sum = 0;
+        for (int i = 0; i < numThreads; i++) {
+            numDeqs += workerThreads[i].numDeqs;
+            sum += workerThreads[i].sum;
+        }
+        long value;
+        while ((value = queue.dequeueOrDefault(EMPTY)) != EMPTY) {
+            numDeqs++;
+            sum += value & 0xFFFFFFFFL;
+        }
+        if (queue.dequeue() != null) fifoError = true;
+
+        final long expectedDeqs = (long)numThreads*NUM_ITEMS;
+        final long expectedSum = (long)numThreads*((long)NUM_ITEMS*(NUM_ITEMS-1)/2);
+        if (numDeqs != expectedDeqs || sum != expectedSum || fifoError) {
+            System.out.println("FAILED  numDeqs="+numDeqs+" (expected "+expectedDeqs+")  sumOk="+(sum == expectedSum)+"  fifoError="+fifoError);
+            return false;
+        }
+        System.out.println("PASSED");
+        return true;
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does the stress tests
+     */
+    class WorkerThread extends Thread {
+        final TestKind kind;
+        final int tid;
+        long numDeqs = 0;
+        long sum = 0;
+        final long[] lastSeen;
+
+        public WorkerThread(int numThreads, TestKind kind, int tid) {
+            this.kind = kind;
+            this.tid = tid;
+            lastSeen = new long[numThreads];
+            Arrays.fill(lastSeen, -1);
+        }
+
+        private void check(long value) {
+            final int enqTid = (int)(value >>> 32);
+            final long seq = value & 0xFFFFFFFFL;
+            if (seq <= lastSeen[enqTid]) fifoError = true;
+            lastSeen[enqTid] = seq;
+            numDeqs++;
+            sum += seq;
+        }
+
+        public void run() {
+            for (int i = 0; i < NUM_ITEMS; i += BURST_SIZE) {
+                for (int j = i; j < i+BURST_SIZE && j < NUM_ITEMS; j++) {
+                    final long value = ((long)tid << 32) | j;
+                    if (kind == TestKind.Primitive) {
+                        queue.enqueue(value);
+                    } else {
+                        queue.enqueue(Long.valueOf(value));
+                    }
+                }
+                for (int j = 0; j < BURST_SIZE; j++) {
+                    if (kind == TestKind.Primitive) {
+                        final long value = queue.dequeueOrDefault(EMPTY);
+                        if (value == EMPTY) break;
+                        check(value);
+                    } else {
+                        final Long value = queue.dequeue();
+                        if (value == null) break;
+                        check(value);
+                    }
+                }
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        final int[] threadList = { 1, 2, 4, 8, 16 };
+        final StressTestLongQueue tests = new StressTestLongQueue();
+        boolean passed = true;
+        for (int nThreads : threadList) {
+            System.out.println("----- Stress tests numThreads=" +nThreads+" -----");
+            for (TestKind kind : TestKind.values()) passed &= tests.singleTest(nThreads, kind);
+        }
+        System.out.println(passed ? "All stress tests PASSED" : "Some stress tests FAILED");
+    }
+}
@@ -0,0 +1,237 @@
+package com.concurrencyfreaks.queues.array;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+
+/**
+ * This is a correctness stress test and benchmark of FAAMappedRecordQueue,
+ * which isn't an IQueue and so isn't covered by StressTestQueues.
+ *
+ * Threads:
+ * Half the threads are producers that claim() a record, write their tid and
+ * a per-thread sequence number in it and commit() it, and the other half
+ * are consumers that poll() records. Small capacities make the producers
+ * see the queue full and the tickets wrap around the ring many times.
+ * After all threads finish, the queue is drained and we check that:
+ * - Every record that was committed was polled exactly once (count and sum);
+ * - Each consumer saw the records of each producer in the order they were
+ *   committed (per-producer FIFO);
+ * We also show the number of records per second that went through the queue.
+ *
+ * Processes:
+ * A child JVM is started on the same file as a producer, with the class
+ * path of this one, while this process consumes and checks that all the
+ * records arrive in order. The child can also be started by hand with
+ *   java com.concurrencyfreaks.queues.array.StressTestMappedRecordQueue producer file capacity numRecords
+ * while another process runs it with "consumer" instead of "producer".
+ */
+public class StressTestMappedRecordQueue {
+
+    private final static int NUM_RECORDS = 1000000;    // records committed by each producer
+    private final static int NUM_IPC_RECORDS = 1000000;
+    private final static int RECORD_SIZE = 16;
+    private final static long IPC_TIMEOUT_MILIS = 60000;
+
+    private FAAMappedRecordQueue queue;
+    private volatile boolean fifoError = false;
+    private volatile int numProducersDone = 0;
+
+
+    public boolean singleTest(int numThreads, int capacity) throws IOException {
+        String testName = "capacity=" + capacity;
+        String indentedName = testName + "                  ".substring(testName.length());
+        System.out.print("##### "+indentedName+" #####  ");
+        final File file = File.createTempFile("FAAMappedRecordQueue", ".queue");
+        file.deleteOnExit();
+        queue = new FAAMappedRecordQueue(file, capacity, RECORD_SIZE);
+        fifoError = false;
+        numProducersDone = 0;
+
+        final int numProducers = numThreads/2;
+        final WorkerThread[] workerThreads = new WorkerThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workerThreads[i] = new WorkerThread(i < numProducers, numProducers, i);
+        }
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < numThreads; i++) workerThreads[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) workerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        final WorkerThread drainer = new WorkerThread(false, numProducers, numThreads);
+        while (queue.poll(drainer)) { }
+        long numPolls = drainer.numPolls;
+        long sum = drainer.sum;
+        for (int i = 0; i < numThreads; i++) {
+            numPolls += workerThreads[i].numPolls;
+            sum += workerThreads[i].sum;
+        }
+        file.delete();
+
+        final long expectedPolls = (long)numProducers*NUM_RECORDS;
+        final long expectedSum = (long)numProducers*((long)NUM_RECORDS*(NUM_RECORDS-1)/2);
+        if (numPolls != expectedPolls || sum != expectedSum || fifoError) {
+            System.out.println("FAILED  numPolls="+numPolls+" (expected "+expectedPolls+")  sumOk="+(sum == expectedSum)+"  fifoError="+fifoError);
+            return false;
+        }
+        System.out.println("PASSED  records/sec = "+(expectedPolls*1000000000L/elapsed));
+        return true;
+    }
+
+
+    /**
+     * Inner class for the Worker thread that does the stress tests. It is
+     * also the consumer passed to poll().
+     */
+    class WorkerThread extends Thread implements Consumer<ByteBuffer> {
+        final boolean isProducer;
+        final int numProducers;
+        final int tid;
+        long numPolls = 0;
+        long sum = 0;
+        final long[] lastSeen;
+
+        public WorkerThread(boolean isProducer, int numProducers, int tid) {
+            this.isProducer = isProducer;
+            this.numProducers = numProducers;
+            this.tid = tid;
+            lastSeen = new long[numProducers];
+            Arrays.fill(lastSeen, -1);
+        }
+
+        public void run() {
+            if (isProducer) {
+                for (int i = 0; i < NUM_RECORDS; i++) {
+                    ByteBuffer buf;
+                    while ((buf = queue.claim()) == null) Thread.yield();
+                    buf.putLong(tid).putLong(i);
+                    queue.commit();
+                }
+                synchronized (StressTestMappedRecordQueue.this) { numProducersDone++; }
+            } else {
+                // Stop once all producers are done and the queue looks empty
+                while (true) {
+                    final boolean done = numProducersDone == numProducers;
+                    if (!queue.poll(this)) {
+                        if (done) return;
+                        Thread.yield();
+                    }
+                }
+            }
+        }
+
+        public void accept(ByteBuffer buf) {
+            final int enqTid = (int)buf.getLong();
+            final long seq = buf.getLong();
+            if (seq <= lastSeen[enqTid]) fifoError = true;
+            lastSeen[enqTid] = seq;
+            numPolls++;
+            sum += seq;
+        }
+    }
+
+
+    /**
+     * Commits numRecords records with sequence numbers 0 to numRecords-1
+     */
+    static void runProducer(FAAMappedRecordQueue queue, int numRecords) {
+        for (int i = 0; i < numRecords; i++) {
+            ByteBuffer buf;
+            while ((buf = queue.claim()) == null) Thread.yield();
+            buf.putLong(0).putLong(i);
+            queue.commit();
+        }
+    }
+
+
+    /**
+     * Polls numRecords records and checks that their sequence numbers are
+     * 0 to numRecords-1 in order
+     *
+     * @return false if a record is out of order or the timeout expired
+     */
+    static boolean runConsumer(FAAMappedRecordQueue queue, int numRecords, long timeoutMilis) {
+        final long[] next = new long[1];
+        final boolean[] error = new boolean[1];
+        final Consumer<ByteBuffer> checker = new Consumer<ByteBuffer>() {
+            public void accept(ByteBuffer buf) {
+                buf.getLong();
+                if (buf.getLong() != next[0]) error[0] = true;
+                next[0]++;
+            }
+        };
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilis);
+        while (next[0] < numRecords && !error[0]) {
+            if (queue.poll(checker)) continue;
+            if (System.nanoTime() > deadline) return false;
+            Thread.yield();
+        }
+        return !error[0];
+    }
+
+
+    /**
+     * Starts a child JVM that produces into the queue while this process
+     * consumes from it
+     */
+    public boolean twoProcessTest(int capacity) throws IOException, InterruptedException {
+        String testName = "capacity=" + capacity;
+        String indentedName = testName + "                  ".substring(testName.length());
+        System.out.print("##### "+indentedName+" #####  ");
+        final File file = File.createTempFile("FAAMappedRecordQueue", ".queue");
+        file.deleteOnExit();
+        final FAAMappedRecordQueue queue = new FAAMappedRecordQueue(file, capacity, RECORD_SIZE);
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                StressTestMappedRecordQueue.class.getName(), "producer", file.getPath(),
+                Integer.toString(capacity), Integer.toString(NUM_IPC_RECORDS)).inheritIO().start();
+        final long startTime = System.nanoTime();
+        final boolean ordered = runConsumer(queue, NUM_IPC_RECORDS, IPC_TIMEOUT_MILIS);
+        final long elapsed = System.nanoTime() - startTime;
+        if (!child.waitFor(IPC_TIMEOUT_MILIS, TimeUnit.MILLISECONDS)) child.destroyForcibly();
+        final boolean childOk = !child.isAlive() && child.exitValue() == 0;
+        file.delete();
+        if (!ordered || !childOk) {
+            System.out.println("FAILED  ordered="+ordered+"  childOk="+childOk);
+            return false;
+        }
+        System.out.println("PASSED  records/sec = "+((long)NUM_IPC_RECORDS*1000000000L/elapsed));
+        return true;
+    }
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 4) {
+            final FAAMappedRecordQueue queue = new FAAMappedRecordQueue(new File(args[1]), Integer.parseInt(args[2]), RECORD_SIZE);
+            final int numRecords = Integer.parseInt(args[3]);
+            if (args[0].equals("producer")) {
+                runProducer(queue, numRecords);
+            } else if (!runConsumer(queue, numRecords, IPC_TIMEOUT_MILIS)) {
+                System.out.println("Consumer FAILED");
+                System.exit(1);
+            }
+            return;
+        }
+
+        final int[] threadList = { 2, 4, 8 };
+        final int[] capacityList = { 2, 4, 64, 1024 };
+        final StressTestMappedRecordQueue tests = new StressTestMappedRecordQueue();
+        boolean passed = true;
+        for (int nThreads : threadList) {
+            System.out.println("----- Stress tests numThreads=" +nThreads+" -----");
+            for (int capacity : capacityList) passed &= tests.singleTest(nThreads, capacity);
+        }
+        System.out.println("----- Two process tests -----");
+        for (int capacity : capacityList) passed &= tests.twoProcessTest(capacity);
+        System.out.println(passed ? "All stress tests PASSED" : "Some stress tests FAILED");
+    }
+}
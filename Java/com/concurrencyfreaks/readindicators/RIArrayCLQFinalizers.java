@@ -27,10 +27,15 @@
  */ 
 package com.concurrencyfreaks.readindicators;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A ReadIndicator with one state per Reader thread, kept in a ReaderRegistry.
+ * The name is kept for compatibility: the states used to be stored in a
+ * ConcurrentLinkedQueue and removed with finalize(), but now the registry
+ * removes the state of a thread after it terminates and the GC finds it, or
+ * when the thread calls deregisterCurrentThread().
+ */
 public class RIArrayCLQFinalizers implements ReadIndicator {
 
     // Reader states
@@ -38,121 +43,45 @@ public class RIArrayCLQFinalizers implements ReadIndicator {
     private static final int STATE_READING     = 1;
 
     /**
-     * We use this as a "special" marking: readersStateArrayRef
-     * will point to it when the array of Reader's states needs to be rebuild
-     * from the ConcurrentLinkedQueue.
-     */
-    private static final AtomicInteger[] dummyArray = new AtomicInteger[0];    
-    
-    /**
-     * List of Reader's states that the Writer will scan when attempting to
+     * Reader's states that the Writer will scan when attempting to
      * acquire the lock in write-mode
      */
-    private final ConcurrentLinkedQueue<AtomicInteger> readersStateList;
-
-    /**
-     * Thread-local reference to the current thread's ReadersEntry instance.
-     * It's from this instance that the current Reader thread is able
-     * to determine where to store its own state for that particular thread.
-     */
-    private final ThreadLocal<ReadersEntry> entry;
-    
-    /**
-     * Shortcut to the reader's states so that we don't have to walk the 
-     * ConcurrentLinkedQueue on every exclusiveLock().
-     */
-    private final AtomicReference<AtomicInteger[]> readersStateArrayRef;
+    private final ReaderRegistry<AtomicInteger> readers;
 
     
     public RIArrayCLQFinalizers() {
-        readersStateList = new ConcurrentLinkedQueue<AtomicInteger>();
-        entry = new ThreadLocal<ReadersEntry>();        
-        readersStateArrayRef = new AtomicReference<AtomicInteger[]>(null);
+        readers = new ReaderRegistry<AtomicInteger>(new AtomicInteger[0]);
     }
     
     @Override
     public void arrive() {
-        ReadersEntry localEntry = entry.get();
+        AtomicInteger localState = readers.get();
         // Initialize a new Reader-state for this thread if needed         
-        if (localEntry == null) {
-            localEntry = addState();      
+        if (localState == null) {
+            localState = readers.register(new AtomicInteger(STATE_NOT_READING));
         }
-        localEntry.state.set(STATE_READING);
+        localState.set(STATE_READING);
     }
     
     @Override
     public void depart() {
-        entry.get().state.set(STATE_NOT_READING);
+        readers.get().set(STATE_NOT_READING);
     }
     
     @Override
     public boolean isEmpty() {
-        AtomicInteger[] localReadersStateArray = readersStateArrayRef.get();
-        if (localReadersStateArray == null) {
-            // Set to dummyArray before scanning the readersStateList to impose
-            // a linearizability condition
-            readersStateArrayRef.set(dummyArray);
-            // Copy readersStateList to an array
-            localReadersStateArray = readersStateList.toArray(new AtomicInteger[readersStateList.size()]);
-            readersStateArrayRef.compareAndSet(dummyArray, localReadersStateArray);            
-        }                 
         // Scan the array of Reader states
-        for (AtomicInteger readerState : localReadersStateArray) {
-            while (readerState != null && readerState.get() == STATE_READING) {
-                return false;
-            }
+        for (AtomicInteger readerState : readers.getStates()) {
+            if (readerState.get() == STATE_READING) return false;
         }
         return true;
     }
-    
-    /**
-     * Inner class that makes use of finalize() to remove the Reader's state 
-     * from the ConcurrentLinkedQueue {@code readersStateList}
-     */
-    final class ReadersEntry {
-        public final AtomicInteger state;
-        public boolean isStampLocked = false;       
-        public ReadersEntry(AtomicInteger state) { 
-            this.state = state;         
-        }
-        protected void finalize() throws Throwable {
-            removeState(state);
-            super.finalize();
-        }
-    }    
-
-    /**
-     * This function should be called only from ReadersEntry.finalize()
-     * 
-     * @param state The reader's state that we wish to remove from the ConcurrentLinkedQueue
-     */
-    protected void removeState(AtomicInteger state) {        
-        readersStateList.remove(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ.
-        readersStateArrayRef.set(null);        
-        // Paranoia: just in case someone forgot to call sharedUnlock()
-        // and there is a Writer waiting on that state.
-        state.set(STATE_NOT_READING);
-    }
 
-    
     /**
-     * Creates a new ReadersEntry instance for the current thread and
-     * its associated AtomicInteger to store the state of the Reader
-     * 
-     * @return Returns a reference to the newly created instance of 
-     * {@code ReadersEntry}
+     * Removes the Reader's state of the current thread. Must not be called
+     * between arrive() and depart().
      */
-    private ReadersEntry addState() {
-        final AtomicInteger state = new AtomicInteger(STATE_NOT_READING);
-        final ReadersEntry newEntry = new ReadersEntry(state); 
-        entry.set(newEntry);
-        readersStateList.add(state);
-        // Setting the readersStateArrayRef to null will make the Writer
-        // rebuild the array from the CLQ.
-        readersStateArrayRef.set(null);
-        return newEntry;
+    public void deregisterCurrentThread() {
+        readers.deregisterCurrentThread();
     }
-    
 }
@@ -0,0 +1,193 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.readindicators;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+
+/**
+ * <h1> Reader Registry </h1>
+ *
+ * Keeps the per-thread states of the Readers of a lock (or of a Left-Right
+ * instance, or of a read indicator) in a compact array that the Writers can
+ * scan, and removes the state of each thread when the thread terminates.
+ *
+ * Each thread registers its state with register() and gets it back with
+ * get(), which is a ThreadLocal lookup. The state is kept in a ThreadLocal
+ * entry, and when the thread terminates the entry becomes unreachable and a
+ * PhantomReference to it is enqueued by the GC in refQueue. Writers
+ * (in getStates()) and Readers registering for the first time drain
+ * refQueue and remove the states of those threads, so there is no
+ * finalize() and no background thread.
+ * A thread can also remove its state explicitly by calling
+ * deregisterCurrentThread(), for example before a pooled thread is returned
+ * to the pool, in which case its state leaves the Writers' scans right away
+ * instead of after a GC cycle.
+ *
+ * The states are kept in a copy-on-write array: adding or removing a state
+ * makes a new array where the removed slot is filled with the last state,
+ * so the array returned by getStates() has only the states of registered
+ * threads, with no holes. Adding and removing states is done under a
+ * lock, but it happens only once per thread, while getStates() is a
+ * volatile load (plus a poll() on the ReferenceQueue, which is a plain
+ * load when it's empty).
+ * A thread that registers its state and then publishes it (for example,
+ * setting it to READING) is seen by a Writer that calls getStates() after
+ * checking it, because the new array is published before register() returns.
+ *
+ * get() progress: wait-free population oblivious
+ * getStates() progress: wait-free population oblivious (if no thread terminated since the last call)
+ * register()/deregisterCurrentThread() progress: blocking
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class ReaderRegistry<S> {
+
+    /**
+     * Held only by the ThreadLocal of the thread that owns the state
+     */
+    static final class Entry<S> {
+        final S state;
+        StateRef<S> ref;
+
+        Entry(S state) {
+            this.state = state;
+        }
+    }
+
+    /**
+     * Kept reachable by refs, until the state is removed
+     */
+    static final class StateRef<S> extends PhantomReference<Entry<S>> {
+        StateRef(Entry<S> entry, ReferenceQueue<Entry<S>> queue) {
+            super(entry, queue);
+        }
+    }
+
+    private final ThreadLocal<Entry<S>> entry = new ThreadLocal<Entry<S>>();
+    private final ReferenceQueue<Entry<S>> refQueue = new ReferenceQueue<Entry<S>>();
+
+    // The states of the registered threads, for the Writers to scan
+    private volatile S[] states;
+
+    // refs.get(i) is the reference for states[i]. Guarded by the lock on this
+    private final ArrayList<StateRef<S>> refs = new ArrayList<StateRef<S>>();
+
+
+    /**
+     * @param emptyArray an array of length zero, used to create the arrays
+     * of states with the right type, like in Collection.toArray()
+     */
+    public ReaderRegistry(S[] emptyArray) {
+        if (emptyArray.length != 0) throw new IllegalArgumentException();
+        states = emptyArray;
+    }
+
+
+    /**
+     * Returns the state of the current thread, or null if it is not registered
+     */
+    public S get() {
+        final Entry<S> lentry = entry.get();
+        return lentry == null ? null : lentry.state;
+    }
+
+
+    /**
+     * Registers the state of the current thread, which must not be registered yet
+     *
+     * @return state
+     */
+    public S register(S state) {
+        expungeTerminated();
+        final Entry<S> lentry = new Entry<S>(state);
+        final StateRef<S> ref = new StateRef<S>(lentry, refQueue);
+        lentry.ref = ref;
+        synchronized (this) {
+            final S[] lstates = Arrays.copyOf(states, states.length+1);
+            lstates[lstates.length-1] = state;
+            refs.add(ref);
+            states = lstates;
+        }
+        entry.set(lentry);
+        return state;
+    }
+
+
+    /**
+     * Removes the state of the current thread, if it has one. The thread must
+     * not be in the middle of a read.
+     */
+    public void deregisterCurrentThread() {
+        final Entry<S> lentry = entry.get();
+        if (lentry == null) return;
+        entry.remove();
+        // A cleared reference is never enqueued
+        lentry.ref.clear();
+        remove(lentry.ref);
+    }
+
+
+    /**
+     * Returns the states of all the registered threads. The array must not
+     * be modified.
+     */
+    public S[] getStates() {
+        expungeTerminated();
+        return states;
+    }
+
+
+    private synchronized void remove(Reference<?> ref) {
+        final int idx = refs.indexOf(ref);
+        if (idx == -1) return;
+        final int last = refs.size()-1;
+        final S[] lstates = Arrays.copyOf(states, last);
+        if (idx != last) {
+            lstates[idx] = states[last];
+            refs.set(idx, refs.get(last));
+        }
+        refs.remove(last);
+        states = lstates;
+    }
+
+
+    /**
+     * Removes the states of the threads that have terminated
+     */
+    private void expungeTerminated() {
+        Reference<?> ref;
+        while ((ref = refQueue.poll()) != null) remove(ref);
+    }
+}
@@ -0,0 +1,273 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.readindicators;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+
+/**
+ * <h1> Thread Registry </h1>
+ *
+ * Hands out dense thread ids in the range 0 to maxThreads-1, where no two
+ * live threads can have the same tid, for the data structures that have
+ * per-thread arrays, like CRTurnQueue, CRSimQueue and EncapsulatorQueue,
+ * or for the packed mode of ScalableRWLock and LRScalableTreeSet.
+ * Using {@code Thread.getId() % maxThreads} instead is only safe if the
+ * thread ids are sequential and there are never more than maxThreads of them.
+ *
+ * The first time a thread calls getTid() it claims a free slot in slots[]
+ * with a CAS, and the tid is kept in a ThreadLocal from then on.
+ * When the thread terminates its ThreadLocal entry becomes unreachable, and
+ * a PhantomReference to the entry is enqueued by the GC in refQueue. Threads
+ * that register later drain refQueue and free the slots of those entries,
+ * so there is no finalize() and no background thread. A thread can also give
+ * back its tid explicitly by calling release(), for example before a pooled
+ * thread is returned to the pool.
+ * If all the slots are taken, we look for slots whose owner thread is no
+ * longer alive and that the GC hasn't enqueued yet, and if there are none,
+ * getTid() throws IllegalStateException. We never call System.gc() or wait
+ * for the GC, so the caller must size maxThreads for the maximum number of
+ * live threads that use the registry at the same time.
+ *
+ * One registry can be shared by several data structures, as long as all of
+ * them have per-thread arrays with at least getMaxThreads() entries.
+ * Free tids are claimed lowest first, so a data structure that scans its
+ * per-thread array can stop at getHighWaterMark() instead of maxThreads.
+ *
+ * Per-operation slots:
+ * When there are many more threads than maxThreads, but only a few of them
+ * are running operations at any given time (for example, one short-lived
+ * thread per task), a data structure can instead call acquireSlot() at the
+ * start of each operation and releaseSlot() at the end. The slot is a tid
+ * that is unique among the operations in progress, instead of among the
+ * live threads. Acquiring a slot scans from a hash of the thread id, so
+ * that different threads tend to start at different slots. If all slots
+ * are in use, acquireSlot() yields until one is released.
+ *
+ * getTid() progress: wait-free population oblivious (after the first call)
+ * release() progress: wait-free population oblivious
+ * acquireSlot() progress: blocking (if there are maxThreads operations in progress)
+ * releaseSlot() progress: wait-free population oblivious
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class ThreadRegistry {
+
+    /**
+     * Held only by the ThreadLocal of the thread that owns the tid
+     */
+    static final class TidEntry {
+        final int tid;
+        TidRef ref;
+
+        TidEntry(int tid) {
+            this.tid = tid;
+        }
+    }
+
+    /**
+     * Kept reachable by slots[], until the slot is freed
+     */
+    static final class TidRef extends PhantomReference<TidEntry> {
+        final int tid;
+        // Doesn't keep the owner thread from being collected
+        final WeakReference<Thread> owner;
+
+        TidRef(TidEntry entry, ReferenceQueue<TidEntry> queue) {
+            super(entry, queue);
+            this.tid = entry.tid;
+            this.owner = new WeakReference<Thread>(Thread.currentThread());
+        }
+
+        boolean isOwnerAlive() {
+            final Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+
+    // Marks a slot in use by acquireSlot()
+    private static final Object BUSY = new Object();
+
+    private final int maxThreads;
+    // A null slot means the tid is free, otherwise it has a TidRef or BUSY
+    private final AtomicReferenceArray<Object> slots;
+    private final ReferenceQueue<TidEntry> refQueue = new ReferenceQueue<TidEntry>();
+    private final ThreadLocal<TidEntry> entry = new ThreadLocal<TidEntry>();
+    // One plus the highest tid handed out so far
+    private final AtomicInteger highWaterMark = new AtomicInteger(0);
+
+
+    public ThreadRegistry(int maxThreads) {
+        if (maxThreads <= 0) throw new IllegalArgumentException();
+        this.maxThreads = maxThreads;
+        slots = new AtomicReferenceArray<Object>(maxThreads);
+    }
+
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+
+    /**
+     * Returns one plus the highest tid that was ever handed out. A tid is
+     * counted before getTid() or acquireSlot() return it, so a thread that
+     * reads this after seeing a store done by the owner of a tid, will scan
+     * up to that tid.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+
+    /**
+     * Returns the tid of the current thread, registering it if needed
+     *
+     * @throws IllegalStateException if there are already maxThreads live
+     * threads registered. This never waits for the GC, so maxThreads must be
+     * at least the number of live threads using the registry.
+     */
+    public int getTid() {
+        final TidEntry lentry = entry.get();
+        if (lentry != null) return lentry.tid;
+        return register();
+    }
+
+
+    /**
+     * Gives back the tid of the current thread, if it has one. The thread must
+     * not be in the middle of an operation on a data structure that uses
+     * this registry.
+     */
+    public void release() {
+        final TidEntry lentry = entry.get();
+        if (lentry == null) return;
+        entry.remove();
+        slots.compareAndSet(lentry.tid, lentry.ref, null);
+    }
+
+
+    /**
+     * Returns a tid that no other operation in progress is using. Must be
+     * followed by releaseSlot() at the end of the operation.
+     */
+    public int acquireSlot() {
+        long x = Thread.currentThread().getId();
+        x ^= (x << 21);
+        x ^= (x >>> 35);
+        x ^= (x << 4);
+        final int start = (int)((x & Long.MAX_VALUE) % maxThreads);
+        while (true) {
+            for (int i = 0; i < maxThreads; i++) {
+                final int tid = (start + i) % maxThreads;
+                if (slots.get(tid) == null && slots.compareAndSet(tid, null, BUSY)) {
+                    raiseHighWaterMark(tid);
+                    return tid;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+
+    /**
+     * @param tid a slot returned by acquireSlot()
+     */
+    public void releaseSlot(int tid) {
+        slots.set(tid, null);
+    }
+
+
+    private int register() {
+        expungeTerminated();
+        int tid = tryClaim();
+        if (tid == -1) {
+            // There may be terminated threads that the GC hasn't found yet
+            expungeDead();
+            tid = tryClaim();
+            if (tid == -1) throw new IllegalStateException("More than "+maxThreads+" live threads using ThreadRegistry");
+        }
+        return tid;
+    }
+
+
+    private int tryClaim() {
+        for (int i = 0; i < maxThreads; i++) {
+            if (slots.get(i) != null) continue;
+            final TidEntry lentry = new TidEntry(i);
+            final TidRef ref = new TidRef(lentry, refQueue);
+            lentry.ref = ref;
+            if (slots.compareAndSet(i, null, ref)) {
+                raiseHighWaterMark(i);
+                entry.set(lentry);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private void raiseHighWaterMark(int tid) {
+        int hwm = highWaterMark.get();
+        while (hwm <= tid && !highWaterMark.compareAndSet(hwm, tid+1)) {
+            hwm = highWaterMark.get();
+        }
+    }
+
+
+    /**
+     * Frees the slots of the threads that have terminated
+     */
+    private void expungeTerminated() {
+        TidRef ref;
+        while ((ref = (TidRef)refQueue.poll()) != null) {
+            // If the thread called release() the slot may already belong to another thread
+            slots.compareAndSet(ref.tid, ref, null);
+        }
+    }
+
+
+    /**
+     * Frees the slots whose owner thread has terminated but whose TidRef
+     * was not enqueued yet. Slots from acquireSlot() are left alone.
+     */
+    private void expungeDead() {
+        for (int i = 0; i < maxThreads; i++) {
+            final Object obj = slots.get(i);
+            if (obj instanceof TidRef && !((TidRef)obj).isOwnerAlive()) {
+                slots.compareAndSet(i, obj, null);
+            }
+        }
+    }
+}
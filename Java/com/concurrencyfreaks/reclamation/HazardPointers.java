@@ -0,0 +1,257 @@
+/******************************************************************************
+ * Copyright (c) 2016, Pedro Ramalhete, Andreia Correia
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Concurrency Freaks nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************
+ */
+package com.concurrencyfreaks.reclamation;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+
+/**
+ * <h1> Hazard Pointers </h1>
+ *
+ * A Java port of CPP/queues/HazardPointers.hpp, to be used by data structures
+ * that re-use their nodes (or any other objects) instead of leaving them for
+ * the GC.
+ * In Java a node can't be deleted while another thread still has a reference
+ * to it, but it can be recycled, and then that thread sees a node with a
+ * different item and next, and its CAS may succeed because of ABA. The hazard
+ * pointers tell us when no thread can be accessing a retired object anymore,
+ * and at that point, instead of deleting it, we keep it to be handed out
+ * again by poll().
+ *
+ * Like in the C++ version, each thread passes its tid, a value between 0 and
+ * maxThreads-1 that no other live thread has, to every method.
+ * Each thread has maxHPs hazard pointers, padded to avoid false sharing with
+ * the hazard pointers of other threads. Publishing a hazard pointer is a
+ * volatile store, which in Java is sequentially consistent, so the usual
+ * pattern of publishing a pointer and then checking that it's still
+ * reachable works as-is.
+ * Retired objects go to a retired list of the thread that retired them and
+ * when there are R of them, we scan the hazard pointers of all threads and
+ * reclaim the ones that aren't protected. The scan first copies the non-null
+ * hazard pointers to a per-thread array, so that each retired object is
+ * compared only with the hazard pointers in use.
+ * Unlike in the C++ version, R is not zero because the scan is a lot more
+ * expensive than the GC'ing of a few nodes. Each retired list never has more
+ * than R plus maxThreads*maxHPs objects in it.
+ *
+ * Reclaimed objects go first to a free list of the thread that reclaimed
+ * them, with up to FREE_SIZE objects, and then to a shared array of free
+ * objects, where putting an object is a CAS(null,obj) and taking an object
+ * is a getAndSet(null), so it has no ABA issues, the same as in the NodePool
+ * of the array queues. Each thread only looks at MAX_PROBES entries of the
+ * shared array, starting at an index that depends on its tid, and if there
+ * is no room there, the object is left for the GC. This keeps poll() and
+ * retire() cheap and the memory usage bounded, at the cost of sometimes
+ * allocating a new object when there was a free one in another entry.
+ * The caller must reset the object it gets from poll() before publishing it.
+ *
+ * protectPtr()/clear() progress: wait-free population oblivious
+ * retire() progress: wait-free bounded (by maxThreads * maxHPs * R)
+ * poll() progress: wait-free bounded (by MAX_PROBES)
+ *
+ * <p>
+ * The paper on Hazard Pointers is named "Hazard Pointers: Safe Memory
+ * Reclamation for Lock-Free objects" and it is available here:
+ * http://web.cecs.pdx.edu/~walpole/class/cs510/papers/11.pdf
+ *
+ * @author Pedro Ramalhete
+ * @author Andreia Correia
+ */
+public class HazardPointers<T> {
+
+    private static final int HP_MAX_THREADS = 128;
+    private static final int HP_MAX_HPS = 4;       // This is named 'K' in the HP paper
+    private static final int CLPAD = 128/4;         // Padding between the hazard pointers of two threads
+    private static final int HP_THRESHOLD_R = 64;   // This is named 'R' in the HP paper
+    public static final int FREE_SIZE = 256;
+    private static final int MAX_PROBES = 16;       // Entries of freeObjects we look at in poll() and putFree()
+
+    private final int maxHPs;
+    private final int maxThreads;
+
+    // The hazard pointers of thread tid start at tid*CLPAD
+    private final AtomicReferenceArray<T> hp;
+    // Only accessed by the thread that owns the tid
+    private final ArrayList<T>[] retiredList;
+    // Used by retire() to keep a snapshot of the hazard pointers, one per tid
+    private final Object[][] scratch;
+    // Objects that this tid reclaimed and will re-use itself, up to FREE_SIZE of them
+    private final ArrayList<T>[] localFree;
+    private final AtomicReferenceArray<T> freeObjects = new AtomicReferenceArray<T>(FREE_SIZE);
+
+
+    public HazardPointers() {
+        this(HP_MAX_HPS, HP_MAX_THREADS);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public HazardPointers(int maxHPs, int maxThreads) {
+        if (maxHPs <= 0 || maxHPs > CLPAD || maxThreads <= 0) throw new IllegalArgumentException();
+        this.maxHPs = maxHPs;
+        this.maxThreads = maxThreads;
+        hp = new AtomicReferenceArray<T>((maxThreads+1)*CLPAD);
+        retiredList = new ArrayList[maxThreads];
+        scratch = new Object[maxThreads][];
+        localFree = new ArrayList[maxThreads];
+        for (int ithread = 0; ithread < maxThreads; ithread++) {
+            retiredList[ithread] = new ArrayList<T>();
+            localFree[ithread] = new ArrayList<T>();
+            scratch[ithread] = new Object[maxThreads*maxHPs];
+        }
+    }
+
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+
+    /**
+     * Progress Condition: wait-free bounded (by maxHPs)
+     */
+    public void clear(int tid) {
+        for (int ihp = 0; ihp < maxHPs; ihp++) {
+            hp.lazySet(tid*CLPAD+ihp, null);
+        }
+    }
+
+
+    /**
+     * Progress Condition: wait-free population oblivious
+     */
+    public void clearOne(int ihp, int tid) {
+        hp.lazySet(tid*CLPAD+ihp, null);
+    }
+
+
+    /**
+     * Publishes ptr with a sequentially consistent store. The caller must
+     * then check that ptr is still reachable before dereferencing it.
+     * This returns the same value that is passed as ptr, which is sometimes useful.
+     *
+     * Progress Condition: wait-free population oblivious
+     */
+    public T protectPtr(int ihp, T ptr, int tid) {
+        hp.set(tid*CLPAD+ihp, ptr);
+        return ptr;
+    }
+
+
+    /**
+     * Same as protectPtr() but with a release store, to be used when ptr is
+     * already protected by another hazard pointer of this thread.
+     *
+     * Progress Condition: wait-free population oblivious
+     */
+    public T protectRelease(int ihp, T ptr, int tid) {
+        hp.lazySet(tid*CLPAD+ihp, ptr);
+        return ptr;
+    }
+
+
+    /**
+     * Must be called by the thread that made obj unreachable, after which
+     * no new hazard pointers to obj can be published.
+     *
+     * Progress Condition: wait-free bounded (by maxThreads * maxHPs * R)
+     */
+    public void retire(T obj, int tid) {
+        final ArrayList<T> rlist = retiredList[tid];
+        rlist.add(obj);
+        if (rlist.size() < HP_THRESHOLD_R) return;
+        final ArrayList<T> lfree = localFree[tid];
+        // Take a snapshot of the non-null hazard pointers, usually there are just a few
+        final Object[] hazards = scratch[tid];
+        int numHazards = 0;
+        for (int itid = 0; itid < maxThreads; itid++) {
+            for (int ihp = 0; ihp < maxHPs; ihp++) {
+                final T ptr = hp.get(itid*CLPAD+ihp);
+                if (ptr != null) hazards[numHazards++] = ptr;
+            }
+        }
+        for (int iret = 0; iret < rlist.size();) {
+            final T robj = rlist.get(iret);
+            if (isProtected(robj, hazards, numHazards)) {
+                iret++;
+                continue;
+            }
+            // Swap with the last one, the order doesn't matter
+            final int last = rlist.size()-1;
+            rlist.set(iret, rlist.get(last));
+            rlist.remove(last);
+            if (lfree.size() < FREE_SIZE) {
+                lfree.add(robj);
+            } else {
+                putFree(robj, tid);
+            }
+        }
+        for (int i = 0; i < numHazards; i++) hazards[i] = null;
+    }
+
+
+    /**
+     * Returns an object that was retired and is no longer protected by any
+     * hazard pointer, or null if there is none.
+     *
+     * Progress Condition: wait-free bounded (by MAX_PROBES)
+     */
+    public T poll(int tid) {
+        final ArrayList<T> lfree = localFree[tid];
+        if (!lfree.isEmpty()) return lfree.remove(lfree.size()-1);
+        final int hint = (tid*CLPAD) % FREE_SIZE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int idx = (hint + i) % FREE_SIZE;
+            if (freeObjects.get(idx) == null) continue;
+            final T obj = freeObjects.getAndSet(idx, null);
+            if (obj != null) return obj;
+        }
+        return null;
+    }
+
+
+    private static boolean isProtected(Object obj, Object[] hazards, int numHazards) {
+        for (int i = 0; i < numHazards; i++) {
+            if (hazards[i] == obj) return true;
+        }
+        return false;
+    }
+
+
+    private void putFree(T obj, int tid) {
+        final int hint = (tid*CLPAD) % FREE_SIZE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int idx = (hint + i) % FREE_SIZE;
+            if (freeObjects.get(idx) != null) continue;
+            if (freeObjects.compareAndSet(idx, null, obj)) return;
+        }
+        // No room near our hint, leave this object for the GC
+    }
+}
@@ -0,0 +1,150 @@
+package com.concurrencyfreaks.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.concurrencyfreaks.locks.ScalableRWLock;
+import com.concurrencyfreaks.papers.LeftRight.LRScalableTreeSet;
+import com.concurrencyfreaks.queues.CRTurnQueue;
+
+
+
+/**
+ * This is a benchmark of the per-thread states versus the striped (or
+ * per-operation slot) modes of ScalableRWLock, LRScalableTreeSet and
+ * CRTurnQueue, when each task runs on its own short-lived thread.
+ *
+ * Tasks are started with a thread-per-task executor: a new Thread for each
+ * task, with at most MAX_LIVE_THREADS of them alive at any time. Each task
+ * does OPS_PER_TASK read operations and one write operation (or for the
+ * queue, OPS_PER_TASK enqueue/dequeue pairs) and terminates.
+ * For each mode we show the tasks per second and the heap in use at the end
+ * of the run, before the GC had a chance to clean up the per-thread states.
+ * The tasks that fail because CRTurnQueue's ThreadRegistry ran out of tids
+ * (threads that released liveThreads may not have terminated yet) are
+ * counted as failed.
+ */
+public class BenchmarkManyThreads {
+
+    public enum TestCase {
+        ScalableRWLock,
+        ScalableRWLockStriped,
+        LRScalableTreeSet,
+        LRScalableTreeSetStriped,
+        CRTurnQueue,
+        CRTurnQueuePerOpSlots,
+    }
+
+    private final static int MAX_LIVE_THREADS = 64;
+    private final static int NUM_STRIPES = 64;
+    private final static int MAX_QUEUE_THREADS = 128;  // Must be larger than MAX_LIVE_THREADS
+    private final static int OPS_PER_TASK = 100;
+    private final static int NUM_ELEMENTS = 1000;
+
+    private ScalableRWLock rwlock;
+    private LRScalableTreeSet<Integer> treeSet;
+    private CRTurnQueue<Integer> queue;
+    private long sharedCounter = 0;
+    private final AtomicInteger failedTasks = new AtomicInteger(0);
+
+
+    public BenchmarkManyThreads(int numTasks) {
+        System.out.println("----- Many threads test numTasks=" +numTasks+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numTasks, type);
+        System.out.println();
+    }
+
+
+    public void singleTest(int numTasks, final TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        rwlock = null;
+        treeSet = null;
+        queue = null;
+        failedTasks.set(0);
+        System.gc();
+        switch (type) {
+        case ScalableRWLock:           rwlock = new ScalableRWLock(); break;
+        case ScalableRWLockStriped:    rwlock = new ScalableRWLock(NUM_STRIPES); break;
+        case LRScalableTreeSet:        treeSet = new LRScalableTreeSet<Integer>(); break;
+        case LRScalableTreeSetStriped: treeSet = new LRScalableTreeSet<Integer>(NUM_STRIPES); break;
+        case CRTurnQueue:              queue = new CRTurnQueue<Integer>(MAX_QUEUE_THREADS); break;
+        case CRTurnQueuePerOpSlots:    queue = new CRTurnQueue<Integer>(MAX_QUEUE_THREADS, true); break;
+        }
+        if (treeSet != null) {
+            for (int i = 0; i < NUM_ELEMENTS; i += 2) treeSet.add(i);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long startHeap = runtime.totalMemory() - runtime.freeMemory();
+
+        final Semaphore liveThreads = new Semaphore(MAX_LIVE_THREADS);
+        final CountDownLatch doneLatch = new CountDownLatch(numTasks);
+        final long startTime = System.nanoTime();
+        for (int itask = 0; itask < numTasks; itask++) {
+            liveThreads.acquireUninterruptibly();
+            final int taskId = itask;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        runTask(type, taskId);
+                    } catch (IllegalStateException e) {
+                        // The ThreadRegistry has no free tids left
+                        failedTasks.getAndIncrement();
+                    } finally {
+                        doneLatch.countDown();
+                        liveThreads.release();
+                    }
+                }
+            }).start();
+        }
+        try {
+            doneLatch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        final long usedHeap = runtime.totalMemory() - runtime.freeMemory() - startHeap;
+        System.out.println("tasks/sec = "+(numTasks*1000000000L/elapsed)+"  heap growth (KB) = "+(usedHeap/1024)+"  failed tasks = "+failedTasks.get());
+    }
+
+
+    private void runTask(TestCase type, int taskId) {
+        switch (type) {
+        case ScalableRWLock:
+        case ScalableRWLockStriped:
+            for (int i = 0; i < OPS_PER_TASK; i++) {
+                rwlock.sharedLock();
+                if (sharedCounter < 0) System.out.println("ERROR: counter is negative");
+                rwlock.sharedUnlock();
+            }
+            rwlock.exclusiveLock();
+            sharedCounter++;
+            rwlock.exclusiveUnlock();
+            break;
+        case LRScalableTreeSet:
+        case LRScalableTreeSetStriped:
+            for (int i = 0; i < OPS_PER_TASK; i++) {
+                treeSet.contains((taskId+i) % NUM_ELEMENTS);
+            }
+            final Integer elem = (taskId % (NUM_ELEMENTS/2))*2+1;
+            if (!treeSet.add(elem)) treeSet.remove(elem);
+            break;
+        case CRTurnQueue:
+        case CRTurnQueuePerOpSlots:
+            for (int i = 0; i < OPS_PER_TASK; i++) {
+                queue.enqueue(taskId);
+                if (queue.dequeue() == null) System.out.println("ERROR: queue is empty after an enqueue");
+            }
+            break;
+        }
+    }
+
+
+    public static void main(String[] args) {
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        new BenchmarkManyThreads(10000);
+        new BenchmarkManyThreads(100000);
+    }
+}
@@ -0,0 +1,156 @@
+package com.concurrencyfreaks.tests;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+
+import com.concurrencyfreaks.locks.ScalableRWLock;
+import com.concurrencyfreaks.papers.LeftRight.LRScalableTreeSet;
+import com.concurrencyfreaks.readindicators.ThreadRegistry;
+
+
+
+/**
+ * This is a benchmark of the latency of the Writer when there are many
+ * registered Readers, for the per-thread states (in a ReaderRegistry) versus
+ * the packed mode of ScalableRWLock and LRScalableTreeSet, with the striped
+ * mode as reference.
+ *
+ * numReaders threads do one read operation, which registers their state,
+ * and then keep doing one read operation every READER_SLEEP_MILIS, so that
+ * most of the time the Writer scans states that are not reading. The main
+ * thread does NUM_WRITES write operations (for the set, an add() and
+ * a remove()) and we show the mean, median and 99th percentile of the time
+ * each one takes.
+ */
+public class BenchmarkWriterScan {
+
+    public enum TestCase {
+        ScalableRWLock,
+        ScalableRWLockPacked,
+        ScalableRWLockStriped,
+        LRScalableTreeSet,
+        LRScalableTreeSetPacked,
+    }
+
+    private final static int MAX_READERS = 512;  // Must be larger than the number of readers
+    private final static int NUM_STRIPES = 64;
+    private final static int NUM_WRITES = 100000;
+    private final static int NUM_ELEMENTS = 1000;
+    private final static int READER_SLEEP_MILIS = 1;
+
+    private ScalableRWLock rwlock;
+    private LRScalableTreeSet<Integer> treeSet;
+    private long sharedCounter = 0;
+    private volatile boolean quit = false;
+
+
+    public BenchmarkWriterScan(int numReaders) {
+        System.out.println("----- Writer latency test numReaders=" +numReaders+" -----");
+        for (TestCase type : TestCase.values()) singleTest(numReaders, type);
+        System.out.println();
+    }
+
+
+    public void singleTest(int numReaders, final TestCase type) {
+        // If we see an error here just increase the number of spaces
+        String indentedName = type.toString() + "                                  ".substring(type.toString().length());
+        System.out.print("##### "+indentedName+" #####  ");
+        rwlock = null;
+        treeSet = null;
+        switch (type) {
+        case ScalableRWLock:          rwlock = new ScalableRWLock(); break;
+        case ScalableRWLockPacked:    rwlock = new ScalableRWLock(new ThreadRegistry(MAX_READERS)); break;
+        case ScalableRWLockStriped:   rwlock = new ScalableRWLock(NUM_STRIPES); break;
+        case LRScalableTreeSet:       treeSet = new LRScalableTreeSet<Integer>(); break;
+        case LRScalableTreeSetPacked: treeSet = new LRScalableTreeSet<Integer>(new ThreadRegistry(MAX_READERS)); break;
+        }
+        if (treeSet != null) {
+            for (int i = 0; i < NUM_ELEMENTS; i += 2) treeSet.add(i);
+        }
+
+        // Start the Readers and wait until all of them are registered
+        quit = false;
+        final CountDownLatch registeredLatch = new CountDownLatch(numReaders);
+        final Thread[] readerThreads = new Thread[numReaders];
+        for (int i = 0; i < numReaders; i++) {
+            final int tid = i;
+            readerThreads[i] = new Thread(new Runnable() {
+                public void run() {
+                    boolean registered = false;
+                    while (!quit) {
+                        read(tid);
+                        if (!registered) {
+                            registeredLatch.countDown();
+                            registered = true;
+                        }
+                        try {
+                            Thread.sleep(READER_SLEEP_MILIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            readerThreads[i].start();
+        }
+        try {
+            registeredLatch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        final long[] latencies = new long[NUM_WRITES];
+        for (int i = 0; i < NUM_WRITES; i++) {
+            final long startTime = System.nanoTime();
+            write(i);
+            latencies[i] = System.nanoTime() - startTime;
+        }
+
+        quit = true;
+        try {
+            for (int i = 0; i < numReaders; i++) readerThreads[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long sum = 0;
+        for (int i = 0; i < NUM_WRITES; i++) sum += latencies[i];
+        Arrays.sort(latencies);
+        System.out.println("writer latency (ns): mean = "+(sum/NUM_WRITES)+"  median = "+latencies[NUM_WRITES/2]+
+                "  99th = "+latencies[(int)(NUM_WRITES*0.99)]);
+    }
+
+
+    private void read(int tid) {
+        if (rwlock != null) {
+            rwlock.sharedLock();
+            if (sharedCounter < 0) System.out.println("ERROR: counter is negative");
+            rwlock.sharedUnlock();
+        } else {
+            treeSet.contains(tid % NUM_ELEMENTS);
+        }
+    }
+
+
+    private void write(int iwrite) {
+        if (rwlock != null) {
+            rwlock.exclusiveLock();
+            sharedCounter++;
+            rwlock.exclusiveUnlock();
+        } else {
+            final Integer elem = (iwrite % (NUM_ELEMENTS/2))*2+1;
+            treeSet.add(elem);
+            treeSet.remove(elem);
+        }
+    }
+
+
+    public static void main(String[] args) {
+        LinkedList<Integer> readersList = new LinkedList<Integer>(Arrays.asList(64, 128, 256));
+        System.out.println("This system has " + Runtime.getRuntime().availableProcessors() + " cores");
+        for (Integer numReaders : readersList) {
+            new BenchmarkWriterScan(numReaders);
+        }
+    }
+}
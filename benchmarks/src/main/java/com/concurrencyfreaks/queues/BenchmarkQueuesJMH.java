@@ -0,0 +1,310 @@
+package com.concurrencyfreaks.queues;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.concurrencyfreaks.queues.BenchmarkQueues.TestCase;
+
+
+
+/**
+ * This is a JMH performance benchmark of the multi-consumer queues in
+ * BenchmarkQueues.TestCase and of some queues from java.util.concurrent as
+ * baselines, selected with the queueType parameter, over these workloads:
+ *
+ * pairs:
+ * Each thread does one enqueue() followed by one dequeue().
+ *
+ * burst:
+ * Each thread does BURST_SIZE enqueues followed by BURST_SIZE dequeues.
+ *
+ * splitHalf, splitOneConsumer, splitOneProducer:
+ * The threads are split into a subgroup of producers that only enqueue and
+ * a subgroup of consumers that only dequeue, with half the threads in each,
+ * or with a single consumer, or with a single producer. The producers stop
+ * enqueueing when they are more than MAX_BACKLOG items ahead of the
+ * consumers. Each consumer publishes how many items it has dequeued in its
+ * own cache line, every PUBLISH_INTERVAL items, and a producer only sums
+ * them every CHECK_INTERVAL items, assuming that the other producers are
+ * going at the same rate, so there is no shared counter that all threads
+ * write to. The "enqueues" and "dequeues" secondary results count the
+ * operations that were done, while the primary result also counts the calls
+ * of a throttled producer and the dequeues that found the queue empty.
+ *
+ * The number of threads of each workload is set with @GroupThreads and can
+ * be changed with -tg, for example "-tg 4,1" for splitOneConsumer.
+ * A new queue is created for each iteration. The items are pre-allocated,
+ * so the allocations shown by "-prof gc" (which RunBenchmarkQueuesJMH adds
+ * by default) are the ones done by the queues.
+ * The single-consumer queues (SPSCArrayQueue and MPSCArrayQueue) are not
+ * included, see BenchmarkQueues for those.
+ *
+ * Build with a JDK 8 and run with:
+ *   mvn -f benchmarks/pom.xml package
+ *   java -jar benchmarks/target/benchmarks.jar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkQueuesJMH {
+
+    public enum Baseline {
+        ConcurrentLinkedQueue,
+        LinkedBlockingQueue,
+        ArrayBlockingQueue,
+        LinkedTransferQueue,
+    }
+
+    final static int BURST_SIZE = 32;
+    private final static int BOUNDED_CAPACITY = 64*1024;
+    // Must be less than BOUNDED_CAPACITY minus numProducers*CHECK_INTERVAL
+    private final static int MAX_BACKLOG = 16*1024;
+    private final static int CHECK_INTERVAL = 256;
+    private final static int PUBLISH_INTERVAL = 64;
+    // Longs in a cache line, to keep the published counts apart
+    private final static int PADDING = 16;
+    private final static int MAX_CONSUMERS = 256;
+
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        @Param({"FAAArrayQueue", "BlockingFAAArrayQueue", "FAABoundedArrayQueue", "LinearArrayQueue",
+                "LazyIndexArrayQueue", "Log2ArrayQueue", "LCRQueue", "CRTurnQueue", "CRSimQueue",
+                "EncapsulatorQueue", "EncapsulatorFastQueue", "CRDoubleLinkQueue", "BitNextQueue",
+                "BitNextLazyHeadQueue", "MichaelScottQueue", "MichaelScottQueueHP", "KoganPetrankQueue",
+                "KoganPetrankNoSLQueue", "ConcurrentLinkedQueue", "LinkedBlockingQueue",
+                "ArrayBlockingQueue", "LinkedTransferQueue"})
+        public String queueType;
+
+        IQueue<Object> queue;
+        // Items dequeued by each consumer of the split workloads, one per cache line
+        AtomicLongArray consumed;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            queue = createQueue(queueType);
+            consumed = new AtomicLongArray(MAX_CONSUMERS*PADDING);
+        }
+    }
+
+
+    static IQueue<Object> createQueue(String queueType) {
+        for (Baseline type : Baseline.values()) {
+            if (type.toString().equals(queueType)) return createBaseline(type);
+        }
+        final TestCase type = TestCase.valueOf(queueType);
+        if (BenchmarkQueues.isSingleConsumer(type)) {
+            throw new IllegalArgumentException(queueType+" is a single-consumer queue");
+        }
+        return BenchmarkQueues.<Object>createQueue(type);
+    }
+
+
+    static IQueue<Object> createBaseline(Baseline type) {
+        switch (type) {
+        case ConcurrentLinkedQueue: return new JDKQueue<Object>(new ConcurrentLinkedQueue<Object>());
+        case LinkedBlockingQueue:   return new JDKQueue<Object>(new LinkedBlockingQueue<Object>());
+        case ArrayBlockingQueue:    return new JDKQueue<Object>(new ArrayBlockingQueue<Object>(BOUNDED_CAPACITY));
+        case LinkedTransferQueue:   return new JDKQueue<Object>(new LinkedTransferQueue<Object>());
+        }
+        return null;
+    }
+
+
+    /**
+     * Adapts a queue from java.util.concurrent to IQueue
+     */
+    static final class JDKQueue<E> implements IQueue<E> {
+        private final Queue<E> queue;
+
+        JDKQueue(Queue<E> queue) {
+            this.queue = queue;
+        }
+
+        public void enqueue(E item) {
+            // Only a bounded queue can be full, and we never fill it up
+            while (!queue.offer(item)) Thread.yield();
+        }
+
+        public E dequeue() {
+            return queue.poll();
+        }
+    }
+
+
+    /**
+     * Inner class for user's data that will be put in the queues
+     */
+    public static class UserData {
+        public int a = 1;
+        public int b = 2;
+    }
+
+
+    @State(Scope.Thread)
+    public static class ThreadItems {
+        final UserData[] items = new UserData[BURST_SIZE];
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            for (int i = 0; i < BURST_SIZE; i++) {
+                items[i] = new UserData();
+                items[i].a = params.getThreadIndex();
+                items[i].b = i;
+            }
+        }
+    }
+
+
+    /**
+     * Per-thread state of the split workloads. Only the public fields are
+     * reported, as operations per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class SplitCounters {
+        public long enqueues;
+        public long dequeues;
+        // Used only by producers
+        private int numProducers;
+        private int numConsumers;
+        private boolean throttled;
+        // Used only by consumers, the index of its count in QueueState.consumed
+        private int slot;
+
+        @Setup(Level.Trial)
+        public void setupThread(ThreadParams params) {
+            // A thread's own subgroup has its role, the other subgroup has the other one
+            final int otherPerGroup = params.getGroupThreadCount() - params.getSubgroupThreadCount();
+            numProducers = params.getSubgroupThreadCount()*params.getGroupCount();
+            numConsumers = otherPerGroup*params.getGroupCount();
+            slot = params.getGroupIndex()*params.getSubgroupThreadCount() + params.getSubgroupThreadIndex();
+            if (numConsumers > MAX_CONSUMERS || slot >= MAX_CONSUMERS) {
+                throw new IllegalArgumentException("More than "+MAX_CONSUMERS+" consumers");
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void setupIteration() {
+            enqueues = 0;
+            dequeues = 0;
+            throttled = false;
+        }
+    }
+
+
+    @Benchmark
+    @Group("pairs")
+    @GroupThreads(4)
+    @OperationsPerInvocation(2)
+    public Object pairs(QueueState q, ThreadItems t) {
+        q.queue.enqueue(t.items[0]);
+        return q.queue.dequeue();
+    }
+
+
+    @Benchmark
+    @Group("burst")
+    @GroupThreads(4)
+    @OperationsPerInvocation(2*BURST_SIZE)
+    public void burst(QueueState q, ThreadItems t, Blackhole bh) {
+        final UserData[] items = t.items;
+        for (int i = 0; i < BURST_SIZE; i++) q.queue.enqueue(items[i]);
+        for (int i = 0; i < BURST_SIZE; i++) bh.consume(q.queue.dequeue());
+    }
+
+
+    @Benchmark
+    @Group("splitHalf")
+    @GroupThreads(2)
+    public void splitHalfProducer(QueueState q, ThreadItems t, SplitCounters c) {
+        produce(q, t, c);
+    }
+
+    @Benchmark
+    @Group("splitHalf")
+    @GroupThreads(2)
+    public Object splitHalfConsumer(QueueState q, SplitCounters c) {
+        return consume(q, c);
+    }
+
+
+    @Benchmark
+    @Group("splitOneConsumer")
+    @GroupThreads(3)
+    public void splitOneConsumerProducer(QueueState q, ThreadItems t, SplitCounters c) {
+        produce(q, t, c);
+    }
+
+    @Benchmark
+    @Group("splitOneConsumer")
+    @GroupThreads(1)
+    public Object splitOneConsumerConsumer(QueueState q, SplitCounters c) {
+        return consume(q, c);
+    }
+
+
+    @Benchmark
+    @Group("splitOneProducer")
+    @GroupThreads(1)
+    public void splitOneProducerProducer(QueueState q, ThreadItems t, SplitCounters c) {
+        produce(q, t, c);
+    }
+
+    @Benchmark
+    @Group("splitOneProducer")
+    @GroupThreads(3)
+    public Object splitOneProducerConsumer(QueueState q, SplitCounters c) {
+        return consume(q, c);
+    }
+
+
+    private static void produce(QueueState q, ThreadItems t, SplitCounters c) {
+        if (c.throttled || (c.enqueues % CHECK_INTERVAL) == 0) {
+            long numConsumed = 0;
+            for (int i = 0; i < c.numConsumers; i++) {
+                numConsumed += q.consumed.get(i*PADDING);
+            }
+            // Assume the other producers are going at the same rate as this one
+            c.throttled = c.enqueues*c.numProducers - numConsumed > MAX_BACKLOG;
+            if (c.throttled) return;
+        }
+        q.queue.enqueue(t.items[0]);
+        c.enqueues++;
+    }
+
+
+    private static Object consume(QueueState q, SplitCounters c) {
+        final Object item = q.queue.dequeue();
+        if (item != null && (++c.dequeues % PUBLISH_INTERVAL) == 0) {
+            q.consumed.lazySet(c.slot*PADDING, c.dequeues);
+        }
+        return item;
+    }
+}
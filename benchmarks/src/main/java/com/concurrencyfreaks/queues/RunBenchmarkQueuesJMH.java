@@ -0,0 +1,31 @@
+package com.concurrencyfreaks.queues;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+
+/**
+ * Main class of benchmarks.jar. Takes the same command line options as JMH,
+ * and when they don't select any benchmarks or profilers, it runs
+ * BenchmarkQueuesJMH with the GC profiler (like "-prof gc"), which shows the
+ * bytes allocated per operation.
+ */
+public class RunBenchmarkQueuesJMH {
+
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams() ||
+            cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        final ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (cmdOptions.getIncludes().isEmpty()) builder.include(BenchmarkQueuesJMH.class.getName());
+        if (cmdOptions.getProfilers().isEmpty()) builder.addProfiler(GCProfiler.class);
+        new Runner(builder.build()).run();
+    }
+}